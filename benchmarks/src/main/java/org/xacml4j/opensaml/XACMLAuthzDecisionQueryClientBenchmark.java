@@ -0,0 +1,202 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
+import org.opensaml.xml.util.XMLHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.w3c.dom.Element;
+import org.xacml4j.v30.Decision;
+import org.xacml4j.v30.ResponseContext;
+import org.xacml4j.v30.Result;
+import org.xacml4j.v30.Status;
+import org.xacml4j.v30.StatusCode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures the {@link XACMLAuthzDecisionQueryClient} round trip against a
+ * local PDP stand-in, a JDK HTTP server passing the queries to an
+ * {@link XACMLAuthzDecisionQueryEndpoint} with a stub PDP. Includes query
+ * signing, response signature verification and the loopback transport.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class XACMLAuthzDecisionQueryClientBenchmark
+{
+	private static final String IDP_ENTITY_ID = "https://idp.example.com/";
+	private static final String SP_ENTITY_ID = "https://sp.example.com/";
+	private static final String AUTHZ_SERVICE_LOCATION = "https://authz.example.com/api/xacml";
+	private static final String KEY_ALIAS = "mykey";
+	private static final String KEY_PASSWORD = "changeme";
+
+	@State(Scope.Benchmark)
+	public static class Client
+	{
+		HttpServer server;
+		ExecutorService serverExecutor;
+		XACMLAuthzDecisionQueryClient client;
+		RequestType request;
+
+		@Setup
+		public void setUp() throws Exception {
+			DefaultBootstrap.bootstrap();
+			OpenSamlMetadataFactoryBean metadataFactory = new OpenSamlMetadataFactoryBean();
+			metadataFactory.setLocation(new ClassPathResource("metadata.xml"));
+			metadataFactory.afterPropertiesSet();
+			MetadataProvider metadata = metadataFactory.getObject();
+			Credential idpCredential = new KeyStoreX509CredentialAdapter(
+					XACMLAuthzDecisionQueryEndpointBenchmark.getKeyStore("test-idp.jceks"),
+					KEY_ALIAS, KEY_PASSWORD.toCharArray());
+			ResponseContext decision = ResponseContext.builder()
+					.result(Result.builder(Decision.PERMIT, Status.builder(StatusCode.createOk()).build()).build())
+					.build();
+			XACMLAuthzDecisionQueryEndpoint endpoint = new XACMLAuthzDecisionQueryEndpoint(
+					new DefaultIDPConfiguration(IDP_ENTITY_ID, metadata, Collections.singletonList(idpCredential)),
+					XACMLAuthzDecisionQueryEndpointBenchmark.stubPdp(decision),
+					AlwaysFirstSigningCredentialSelector.instance());
+
+			serverExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/api/xacml", new PdpStandIn(endpoint));
+			server.setExecutor(serverExecutor);
+			server.start();
+
+			client = new XACMLAuthzDecisionQueryClient(SP_ENTITY_ID, IDP_ENTITY_ID,
+					"http://127.0.0.1:" + server.getAddress().getPort() + "/api/xacml",
+					new XACMLAuthzDecisionQuerySigner(
+							XACMLAuthzDecisionQueryEndpointBenchmark.getKeyStore("test-sp.jceks"),
+							KEY_ALIAS, KEY_PASSWORD),
+					metadata);
+			client.setDestination(AUTHZ_SERVICE_LOCATION);
+
+			BasicParserPool parserPool = new BasicParserPool();
+			parserPool.setNamespaceAware(true);
+			XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+					parserPool.parse(new ClassPathResource("TestXacmlSamlRequest-nosignature.xml").getInputStream())
+							.getDocumentElement());
+			request = query.getRequest();
+			request.releaseParentDOM(true);
+			request.setParent(null);
+		}
+
+		@TearDown
+		public void tearDown() {
+			client.close();
+			server.stop(0);
+			serverExecutor.shutdownNow();
+		}
+	}
+
+	@Benchmark
+	public Object decide(Client state) throws Exception {
+		return state.client.decide(state.request);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Object decideConcurrently(Client state) throws Exception {
+		return state.client.decide(state.request);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(XACMLAuthzDecisionQueryClientBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+
+	/**
+	 * Unwraps SOAP 1.1 requests and passes them to the endpoint
+	 */
+	private static final class PdpStandIn implements HttpHandler
+	{
+		private final XACMLAuthzDecisionQueryEndpoint endpoint;
+
+		PdpStandIn(XACMLAuthzDecisionQueryEndpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				BasicParserPool parserPool = new BasicParserPool();
+				parserPool.setNamespaceAware(true);
+				Element envelope = parserPool.parse(exchange.getRequestBody()).getDocumentElement();
+				XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+						XMLHelper.getFirstChildElement(XMLHelper.getFirstChildElement(envelope)));
+				Response response = endpoint.handle(query);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				out.write("<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Body>"
+						.getBytes("UTF-8"));
+				OpenSamlObjectBuilder.serialize(response, out);
+				out.write("</soap11:Body></soap11:Envelope>".getBytes("UTF-8"));
+				exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+				exchange.sendResponseHeaders(200, out.size());
+				OutputStream body = exchange.getResponseBody();
+				out.writeTo(body);
+				body.close();
+			} catch (Exception e) {
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
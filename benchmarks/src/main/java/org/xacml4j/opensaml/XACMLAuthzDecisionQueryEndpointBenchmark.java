@@ -0,0 +1,251 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.w3c.dom.Document;
+import org.xacml4j.v30.Decision;
+import org.xacml4j.v30.ResponseContext;
+import org.xacml4j.v30.Result;
+import org.xacml4j.v30.Status;
+import org.xacml4j.v30.StatusCode;
+import org.xacml4j.v30.pdp.PolicyDecisionPoint;
+
+/**
+ * Measures each stage of the XACML authorization decision query processing
+ * in isolation as well as the whole {@link XACMLAuthzDecisionQueryEndpoint}
+ * pipeline. Uses the test key stores and metadata and a stub
+ * {@link PolicyDecisionPoint} always answering with a fixed decision, so
+ * the numbers reflect the SAML/XML processing overhead only.
+ *
+ * Run with the GC profiler to get allocation rates:
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class XACMLAuthzDecisionQueryEndpointBenchmark
+{
+	private static final String IDP_ENTITY_ID = "https://idp.example.com/";
+	private static final String KEY_ALIAS = "mykey";
+	private static final String KEY_PASSWORD = "changeme";
+
+	@State(Scope.Benchmark)
+	public static class Endpoint
+	{
+		IDPConfiguration idpConfig;
+		XACMLAuthzDecisionQueryEndpoint endpoint;
+		ResponseContext decision;
+		BasicParserPool parserPool;
+		byte[] signedRequest;
+		XACMLAuthzDecisionQueryType query;
+		Response signedResponse;
+
+		@Setup
+		public void setUp() throws Exception {
+			DefaultBootstrap.bootstrap();
+			OpenSamlMetadataFactoryBean metadataFactory = new OpenSamlMetadataFactoryBean();
+			metadataFactory.setLocation(new ClassPathResource("metadata.xml"));
+			metadataFactory.afterPropertiesSet();
+			MetadataProvider metadata = metadataFactory.getObject();
+			Credential idpCredential = new KeyStoreX509CredentialAdapter(
+					getKeyStore("test-idp.jceks"), KEY_ALIAS, KEY_PASSWORD.toCharArray());
+			idpConfig = new DefaultIDPConfiguration(IDP_ENTITY_ID, metadata,
+					Collections.singletonList(idpCredential));
+
+			decision = ResponseContext.builder()
+					.result(Result.builder(Decision.PERMIT, Status.builder(StatusCode.createOk()).build()).build())
+					.build();
+			endpoint = new XACMLAuthzDecisionQueryEndpoint(idpConfig, stubPdp(decision),
+					AlwaysFirstSigningCredentialSelector.instance());
+
+			parserPool = new BasicParserPool();
+			parserPool.setNamespaceAware(true);
+			XACMLAuthzDecisionQuerySigner signer = new XACMLAuthzDecisionQuerySigner(
+					getKeyStore("test-sp.jceks"), KEY_ALIAS, KEY_PASSWORD);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			signer.signRequest(new ClassPathResource("TestXacmlSamlRequest-nosignature.xml").getInputStream(), out);
+			signedRequest = out.toByteArray();
+			query = unmarshall(parserPool, signedRequest);
+
+			signedResponse = makeResponse(this);
+			endpoint.signResponse(query, signedResponse);
+		}
+	}
+
+	/**
+	 * Provides a freshly built, not yet signed, response per invocation
+	 */
+	@State(Scope.Thread)
+	public static class UnsignedResponse
+	{
+		Response response;
+
+		@Setup(Level.Invocation)
+		public void setUp(Endpoint state) {
+			response = makeResponse(state);
+		}
+	}
+
+	@Benchmark
+	public XACMLAuthzDecisionQueryType unmarshallRequest(Endpoint state) throws Exception {
+		return unmarshall(state.parserPool, state.signedRequest);
+	}
+
+	@Benchmark
+	public boolean validateRequestSignature(Endpoint state) throws Exception {
+		return state.endpoint.validateRequestSignature(state.query, null);
+	}
+
+	@Benchmark
+	public Document performXacmlRequest(Endpoint state) throws Exception {
+		Document request = state.parserPool.newDocument();
+		OpenSamlObjectBuilder.marshallXacml20Request(state.query.getRequest(), request);
+		return state.endpoint.performXacmlRequest(state.query.getIssuer().getValue(), request);
+	}
+
+	@Benchmark
+	public Response buildResponse(Endpoint state) {
+		return makeResponse(state);
+	}
+
+	@Benchmark
+	public Response signResponse(Endpoint state, UnsignedResponse response) throws Exception {
+		state.endpoint.signResponse(state.query, response.response);
+		return response.response;
+	}
+
+	@Benchmark
+	public byte[] serializeResponse(Endpoint state) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OpenSamlObjectBuilder.serialize(state.signedResponse, out);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public Response handle(Endpoint state) {
+		return state.endpoint.handle(state.query);
+	}
+
+	@Benchmark
+	public byte[] handleStream(Endpoint state) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		state.endpoint.handle(new ByteArrayInputStream(state.signedRequest), out);
+		return out.toByteArray();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(XACMLAuthzDecisionQueryEndpointBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+	private static Response makeResponse(Endpoint state) {
+		ResponseType xacmlResponse = OpenSamlObjectBuilder.makeXacml20Response(state.decision);
+		Assertion assertion = OpenSamlObjectBuilder.makeXacml20AuthzDecisionAssertion(
+				IDP_ENTITY_ID, null, xacmlResponse);
+		return OpenSamlObjectBuilder.makeXacml20AuthzDecisionQueryResponse(
+				IDP_ENTITY_ID, state.query, assertion);
+	}
+
+	private static XACMLAuthzDecisionQueryType unmarshall(BasicParserPool parserPool, byte[] request)
+			throws Exception {
+		Document doc = parserPool.parse(new ByteArrayInputStream(request));
+		return OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(doc.getDocumentElement());
+	}
+
+	static KeyStore getKeyStore(String resource) throws Exception {
+		KeyStore ks = KeyStore.getInstance("JCEKS");
+		InputStream in = new ClassPathResource(resource).getInputStream();
+		try {
+			ks.load(in, KEY_PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		return ks;
+	}
+
+	static PolicyDecisionPoint stubPdp(final ResponseContext decision) {
+		return (PolicyDecisionPoint) Proxy.newProxyInstance(
+				PolicyDecisionPoint.class.getClassLoader(),
+				new Class<?>[] { PolicyDecisionPoint.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("decide")) {
+							return decision;
+						}
+						if (method.getName().equals("toString")) {
+							return "StubPolicyDecisionPoint";
+						}
+						if (method.getName().equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						}
+						if (method.getName().equals("equals")) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,896 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.TransformerException;
+
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A standalone HTTP server implementing the SAML 2.0 SOAP 1.1 binding
+ * around an {@link OpenSamlEndpoint}. Connections are served by a single
+ * NIO selector thread with HTTP/1.1 keep-alive, SOAP decoding, endpoint
+ * processing and response encoding run on a bounded pool of worker threads.
+ * Requests beyond the worker queue capacity are rejected with HTTP 503,
+ * requests larger than {@link #setMaxRequestSize(int)} with HTTP 413.
+ * Connections beyond {@link #setMaxConnections(int)} wait in the listen
+ * backlog until an open connection is closed. Read and response buffers
+ * are pooled between requests, a read buffer grows with the request body
+ * as it arrives.
+ * <p>
+ * Only "POST" requests with the "Content-Length" header are accepted,
+ * the request path is not checked.
+ */
+public class SoapBindingServer
+{
+	private final static Logger log = LoggerFactory.getLogger(SoapBindingServer.class);
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_MAX_REQUEST_SIZE = 1024 * 1024;
+	public static final int DEFAULT_MAX_PENDING_REQUESTS = 1024;
+	public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+	public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	private static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+
+	private static final byte[] ENVELOPE_START = ascii(
+			"<soap11:Envelope xmlns:soap11=\"" + SOAP11_NS + "\"><soap11:Body>");
+	private static final byte[] ENVELOPE_END = ascii("</soap11:Body></soap11:Envelope>");
+	private static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+	private static final byte[] HEADER_END = ascii("\r\n\r\n");
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_HEADER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 256;
+	private static final int BACKLOG = 1024;
+	private static final long IDLE_CHECK_INTERVAL = 1000L;
+
+	private final OpenSamlEndpoint endpoint;
+	private final BasicParserPool parserPool;
+	private final BufferPool buffers;
+
+	/**
+	 * Connections with a response ready to be written, handed
+	 * over from the workers to the selector thread
+	 */
+	private final Queue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+
+	private InetSocketAddress address;
+	private int workerThreads;
+	private int maxPendingRequests;
+	private int maxRequestSize;
+	private int maxConnections;
+	private long keepAliveTimeout;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SelectionKey serverKey;
+	private int connections;
+	private ThreadPoolExecutor workers;
+	private Thread selectorThread;
+	private volatile boolean running;
+
+	public SoapBindingServer(OpenSamlEndpoint endpoint) {
+		this.endpoint = checkNotNull(endpoint, "'endpoint' is null.");
+		this.parserPool = OpenSamlObjectBuilder.newSecureParserPool();
+		this.buffers = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+		this.address = new InetSocketAddress(DEFAULT_PORT);
+		this.workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+		this.maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
+		this.maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+		this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+		this.keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+	}
+
+	/**
+	 * Sets the address to listen on, port {@link #DEFAULT_PORT} on
+	 * all interfaces by default. Port {@code 0} picks a free port,
+	 * see {@link #getLocalAddress()}.
+	 *
+	 * @param address a socket address
+	 */
+	public synchronized void setAddress(InetSocketAddress address) {
+		checkState(!running, "Server is running");
+		this.address = checkNotNull(address, "'address' is null.");
+	}
+
+	/**
+	 * Sets the number of threads processing requests, by default
+	 * twice the number of available processors.
+	 *
+	 * @param workerThreads a number of worker threads
+	 */
+	public synchronized void setWorkerThreads(int workerThreads) {
+		checkState(!running, "Server is running");
+		checkArgument(workerThreads > 0, "Number of worker threads=%s must be positive", workerThreads);
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * Sets the maximum number of requests waiting for a worker thread,
+	 * further requests are rejected with HTTP 503.
+	 *
+	 * @param maxPendingRequests a maximum number of pending requests
+	 */
+	public synchronized void setMaxPendingRequests(int maxPendingRequests) {
+		checkState(!running, "Server is running");
+		checkArgument(maxPendingRequests > 0, "Maximum number of pending requests=%s must be positive",
+				maxPendingRequests);
+		this.maxPendingRequests = maxPendingRequests;
+	}
+
+	/**
+	 * Sets the maximum size of a request body in bytes, larger
+	 * requests are rejected with HTTP 413.
+	 *
+	 * @param maxRequestSize a maximum request size
+	 */
+	public synchronized void setMaxRequestSize(int maxRequestSize) {
+		checkState(!running, "Server is running");
+		checkArgument(maxRequestSize > 0, "Maximum request size=%s must be positive", maxRequestSize);
+		this.maxRequestSize = maxRequestSize;
+	}
+
+	/**
+	 * Sets the maximum number of open connections, further connections
+	 * are not accepted until an open connection is closed.
+	 *
+	 * @param maxConnections a maximum number of open connections
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		checkState(!running, "Server is running");
+		checkArgument(maxConnections > 0, "Maximum number of connections=%s must be positive", maxConnections);
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Sets the time after which idle connections are closed.
+	 *
+	 * @param timeout a timeout
+	 * @param unit a unit of the timeout
+	 */
+	public synchronized void setKeepAliveTimeout(long timeout, TimeUnit unit) {
+		checkState(!running, "Server is running");
+		checkArgument(timeout > 0, "Keep-alive timeout=%s must be positive", timeout);
+		this.keepAliveTimeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Gets the address the server listens on
+	 *
+	 * @return a socket address or {@code null} if the server is not running
+	 */
+	public synchronized InetSocketAddress getLocalAddress() {
+		return running ? (InetSocketAddress) serverChannel.socket().getLocalSocketAddress() : null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Binds the server socket and starts the selector and worker threads
+	 *
+	 * @throws IOException if the server socket can not be bound
+	 */
+	public synchronized void start() throws IOException {
+		checkState(!running, "Server is running");
+		parserPool.setMaxPoolSize(workerThreads);
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(address, BACKLOG);
+			serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			connections = 0;
+		} catch (IOException e) {
+			closeQuietly();
+			throw e;
+		}
+		ThreadFactory workerFactory = new ThreadFactoryBuilder()
+				.setNameFormat("saml-soap-worker-%d")
+				.build();
+		workers = new ThreadPoolExecutor(workerThreads, workerThreads,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(maxPendingRequests),
+				workerFactory);
+		running = true;
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				select();
+			}
+		}, "saml-soap-selector");
+		selectorThread.start();
+		if (log.isDebugEnabled()) {
+			log.debug("SAML SOAP binding server listening on \"{}\"", getLocalAddress());
+		}
+	}
+
+	/**
+	 * Stops accepting requests, closes all connections and waits
+	 * for the requests being processed to complete
+	 */
+	public void stop() {
+		Thread thread;
+		ThreadPoolExecutor pool;
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+			running = false;
+			thread = selectorThread;
+			pool = workers;
+			selector.wakeup();
+		}
+		boolean interrupted = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		pool.shutdown();
+		try {
+			if (!pool.awaitTermination(keepAliveTimeout, TimeUnit.MILLISECONDS)) {
+				pool.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			interrupted = true;
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void select() {
+		long lastIdleCheck = System.currentTimeMillis();
+		try {
+			while (running) {
+				selector.select(IDLE_CHECK_INTERVAL);
+				Connection connection;
+				while ((connection = completed.poll()) != null) {
+					connection.respond();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						} else if (key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						if (log.isDebugEnabled()) {
+							log.debug("Closing connection after I/O error", e);
+						}
+						connection.close();
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+					closeIdle(now);
+					lastIdleCheck = now;
+				}
+			}
+		} catch (IOException e) {
+			log.error("SAML SOAP binding server selector failed", e);
+		} catch (ClosedSelectorException e) {
+			log.error("SAML SOAP binding server selector closed", e);
+		} finally {
+			running = false;
+			closeQuietly();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key));
+			if (++connections >= maxConnections) {
+				if (log.isDebugEnabled()) {
+					log.debug("Maximum number of connections={} reached, pausing accept", maxConnections);
+				}
+				serverKey.interestOps(0);
+			}
+		} catch (IOException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to accept connection", e);
+			}
+			channel.close();
+		}
+	}
+
+	private void closeIdle(long now) {
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection) {
+				Connection connection = (Connection) attachment;
+				if (connection.isIdle(now)) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private void closeQuietly() {
+		if (selector != null && selector.isOpen()) {
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof Connection) {
+					((Connection) attachment).close();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.debug("Failed to close selector", e);
+			}
+		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				log.debug("Failed to close server socket", e);
+			}
+		}
+	}
+
+	/**
+	 * Decodes the SOAP envelope, processes the SAML request and
+	 * writes the SOAP envelope with the SAML response
+	 *
+	 * @return HTTP status code
+	 */
+	private int process(byte[] request, int offset, int length, ByteArrayOutputStream out) {
+		Element envelope;
+		try {
+			envelope = parserPool.parse(new ByteArrayInputStream(request, offset, length)).getDocumentElement();
+		} catch (XMLParserException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to parse SOAP envelope", e);
+			}
+			return writeFault(out, "Client", "Malformed SOAP envelope");
+		}
+		RequestAbstractType samlRequest = unmarshallRequest(envelope);
+		if (samlRequest == null) {
+			return writeFault(out, "Client", "Invalid SAML request");
+		}
+		try {
+			Response response = endpoint.handle(samlRequest);
+			Element dom = Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+			out.write(ENVELOPE_START);
+			OpenSamlObjectBuilder.serialize(dom, out);
+			out.write(ENVELOPE_END);
+			return 200;
+		} catch (MarshallingException e) {
+			log.error("Failed to marshall SAML response", e);
+		} catch (TransformerException e) {
+			log.error("Failed to serialize SAML response", e);
+		} catch (IOException e) {
+			log.error("Failed to write SAML response", e);
+		} catch (RuntimeException e) {
+			log.error("Failed to process SAML request", e);
+		}
+		out.reset();
+		return writeFault(out, "Server", "Internal error");
+	}
+
+	private static RequestAbstractType unmarshallRequest(Element envelope) {
+		if (!SOAP11_NS.equals(envelope.getNamespaceURI())
+				|| !"Envelope".equals(envelope.getLocalName())) {
+			if (log.isDebugEnabled()) {
+				log.debug("Not a SOAP 1.1 envelope=\"{}\"", envelope.getNodeName());
+			}
+			return null;
+		}
+		Element body = XMLHelper.getFirstChildElement(envelope);
+		if (body != null && "Header".equals(body.getLocalName())) {
+			body = XMLHelper.getNextSiblingElement(body);
+		}
+		if (body == null || !SOAP11_NS.equals(body.getNamespaceURI())
+				|| !"Body".equals(body.getLocalName())) {
+			log.debug("SOAP envelope does not have body");
+			return null;
+		}
+		Element request = XMLHelper.getFirstChildElement(body);
+		if (request == null) {
+			log.debug("SOAP body is empty");
+			return null;
+		}
+		Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(request);
+		if (unmarshaller == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("No unmarshaller found for element=\"{}\"", request.getNodeName());
+			}
+			return null;
+		}
+		try {
+			XMLObject samlRequest = unmarshaller.unmarshall(request);
+			if (!(samlRequest instanceof RequestAbstractType)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Unsupported SAML message type=\"{}\"", samlRequest.getElementQName());
+				}
+				return null;
+			}
+			return (RequestAbstractType) samlRequest;
+		} catch (UnmarshallingException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to unmarshall SAML request", e);
+			}
+			return null;
+		} catch (RuntimeException e) {
+			// OpenSAML unmarshallers throw e.g. IllegalArgumentException for malformed attribute values
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to unmarshall SAML request", e);
+			}
+			return null;
+		}
+	}
+
+	private static int writeFault(ByteArrayOutputStream out, String code, String message) {
+		byte[] fault = ascii("<soap11:Envelope xmlns:soap11=\"" + SOAP11_NS + "\"><soap11:Body><soap11:Fault>" +
+				"<faultcode>soap11:" + code + "</faultcode>" +
+				"<faultstring>" + message + "</faultstring>" +
+				"</soap11:Fault></soap11:Body></soap11:Envelope>");
+		out.write(fault, 0, fault.length);
+		return 500;
+	}
+
+	private static byte[] makeHeader(int status, int contentLength, boolean keepAlive) {
+		StringBuilder b = new StringBuilder(128)
+				.append("HTTP/1.1 ").append(status).append(' ').append(getReason(status)).append("\r\n");
+		if (contentLength > 0) {
+			b.append("Content-Type: text/xml; charset=utf-8\r\n");
+		}
+		if (status == 405) {
+			b.append("Allow: POST\r\n");
+		}
+		return ascii(b.append("Content-Length: ").append(contentLength).append("\r\n")
+				.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n")
+				.toString());
+	}
+
+	private static String getReason(int status) {
+		switch (status) {
+			case 200: return "OK";
+			case 400: return "Bad Request";
+			case 405: return "Method Not Allowed";
+			case 411: return "Length Required";
+			case 413: return "Request Entity Too Large";
+			case 431: return "Request Header Fields Too Large";
+			case 500: return "Internal Server Error";
+			case 503: return "Service Unavailable";
+			default: return "Unknown";
+		}
+	}
+
+	private static int indexOf(byte[] b, int length, byte[] pattern) {
+		outer:
+		for (int i = 0; i <= length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (b[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A client connection, all methods except {@link #run()}
+	 * are called by the selector thread. While a request is processed
+	 * by a worker the connection is not registered for any operation.
+	 */
+	private final class Connection implements Runnable
+	{
+		private final SocketChannel channel;
+		private final SelectionKey key;
+
+		private byte[] buffer;
+		private int length;
+		private int headerLength;
+		private int contentLength;
+		private boolean keepAlive;
+
+		private ByteBuffer[] response;
+		private PooledOutputStream responseBody;
+
+		private long lastActive;
+		private boolean processing;
+		private boolean closed;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			this.buffer = buffers.acquire();
+			this.lastActive = System.currentTimeMillis();
+		}
+
+		boolean isIdle(long now) {
+			return !processing && response == null && now - lastActive > keepAliveTimeout;
+		}
+
+		void read() throws IOException {
+			int n = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length));
+			if (n < 0) {
+				close();
+				return;
+			}
+			length += n;
+			lastActive = System.currentTimeMillis();
+			parse();
+		}
+
+		private void parse() throws IOException {
+			if (headerLength == 0) {
+				int end = indexOf(buffer, Math.min(length, MAX_HEADER_SIZE), HEADER_END);
+				if (end < 0) {
+					if (length >= MAX_HEADER_SIZE) {
+						error(431);
+					}
+					return;
+				}
+				headerLength = end + HEADER_END.length;
+				if (!parseHeader()) {
+					return;
+				}
+			}
+			int requestLength = headerLength + contentLength;
+			if (length < requestLength) {
+				if (length == buffer.length) {
+					grow(requestLength);
+				}
+				return;
+			}
+			dispatch();
+		}
+
+		/**
+		 * Parses the request line and headers
+		 *
+		 * @return {@code true} if the request can be processed,
+		 *         otherwise an error response has been sent
+		 */
+		private boolean parseHeader() throws IOException {
+			String[] lines = new String(buffer, 0, headerLength - HEADER_END.length, "ISO-8859-1").split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+				error(400);
+				return false;
+			}
+			boolean http11 = !requestLine[2].equals("HTTP/1.0");
+			String connection = null;
+			String expect = null;
+			int declaredLength = -1;
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0) {
+					error(400);
+					return false;
+				}
+				String name = lines[i].substring(0, colon).trim();
+				String value = lines[i].substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					try {
+						declaredLength = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						error(400);
+						return false;
+					}
+				} else if (name.equalsIgnoreCase("Connection")) {
+					connection = value;
+				} else if (name.equalsIgnoreCase("Expect")) {
+					expect = value;
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					error(411);
+					return false;
+				}
+			}
+			keepAlive = http11 ?
+					!"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+			if (!requestLine[0].equals("POST")) {
+				error(405);
+				return false;
+			}
+			if (declaredLength < 0) {
+				error(411);
+				return false;
+			}
+			if (declaredLength > maxRequestSize) {
+				error(413);
+				return false;
+			}
+			contentLength = declaredLength;
+			if ("100-continue".equalsIgnoreCase(expect) && length < headerLength + contentLength) {
+				channel.write(ByteBuffer.wrap(CONTINUE));
+			}
+			return true;
+		}
+
+		/**
+		 * Grows the full read buffer as the request body arrives,
+		 * rather than to the declared length up front
+		 */
+		private void grow(int requestLength) {
+			byte[] larger = new byte[Math.min(requestLength, buffer.length * 2)];
+			System.arraycopy(buffer, 0, larger, 0, length);
+			buffers.release(buffer);
+			buffer = larger;
+		}
+
+		private void dispatch() throws IOException {
+			processing = true;
+			key.interestOps(0);
+			try {
+				workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				processing = false;
+				if (log.isDebugEnabled()) {
+					log.debug("Rejecting request, {} requests pending", workers.getQueue().size());
+				}
+				error(503);
+			}
+		}
+
+		/**
+		 * Processes the request on a worker thread
+		 */
+		@Override
+		public void run() {
+			PooledOutputStream body = new PooledOutputStream(buffers.acquire());
+			int status = -1;
+			try {
+				status = process(buffer, headerLength, contentLength, body);
+			} catch (RuntimeException e) {
+				log.error("Failed to process SOAP request", e);
+				body.reset();
+				status = writeFault(body, "Server", "Internal error");
+			} finally {
+				// the connection must always be handed back to the selector
+				if (status < 0) {
+					body.reset();
+					status = 500;
+				}
+				responseBody = body;
+				response = new ByteBuffer[] {
+						ByteBuffer.wrap(makeHeader(status, body.size(), keepAlive)),
+						ByteBuffer.wrap(body.getBuffer(), 0, body.size())
+				};
+				completed.add(this);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Starts writing the response prepared by a worker
+		 */
+		void respond() {
+			processing = false;
+			if (!key.isValid()) {
+				release();
+				return;
+			}
+			try {
+				key.interestOps(SelectionKey.OP_WRITE);
+				write();
+			} catch (IOException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Closing connection after I/O error", e);
+				}
+				close();
+			}
+		}
+
+		private void error(int status) throws IOException {
+			keepAlive = false;
+			response = new ByteBuffer[] {ByteBuffer.wrap(makeHeader(status, 0, false))};
+			key.interestOps(SelectionKey.OP_WRITE);
+			write();
+		}
+
+		void write() throws IOException {
+			channel.write(response);
+			if (response[response.length - 1].hasRemaining()) {
+				return;
+			}
+			releaseResponse();
+			lastActive = System.currentTimeMillis();
+			if (!keepAlive) {
+				close();
+				return;
+			}
+			int requestLength = headerLength + contentLength;
+			length -= requestLength;
+			if (buffer.length != BUFFER_SIZE && length <= BUFFER_SIZE) {
+				byte[] pooled = buffers.acquire();
+				System.arraycopy(buffer, requestLength, pooled, 0, length);
+				buffer = pooled;
+			} else {
+				System.arraycopy(buffer, requestLength, buffer, 0, length);
+			}
+			headerLength = 0;
+			contentLength = 0;
+			key.interestOps(SelectionKey.OP_READ);
+			if (length > 0) {
+				parse();
+			}
+		}
+
+		private void releaseResponse() {
+			if (responseBody != null) {
+				buffers.release(responseBody.getBuffer());
+				responseBody = null;
+			}
+			response = null;
+		}
+
+		private void release() {
+			releaseResponse();
+			if (buffer != null) {
+				buffers.release(buffer);
+				buffer = null;
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (connections-- == maxConnections && serverKey.isValid()) {
+				serverKey.interestOps(SelectionKey.OP_ACCEPT);
+			}
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Failed to close connection", e);
+			}
+			// the worker still uses the buffers
+			if (!processing) {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * A {@link ByteArrayOutputStream} writing into a pooled buffer
+	 */
+	private static final class PooledOutputStream extends ByteArrayOutputStream
+	{
+		PooledOutputStream(byte[] buffer) {
+			super(0);
+			this.buf = buffer;
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * A bounded pool of equally sized byte arrays
+	 */
+	private static final class BufferPool
+	{
+		private final int bufferSize;
+		private final int maxBuffers;
+		private final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		BufferPool(int bufferSize, int maxBuffers) {
+			this.bufferSize = bufferSize;
+			this.maxBuffers = maxBuffers;
+		}
+
+		byte[] acquire() {
+			byte[] buffer = pool.poll();
+			if (buffer == null) {
+				return new byte[bufferSize];
+			}
+			size.decrementAndGet();
+			return buffer;
+		}
+
+		/**
+		 * Returns the given buffer to the pool, buffers of other
+		 * than pooled size are left to the garbage collector
+		 */
+		void release(byte[] buffer) {
+			if (buffer.length != bufferSize) {
+				return;
+			}
+			if (size.incrementAndGet() > maxBuffers) {
+				size.decrementAndGet();
+				return;
+			}
+			pool.offer(buffer);
+		}
+	}
+}
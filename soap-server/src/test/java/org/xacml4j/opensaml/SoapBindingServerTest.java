@@ -0,0 +1,431 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+public class SoapBindingServerTest {
+
+	private static BasicParserPool parserPool;
+	private static byte[] soapRequest;
+
+	private OpenSamlEndpoint endpoint;
+	private SoapBindingServer server;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+		InputStream in = SoapBindingServerTest.class.getResourceAsStream("/TestXacmlSamlRequest-nosignature.xml");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			out.write(ascii("<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+					"<soap11:Body>"));
+			OpenSamlObjectBuilder.serialize(parserPool.parse(in).getDocumentElement(), out);
+			out.write(ascii("</soap11:Body></soap11:Envelope>"));
+		} finally {
+			in.close();
+		}
+		soapRequest = out.toByteArray();
+	}
+
+	@Before
+	public void start() throws Exception {
+		endpoint = mock(OpenSamlEndpoint.class);
+		when(endpoint.handle(any(RequestAbstractType.class))).thenAnswer(new Answer<Response>() {
+			@Override
+			public Response answer(InvocationOnMock invocation) {
+				RequestAbstractType request = (RequestAbstractType) invocation.getArguments()[0];
+				Response response = OpenSamlObjectBuilder.makeResponse(request,
+						OpenSamlObjectBuilder.makeStatus(StatusCode.SUCCESS_URI));
+				response.setIssuer(OpenSamlObjectBuilder.makeIssuer("https://idp.example.com/"));
+				return response;
+			}
+		});
+		server = new SoapBindingServer(endpoint);
+		server.setAddress(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		server.setWorkerThreads(2);
+		server.setMaxRequestSize(64 * 1024);
+		server.start();
+	}
+
+	@After
+	public void stop() {
+		server.stop();
+	}
+
+	@Test
+	public void testSoapRequest() throws Exception {
+		Socket socket = connect();
+		try {
+			HttpResponse response = exchange(socket, post(soapRequest, null));
+
+			assertThat(response.status, is(200));
+			assertThat(response.headers.get("content-type"), is("text/xml; charset=utf-8"));
+			Response samlResponse = parseResponse(response.body);
+			assertThat(samlResponse.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+			ArgumentCaptor<RequestAbstractType> request = ArgumentCaptor.forClass(RequestAbstractType.class);
+			verify(endpoint).handle(request.capture());
+			assertThat(request.getValue(), instanceOf(XACMLAuthzDecisionQueryType.class));
+			assertThat(samlResponse.getInResponseTo(), is(request.getValue().getID()));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testKeepAliveWithPipelinedRequests() throws Exception {
+		Socket socket = connect();
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(post(soapRequest, null));
+			out.write(post(soapRequest, null));
+			out.flush();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			HttpResponse first = HttpResponse.read(in);
+			HttpResponse second = HttpResponse.read(in);
+			HttpResponse third = exchange(socket, post(soapRequest, "close"));
+
+			assertThat(first.status, is(200));
+			assertThat(first.headers.get("connection"), is("keep-alive"));
+			assertThat(second.status, is(200));
+			assertThat(third.status, is(200));
+			assertThat(third.headers.get("connection"), is("close"));
+			assertThat(in.read(), is(-1));
+			verify(endpoint, times(3)).handle(any(RequestAbstractType.class));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentClients() throws Exception {
+		ExecutorService clients = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+			for (int i = 0; i < 8; i++) {
+				tasks.add(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						Socket socket = connect();
+						try {
+							int succeeded = 0;
+							for (int j = 0; j < 25; j++) {
+								if (exchange(socket, post(soapRequest, null)).status == 200) {
+									succeeded++;
+								}
+							}
+							return succeeded;
+						} finally {
+							socket.close();
+						}
+					}
+				});
+			}
+			int succeeded = 0;
+			for (Future<Integer> f : clients.invokeAll(tasks)) {
+				succeeded += f.get();
+			}
+			assertThat(succeeded, is(200));
+		} finally {
+			clients.shutdown();
+		}
+	}
+
+	@Test
+	public void testRequestTooLarge() throws Exception {
+		Socket socket = connect();
+		try {
+			HttpResponse response = exchange(socket, post(new byte[128 * 1024], null));
+
+			assertThat(response.status, is(413));
+			assertThat(socket.getInputStream().read(), is(-1));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLargeRequestReceivedInChunks() throws Exception {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(soapRequest);
+		while (body.size() < 48 * 1024) {
+			body.write(' ');
+		}
+		byte[] request = post(body.toByteArray(), null);
+		Socket socket = connect();
+		try {
+			OutputStream out = socket.getOutputStream();
+			for (int offset = 0; offset < request.length; offset += 5000) {
+				out.write(request, offset, Math.min(5000, request.length - offset));
+				out.flush();
+				Thread.sleep(10);
+			}
+			HttpResponse response = HttpResponse.read(new DataInputStream(socket.getInputStream()));
+
+			assertThat(response.status, is(200));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testMaxConnections() throws Exception {
+		server.stop();
+		server = new SoapBindingServer(endpoint);
+		server.setAddress(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		server.setMaxConnections(1);
+		server.start();
+		Socket first = connect();
+		Socket second = connect();
+		try {
+			assertThat(exchange(first, post(soapRequest, null)).status, is(200));
+			second.getOutputStream().write(post(soapRequest, null));
+			second.setSoTimeout(500);
+			try {
+				second.getInputStream().read();
+				fail();
+			} catch (SocketTimeoutException e) {
+				// not accepted while the first connection is open
+			}
+			first.close();
+			second.setSoTimeout(10000);
+
+			HttpResponse response = HttpResponse.read(new DataInputStream(second.getInputStream()));
+
+			assertThat(response.status, is(200));
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testMethodNotAllowed() throws Exception {
+		Socket socket = connect();
+		try {
+			HttpResponse response = exchange(socket, ascii("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+
+			assertThat(response.status, is(405));
+			assertThat(response.headers.get("allow"), is("POST"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLengthRequired() throws Exception {
+		Socket socket = connect();
+		try {
+			HttpResponse response = exchange(socket, ascii("POST / HTTP/1.1\r\nHost: localhost\r\n" +
+					"Transfer-Encoding: chunked\r\n\r\n0\r\n\r\n"));
+
+			assertThat(response.status, is(411));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testMalformedEnvelope() throws Exception {
+		Socket socket = connect();
+		try {
+			HttpResponse malformed = exchange(socket, post(ascii("<soap11:Envelope"), null));
+			HttpResponse notSoap = exchange(socket, post(ascii("<a/>"), null));
+
+			assertThat(malformed.status, is(500));
+			assertThat(new String(malformed.body, "UTF-8"), containsString("soap11:Client"));
+			assertThat(notSoap.status, is(500));
+			assertThat(new String(notSoap.body, "UTF-8"), containsString("soap11:Client"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testDoctypeRejected() throws Exception {
+		byte[] request = ascii("<!DOCTYPE x [<!ENTITY e SYSTEM \"file:///etc/passwd\">]>"
+				+ new String(soapRequest, "ISO-8859-1").replace("https://sp.example.com/<", "https://sp.example.com/&e;<"));
+		Socket socket = connect();
+		try {
+			HttpResponse response = exchange(socket, post(request, null));
+
+			assertThat(response.status, is(500));
+			assertThat(new String(response.body, "UTF-8"), containsString("soap11:Client"));
+			verify(endpoint, never()).handle(any(RequestAbstractType.class));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testMalformedIssueInstant() throws Exception {
+		byte[] request = ascii(new String(soapRequest, "ISO-8859-1")
+				.replaceFirst("IssueInstant=\"[^\"]*\"", "IssueInstant=\"x\""));
+		Socket socket = connect();
+		try {
+			HttpResponse malformed = exchange(socket, post(request, null));
+			HttpResponse valid = exchange(socket, post(soapRequest, null));
+
+			assertThat(malformed.status, is(500));
+			assertThat(new String(malformed.body, "UTF-8"), containsString("soap11:Client"));
+			assertThat(valid.status, is(200));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testEndpointFailure() throws Exception {
+		when(endpoint.handle(any(RequestAbstractType.class))).thenThrow(new IllegalStateException("failure"));
+		Socket socket = connect();
+		try {
+			HttpResponse response = exchange(socket, post(soapRequest, null));
+
+			assertThat(response.status, is(500));
+			assertThat(new String(response.body, "UTF-8"), containsString("soap11:Server"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.setSoTimeout(10000);
+		socket.connect(server.getLocalAddress());
+		return socket;
+	}
+
+	private static HttpResponse exchange(Socket socket, byte[] request) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(request);
+		out.flush();
+		return HttpResponse.read(new DataInputStream(socket.getInputStream()));
+	}
+
+	private static byte[] post(byte[] body, String connection) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(ascii("POST /saml HTTP/1.1\r\n" +
+				"Host: localhost\r\n" +
+				"Content-Type: text/xml; charset=utf-8\r\n" +
+				"SOAPAction: \"http://www.oasis-open.org/committees/security\"\r\n" +
+				((connection != null) ? "Connection: " + connection + "\r\n" : "") +
+				"Content-Length: " + body.length + "\r\n\r\n"));
+		out.write(body);
+		return out.toByteArray();
+	}
+
+	private static Response parseResponse(byte[] body) throws Exception {
+		Element envelope = parserPool.parse(new ByteArrayInputStream(body)).getDocumentElement();
+		Element response = XMLHelper.getFirstChildElement(XMLHelper.getFirstChildElement(envelope));
+		return OpenSamlObjectBuilder.unmarshall(response);
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class HttpResponse {
+
+		int status;
+		final Map<String, String> headers = new HashMap<String, String>();
+		byte[] body;
+
+		static HttpResponse read(DataInputStream in) throws IOException {
+			HttpResponse response = new HttpResponse();
+			response.status = Integer.parseInt(readLine(in).split(" ")[1]);
+			String line;
+			while ((line = readLine(in)).length() > 0) {
+				int colon = line.indexOf(':');
+				response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+			response.body = new byte[Integer.parseInt(response.headers.get("content-length"))];
+			in.readFully(response.body);
+			return response;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder b = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0) {
+					throw new IOException("Connection closed");
+				}
+				if (c != '\r') {
+					b.append((char) c);
+				}
+			}
+			return b.toString();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xacml4j.v30.ResponseContext;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Processes XACML authorization decision queries asynchronously on a caller
+ * supplied {@link Executor}. Each query goes through three stages, each one
+ * submitted to the executor as a separate task: request validation
+ * (including signature validation), PDP evaluation and response signing.
+ * A slow {@link org.xacml4j.v30.pdp.PolicyDecisionPoint} therefore does
+ * not block the calling (i.e. servlet container) thread.
+ */
+public class AsyncXACMLAuthzDecisionQueryEndpoint implements AsyncOpenSamlEndpoint {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncXACMLAuthzDecisionQueryEndpoint.class);
+
+	private final XACMLAuthzDecisionQueryEndpoint endpoint;
+	private final Executor executor;
+
+	public AsyncXACMLAuthzDecisionQueryEndpoint(XACMLAuthzDecisionQueryEndpoint endpoint,
+			Executor executor) {
+		this.endpoint = checkNotNull(endpoint, "'endpoint' is null.");
+		this.executor = checkNotNull(executor, "'executor' is null.");
+	}
+
+	/**
+	 * Creates an executor which runs each task in a new virtual thread
+	 * on JDKs supporting virtual threads, falls back to a cached thread
+	 * pool otherwise.
+	 *
+	 * @return an executor service suitable for asynchronous endpoints
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Virtual threads are not supported, using cached thread pool", e);
+			}
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	@Override
+	public ListenableFuture<Response> handle(RequestAbstractType request) {
+		checkNotNull(request, "'request' is null.");
+		SettableFuture<Response> response = SettableFuture.create();
+		execute(new ValidationStage(request, response), request, response);
+		return response;
+	}
+
+	private void execute(Runnable stage, RequestAbstractType request, SettableFuture<Response> response) {
+		try {
+			executor.execute(stage);
+		} catch (RejectedExecutionException e) {
+			fail(request, response, e);
+		}
+	}
+
+	/**
+	 * Completes the given future with an internal error response, or
+	 * exceptionally if even the error response can not be created, so
+	 * that the caller never waits for a response which never comes.
+	 */
+	private void fail(RequestAbstractType request, SettableFuture<Response> response, Throwable e) {
+		try {
+			response.set(endpoint.makeInternalErrorResponse(request, e));
+		} catch (RuntimeException ex) {
+			log.error("Failed to create an error response", ex);
+			response.setException(e);
+		}
+	}
+
+	private final class ValidationStage implements Runnable {
+
+		private final RequestAbstractType request;
+		private final SettableFuture<Response> response;
+
+		ValidationStage(RequestAbstractType request, SettableFuture<Response> response) {
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			Response error;
+			try {
+				error = endpoint.validate(request);
+			} catch (Exception e) {
+				fail(request, response, e);
+				return;
+			}
+			if (error != null) {
+				response.set(error);
+				return;
+			}
+			execute(new EvaluationStage((XACMLAuthzDecisionQueryType) request, response),
+					request, response);
+		}
+	}
+
+	private final class EvaluationStage implements Runnable {
+
+		private final XACMLAuthzDecisionQueryType request;
+		private final SettableFuture<Response> response;
+
+		EvaluationStage(XACMLAuthzDecisionQueryType request, SettableFuture<Response> response) {
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			ResponseContext decision;
+			try {
+				decision = endpoint.evaluate(request);
+			} catch (Exception e) {
+				fail(request, response, e);
+				return;
+			}
+			execute(new SigningStage(request, decision, response), request, response);
+		}
+	}
+
+	private final class SigningStage implements Runnable {
+
+		private final XACMLAuthzDecisionQueryType request;
+		private final ResponseContext decision;
+		private final SettableFuture<Response> response;
+
+		SigningStage(XACMLAuthzDecisionQueryType request, ResponseContext decision,
+				SettableFuture<Response> response) {
+			this.request = request;
+			this.decision = decision;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			try {
+				response.set(endpoint.respond(request, decision));
+			} catch (Exception e) {
+				fail(request, response, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.CredentialResolver;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.KeyAlgorithmCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A {@link CredentialResolver} which caches credentials resolved by the
+ * delegate resolver per entity ID, role, protocol, usage and key algorithm.
+ * Cached credentials are discarded whenever the underlying metadata
+ * provider signals a change.
+ * <p>
+ * Entity IDs come from requests which are not yet authenticated, so the
+ * cache is bounded and lookups without any credential are not cached.
+ * <p>
+ * Only lookups made with entity ID, metadata, usage and key algorithm
+ * criteria are cached, anything else is passed to the delegate as is.
+ */
+public class CachingMetadataCredentialResolver implements CredentialResolver {
+
+	private static final Logger log = LoggerFactory.getLogger(CachingMetadataCredentialResolver.class);
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+	private final CredentialResolver delegate;
+	private final Cache<CacheKey, ImmutableList<Credential>> cache;
+
+	/**
+	 * Incremented on each invalidation, credentials loaded from
+	 * an older metadata generation are not kept in the cache
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	public CachingMetadataCredentialResolver(CredentialResolver delegate, MetadataProvider metadata) {
+		this(delegate, metadata, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	public CachingMetadataCredentialResolver(CredentialResolver delegate, MetadataProvider metadata,
+			long maximumSize) {
+		this.delegate = checkNotNull(delegate, "'delegate' is null.");
+		checkNotNull(metadata, "'metadata' is null.");
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.build();
+		if (metadata instanceof ObservableMetadataProvider) {
+			((ObservableMetadataProvider) metadata).getObservers().add(new ObservableMetadataProvider.Observer() {
+				@Override
+				public void onEvent(MetadataProvider provider) {
+					invalidateAll();
+				}
+			});
+		} else {
+			log.warn("Metadata provider is not observable, cached credentials will not be refreshed");
+		}
+	}
+
+	/**
+	 * Discards all cached credentials
+	 */
+	public void invalidateAll() {
+		if (log.isDebugEnabled()) {
+			log.debug("Discarding cached metadata credentials");
+		}
+		generation.incrementAndGet();
+		cache.invalidateAll();
+	}
+
+	long size() {
+		return cache.size();
+	}
+
+	@Override
+	public Iterable<Credential> resolve(final CriteriaSet criteriaSet) throws SecurityException {
+		CacheKey key = CacheKey.create(criteriaSet);
+		if (key == null) {
+			return delegate.resolve(criteriaSet);
+		}
+		long loadedGeneration = generation.get();
+		ImmutableList<Credential> credentials;
+		try {
+			credentials = cache.get(key, new Callable<ImmutableList<Credential>>() {
+				@Override
+				public ImmutableList<Credential> call() throws SecurityException, NoCredentialsException {
+					ImmutableList<Credential> resolved = ImmutableList.copyOf(delegate.resolve(criteriaSet));
+					if (resolved.isEmpty()) {
+						throw new NoCredentialsException();
+					}
+					return resolved;
+				}
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof NoCredentialsException) {
+				return ImmutableList.of();
+			}
+			Throwables.propagateIfInstanceOf(e.getCause(), SecurityException.class);
+			throw Throwables.propagate(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+		if (generation.get() != loadedGeneration) {
+			// metadata changed while loading, the credentials may be stale
+			cache.invalidate(key);
+		}
+		return credentials;
+	}
+
+	@Override
+	public Credential resolveSingle(CriteriaSet criteriaSet) throws SecurityException {
+		Iterator<Credential> it = resolve(criteriaSet).iterator();
+		return it.hasNext() ? it.next() : null;
+	}
+
+	/**
+	 * Signals an empty lookup result, which is not cached
+	 */
+	private static final class NoCredentialsException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static final class CacheKey {
+
+		private final String entityId;
+		private final QName role;
+		private final String protocol;
+		private final UsageType usage;
+		private final String keyAlgorithm;
+
+		private CacheKey(String entityId, QName role, String protocol, UsageType usage, String keyAlgorithm) {
+			this.entityId = entityId;
+			this.role = role;
+			this.protocol = protocol;
+			this.usage = usage;
+			this.keyAlgorithm = keyAlgorithm;
+		}
+
+		static CacheKey create(CriteriaSet criteriaSet) {
+			if (criteriaSet == null) {
+				return null;
+			}
+			EntityIDCriteria entityId = criteriaSet.get(EntityIDCriteria.class);
+			MetadataCriteria metadata = criteriaSet.get(MetadataCriteria.class);
+			if (entityId == null || metadata == null) {
+				return null;
+			}
+			UsageCriteria usage = criteriaSet.get(UsageCriteria.class);
+			KeyAlgorithmCriteria keyAlgorithm = criteriaSet.get(KeyAlgorithmCriteria.class);
+			int expectedSize = 2 + (usage != null ? 1 : 0) + (keyAlgorithm != null ? 1 : 0);
+			if (criteriaSet.size() != expectedSize) {
+				return null;
+			}
+			return new CacheKey(
+					entityId.getEntityID(),
+					metadata.getRole(),
+					metadata.getProtocol(),
+					usage != null ? usage.getUsage() : null,
+					keyAlgorithm != null ? keyAlgorithm.getKeyAlgorithm() : null);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(entityId, role, protocol, usage, keyAlgorithm);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey k = (CacheKey) o;
+			return Objects.equal(entityId, k.entityId)
+					&& Objects.equal(role, k.role)
+					&& Objects.equal(protocol, k.protocol)
+					&& Objects.equal(usage, k.usage)
+					&& Objects.equal(keyAlgorithm, k.keyAlgorithm);
+		}
+	}
+}
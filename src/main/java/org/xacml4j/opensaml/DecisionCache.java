@@ -0,0 +1,201 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.xacml4j.v30.Attribute;
+import org.xacml4j.v30.AttributeExp;
+import org.xacml4j.v30.Category;
+import org.xacml4j.v30.Entity;
+import org.xacml4j.v30.RequestContext;
+import org.xacml4j.v30.ResponseContext;
+import org.xacml4j.v30.types.TypeToString;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * A bounded cache of PDP decisions keyed by a stable digest of the
+ * {@link RequestContext}. Entries are evicted once the cache reaches its
+ * maximum size or when they are older than the configured time to live.
+ * <p>
+ * Requests carrying XML content or attribute values without a known
+ * string representation are never cached.
+ */
+public class DecisionCache {
+
+	private static final HashFunction digestFunction = Hashing.sha256();
+
+	private final Cache<HashCode, ResponseContext> cache;
+
+	/**
+	 * Creates a decision cache
+	 *
+	 * @param maximumSize maximum number of cached decisions
+	 * @param timeToLive time to live of a cached decision
+	 * @param unit time unit of the {@code timeToLive}
+	 */
+	public DecisionCache(long maximumSize, long timeToLive, TimeUnit unit) {
+		checkArgument(maximumSize > 0, "'maximumSize' must be positive.");
+		checkArgument(timeToLive > 0, "'timeToLive' must be positive.");
+		checkNotNull(unit, "'unit' is null.");
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(timeToLive, unit)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Gets a cached decision for the given request
+	 *
+	 * @param key a request digest, see {@link #digest(RequestContext)}
+	 * @return a cached decision or {@code null}
+	 */
+	public ResponseContext get(HashCode key) {
+		return cache.getIfPresent(key);
+	}
+
+	/**
+	 * Caches given decision
+	 *
+	 * @param key a request digest, see {@link #digest(RequestContext)}
+	 * @param decision a decision
+	 */
+	public void put(HashCode key, ResponseContext decision) {
+		cache.put(key, decision);
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return cache.stats().hitCount();
+	}
+
+	public long getMissCount() {
+		return cache.stats().missCount();
+	}
+
+	/**
+	 * Computes a digest of the given request. The digest does not depend
+	 * on the order of categories, attributes or attribute values.
+	 *
+	 * @param request a request
+	 * @return a request digest or {@code null} if request can not be cached
+	 */
+	public static HashCode digest(RequestContext request) {
+		List<String> categories = new ArrayList<String>(request.getAttributes().size());
+		for (Category category : request.getAttributes()) {
+			String c = canonicalize(category);
+			if (c == null) {
+				return null;
+			}
+			categories.add(c);
+		}
+		Collections.sort(categories);
+		Hasher hasher = digestFunction.newHasher()
+				.putBoolean(request.isReturnPolicyIdList())
+				.putBoolean(request.isCombinedDecision());
+		for (String c : categories) {
+			hasher.putString(c, Charsets.UTF_8);
+		}
+		return hasher.hash();
+	}
+
+	private static String canonicalize(Category category) {
+		Entity entity = category.getEntity();
+		if (entity.getContent() != null) {
+			return null;
+		}
+		List<String> attributes = new ArrayList<String>(entity.getAttributes().size());
+		for (Attribute attribute : entity.getAttributes()) {
+			String a = canonicalize(attribute);
+			if (a == null) {
+				return null;
+			}
+			attributes.add(a);
+		}
+		Collections.sort(attributes);
+		StringBuilder b = new StringBuilder();
+		append(b, category.getCategoryId().getId());
+		append(b, category.getId());
+		for (String a : attributes) {
+			append(b, a);
+		}
+		return b.toString();
+	}
+
+	private static String canonicalize(Attribute attribute) {
+		List<String> values = new ArrayList<String>(attribute.getValues().size());
+		for (AttributeExp value : attribute.getValues()) {
+			Optional<TypeToString> toString = TypeToString.Types.getIndex().get(value.getType());
+			if (!toString.isPresent()) {
+				return null;
+			}
+			StringBuilder b = new StringBuilder();
+			append(b, value.getType().getDataTypeId());
+			append(b, toString.get().toString(value));
+			values.add(b.toString());
+		}
+		Collections.sort(values);
+		StringBuilder b = new StringBuilder();
+		append(b, attribute.getAttributeId());
+		append(b, attribute.getIssuer());
+		b.append(attribute.isIncludeInResult() ? 'T' : 'F');
+		for (String v : values) {
+			append(b, v);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Appends a length prefixed value, so that concatenated values
+	 * can not collide
+	 */
+	private static void append(StringBuilder b, String value) {
+		if (value == null) {
+			b.append("-1:");
+			return;
+		}
+		b.append(value.length()).append(':').append(value);
+	}
+}
@@ -25,32 +25,47 @@ package org.xacml4j.opensaml;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.opensaml.saml2.metadata.AuthzService;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.PDPDescriptor;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
 import org.opensaml.security.MetadataCredentialResolver;
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.CredentialResolver;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
 import org.opensaml.xml.signature.SignatureTrustEngine;
 import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
-import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 public class DefaultIDPConfiguration implements IDPConfiguration
 {
 	private static final String SAML20_PROTOCOL = "urn:oasis:names:tc:SAML:2.0:protocol";
 
-	private final EntityDescriptor localEntity;
+	private static final Logger log = LoggerFactory.getLogger(DefaultIDPConfiguration.class);
+
+	private final String localEntityId;
+	private final MetadataProvider metadata;
 	private final SignatureTrustEngine trustEngine;
 	private final List<Credential> idpSigningCredentials;
 
+	/**
+	 * Local entity and its authorization services indexed by location,
+	 * replaced as a whole on metadata refresh
+	 */
+	private volatile LocalEntity localEntity;
+
 	public DefaultIDPConfiguration(String localEntityId,
 			MetadataProvider metadata,
 			List<Credential> idpSigningCredentials)
@@ -59,10 +74,21 @@ public class DefaultIDPConfiguration implements IDPConfiguration
 		checkNotNull(metadata, "'metadata' is null.");
 		checkNotNull(idpSigningCredentials, "'idpSigningCredentials' is null.");
 		checkArgument(!idpSigningCredentials.isEmpty(), "'idpSigningCredentials' is empty.");
-		this.localEntity = metadata.getEntityDescriptor(localEntityId);
-		Preconditions.checkState(localEntity != null);
+		this.localEntityId = localEntityId;
+		this.metadata = metadata;
+		EntityDescriptor entity = metadata.getEntityDescriptor(localEntityId);
+		Preconditions.checkState(entity != null);
+		this.localEntity = new LocalEntity(entity);
 		this.trustEngine = createDefaultSignatureTrustEngine(metadata);
 		this.idpSigningCredentials = idpSigningCredentials;
+		if (metadata instanceof ObservableMetadataProvider) {
+			((ObservableMetadataProvider) metadata).getObservers().add(new ObservableMetadataProvider.Observer() {
+				@Override
+				public void onEvent(MetadataProvider provider) {
+					refreshLocalEntity();
+				}
+			});
+		}
 	}
 
 	/**
@@ -76,7 +102,7 @@ public class DefaultIDPConfiguration implements IDPConfiguration
 
 	@Override
 	public EntityDescriptor getLocalEntity() {
-		return localEntity;
+		return localEntity.entity;
 	}
 
 	@Override
@@ -87,16 +113,10 @@ public class DefaultIDPConfiguration implements IDPConfiguration
 	@Override
 	public AuthzService getAuthzServiceByLocation(
 			String locationURL){
-		PDPDescriptor pdp = localEntity.getPDPDescriptor(SAML20_PROTOCOL);
-		if(pdp == null){
+		if(locationURL == null){
 			return null;
 		}
-		for(AuthzService s : pdp.getAuthzServices()){
-			if(DatatypeHelper.safeEquals(locationURL, s.getLocation())){
-				return s;
-			}
-		}
-		return null;
+		return localEntity.authzServices.get(locationURL);
 	}
 
 	@Override
@@ -111,10 +131,50 @@ public class DefaultIDPConfiguration implements IDPConfiguration
 		return idpSigningCredentials;
 	}
 
-	private static SignatureTrustEngine createDefaultSignatureTrustEngine(MetadataProvider metadata)
+	private void refreshLocalEntity() {
+		try {
+			EntityDescriptor entity = metadata.getEntityDescriptor(localEntityId);
+			if (entity == null) {
+				log.warn("Local entity=\"{}\" not found in refreshed metadata, keeping previous one",
+						localEntityId);
+				return;
+			}
+			localEntity = new LocalEntity(entity);
+		} catch (MetadataProviderException e) {
+			log.warn("Failed to refresh local entity=\"{}\", keeping previous one", localEntityId, e);
+		}
+	}
+
+	static SignatureTrustEngine createDefaultSignatureTrustEngine(MetadataProvider metadata)
 	{
 		MetadataCredentialResolver mdCredResolver = new MetadataCredentialResolver(metadata);
+		CredentialResolver cachingCredResolver = new CachingMetadataCredentialResolver(mdCredResolver, metadata);
 		KeyInfoCredentialResolver keyInfoCredResolver = Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver();
-		return new ExplicitKeySignatureTrustEngine(mdCredResolver, keyInfoCredResolver);
+		return new ExplicitKeySignatureTrustEngine(cachingCredResolver, keyInfoCredResolver);
+	}
+
+	private static final class LocalEntity
+	{
+		final EntityDescriptor entity;
+		final ImmutableMap<String, AuthzService> authzServices;
+
+		LocalEntity(EntityDescriptor entity) {
+			this.entity = entity;
+			this.authzServices = indexAuthzServices(entity);
+		}
+
+		private static ImmutableMap<String, AuthzService> indexAuthzServices(EntityDescriptor entity) {
+			PDPDescriptor pdp = entity.getPDPDescriptor(SAML20_PROTOCOL);
+			if (pdp == null) {
+				return ImmutableMap.of();
+			}
+			Map<String, AuthzService> index = new LinkedHashMap<String, AuthzService>();
+			for (AuthzService s : pdp.getAuthzServices()) {
+				if (s.getLocation() != null && !index.containsKey(s.getLocation())) {
+					index.put(s.getLocation(), s);
+				}
+			}
+			return ImmutableMap.copyOf(index);
+		}
 	}
 }
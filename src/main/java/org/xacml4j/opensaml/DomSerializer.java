@@ -0,0 +1,114 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Node;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Serializes DOM nodes to UTF-8 encoded XML using thread confined
+ * serializers. Compact output is written directly by a per thread
+ * {@link Utf8DomWriter}, indented output by a per thread JAXP
+ * {@link Transformer} configured once.
+ */
+public final class DomSerializer
+{
+	private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+	private static final ThreadLocal<Utf8DomWriter> writer = new ThreadLocal<Utf8DomWriter>() {
+		@Override
+		protected Utf8DomWriter initialValue() {
+			return new Utf8DomWriter();
+		}
+	};
+
+	private static final ThreadLocal<Transformer> indentingWithDeclaration = new IndentingTransformer(true);
+	private static final ThreadLocal<Transformer> indentingWithoutDeclaration = new IndentingTransformer(false);
+
+	private DomSerializer() {
+	}
+
+	/**
+	 * Serializes given node
+	 *
+	 * @param node a node
+	 * @param out an output stream
+	 * @param indent {@code true} to indent the output
+	 * @param xmlDeclaration {@code true} to start with an XML declaration
+	 * @throws TransformerException if node can not be serialized
+	 */
+	public static void serialize(Node node, OutputStream out, boolean indent, boolean xmlDeclaration)
+			throws TransformerException {
+		Preconditions.checkNotNull(node, "'node' is null.");
+		Preconditions.checkNotNull(out, "'out' is null.");
+		if (!indent) {
+			try {
+				writer.get().write(node, out, xmlDeclaration);
+			} catch (IOException e) {
+				throw new TransformerException(e);
+			}
+			return;
+		}
+		Transformer transformer = (xmlDeclaration ? indentingWithDeclaration : indentingWithoutDeclaration).get();
+		transformer.transform(new DOMSource(node), new StreamResult(out));
+	}
+
+	private static final class IndentingTransformer extends ThreadLocal<Transformer> {
+
+		private final boolean xmlDeclaration;
+
+		IndentingTransformer(boolean xmlDeclaration) {
+			this.xmlDeclaration = xmlDeclaration;
+		}
+
+		@Override
+		protected Transformer initialValue() {
+			Transformer transformer;
+			try {
+				// TransformerFactory is not guaranteed to be thread safe
+				synchronized (transformerFactory) {
+					transformer = transformerFactory.newTransformer();
+				}
+			} catch (TransformerConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, xmlDeclaration ? "no" : "yes");
+			transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+			transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+			return transformer;
+		}
+	}
+}
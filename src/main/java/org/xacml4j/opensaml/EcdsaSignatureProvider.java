@@ -0,0 +1,104 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+
+/**
+ * Exposes the JDK "SHA1withECDSA" signature under the "ECDSAwithSHA1"
+ * name the XML security library uses for ECDSA XML signatures.
+ */
+final class EcdsaSignatureProvider extends Provider
+{
+	private static final long serialVersionUID = 1L;
+
+	static final String NAME = "XACML4J-ECDSA";
+	static final String ALGORITHM = "ECDSAwithSHA1";
+
+	EcdsaSignatureProvider() {
+		super(NAME, 1.0, "ECDSAwithSHA1 alias of the SHA1withECDSA signature");
+		put("Signature." + ALGORITHM, SHA1withECDSA.class.getName());
+	}
+
+	/**
+	 * Delegates to the "SHA1withECDSA" signature of the installed providers
+	 */
+	public static final class SHA1withECDSA extends SignatureSpi
+	{
+		private final Signature delegate;
+
+		public SHA1withECDSA() throws NoSuchAlgorithmException {
+			this.delegate = Signature.getInstance("SHA1withECDSA");
+		}
+
+		@Override
+		protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+			delegate.initVerify(publicKey);
+		}
+
+		@Override
+		protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+			delegate.initSign(privateKey);
+		}
+
+		@Override
+		protected void engineUpdate(byte b) throws SignatureException {
+			delegate.update(b);
+		}
+
+		@Override
+		protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+			delegate.update(b, off, len);
+		}
+
+		@Override
+		protected byte[] engineSign() throws SignatureException {
+			return delegate.sign();
+		}
+
+		@Override
+		protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+			return delegate.verify(sigBytes);
+		}
+
+		@Override
+		@Deprecated
+		protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+			throw new InvalidParameterException("Parameters are not supported");
+		}
+
+		@Override
+		@Deprecated
+		protected Object engineGetParameter(String param) throws InvalidParameterException {
+			throw new InvalidParameterException("Parameters are not supported");
+		}
+	}
+}
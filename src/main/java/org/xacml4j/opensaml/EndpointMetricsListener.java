@@ -0,0 +1,74 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Receives per stage timings and per issuer outcomes from
+ * {@link XACMLAuthzDecisionQueryEndpoint}. Implementations are invoked
+ * on the request processing threads and must be thread safe and cheap.
+ */
+public interface EndpointMetricsListener
+{
+	/**
+	 * Request processing stages
+	 */
+	enum Stage
+	{
+		SIGNATURE_PROFILE_VALIDATION,
+		TRUST_ENGINE_VALIDATION,
+		DESTINATION_CHECK,
+		REQUEST_MARSHALLING,
+		PDP_DECIDE,
+		RESPONSE_BUILDING,
+		SIGNING
+	}
+
+	/**
+	 * Request processing outcomes
+	 */
+	enum Outcome
+	{
+		SUCCESS,
+		INVALID_REQUEST,
+		BAD_SIGNATURE,
+		INTERNAL_ERROR
+	}
+
+	/**
+	 * Invoked when a processing stage completed normally.
+	 *
+	 * @param stage a processing stage
+	 * @param durationNanos a stage duration in nanoseconds
+	 */
+	void stageCompleted(Stage stage, long durationNanos);
+
+	/**
+	 * Invoked once per processed request.
+	 *
+	 * @param issuer a request issuer, may be {@code null} if the request
+	 *        has no issuer. Not authenticated unless the outcome is
+	 *        {@link Outcome#SUCCESS} and signature validation is enabled
+	 * @param outcome a request processing outcome
+	 */
+	void requestCompleted(String issuer, Outcome outcome);
+}
@@ -0,0 +1,147 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * An in-process {@link EndpointMetricsListener} keeping a
+ * {@link LatencyHistogram} per processing stage and outcome counters per
+ * issuer. Issuers of failed requests are not authenticated, the number of
+ * distinct tracked issuers is therefore bounded, outcomes of any further
+ * issuers are counted under {@link #OTHER_ISSUERS}.
+ */
+public class HistogramEndpointMetricsListener implements EndpointMetricsListener
+{
+	/**
+	 * Issuer key for requests without issuer
+	 */
+	public static final String UNKNOWN_ISSUER = "";
+
+	/**
+	 * Issuer key for issuers beyond the tracked issuers limit
+	 */
+	public static final String OTHER_ISSUERS = "*";
+
+	private static final int DEFAULT_MAX_ISSUERS = 1024;
+
+	private final Map<Stage, LatencyHistogram> stages;
+	private final ConcurrentMap<String, AtomicLongArray> outcomes;
+	private final int maxIssuers;
+
+	public HistogramEndpointMetricsListener() {
+		this(DEFAULT_MAX_ISSUERS);
+	}
+
+	public HistogramEndpointMetricsListener(int maxIssuers) {
+		checkArgument(maxIssuers > 0, "'maxIssuers' must be positive.");
+		this.maxIssuers = maxIssuers;
+		this.stages = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+		for (Stage stage : Stage.values()) {
+			stages.put(stage, new LatencyHistogram());
+		}
+		this.outcomes = new ConcurrentHashMap<String, AtomicLongArray>();
+	}
+
+	@Override
+	public void stageCompleted(Stage stage, long durationNanos) {
+		stages.get(stage).record(durationNanos);
+	}
+
+	@Override
+	public void requestCompleted(String issuer, Outcome outcome) {
+		getOutcomes(issuer).incrementAndGet(outcome.ordinal());
+	}
+
+	/**
+	 * Gets the latency histogram of the given stage
+	 *
+	 * @param stage a processing stage
+	 * @return a latency histogram in nanoseconds
+	 */
+	public LatencyHistogram getHistogram(Stage stage) {
+		return stages.get(checkNotNull(stage, "'stage' is null."));
+	}
+
+	/**
+	 * Gets the number of requests of the given issuer completed with the
+	 * given outcome
+	 *
+	 * @param issuer an issuer, {@link #UNKNOWN_ISSUER} or {@link #OTHER_ISSUERS}
+	 * @param outcome an outcome
+	 * @return a number of requests
+	 */
+	public long getOutcomeCount(String issuer, Outcome outcome) {
+		checkNotNull(outcome, "'outcome' is null.");
+		AtomicLongArray counts = outcomes.get((issuer == null) ? UNKNOWN_ISSUER : issuer);
+		return (counts == null) ? 0 : counts.get(outcome.ordinal());
+	}
+
+	/**
+	 * Gets the number of requests of all issuers completed with the given outcome
+	 *
+	 * @param outcome an outcome
+	 * @return a number of requests
+	 */
+	public long getOutcomeCount(Outcome outcome) {
+		checkNotNull(outcome, "'outcome' is null.");
+		long count = 0;
+		for (AtomicLongArray counts : outcomes.values()) {
+			count += counts.get(outcome.ordinal());
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the issuers seen so far
+	 *
+	 * @return a snapshot of the tracked issuers
+	 */
+	public Set<String> getIssuers() {
+		return ImmutableSet.copyOf(outcomes.keySet());
+	}
+
+	private AtomicLongArray getOutcomes(String issuer) {
+		String key = (issuer == null) ? UNKNOWN_ISSUER : issuer;
+		AtomicLongArray counts = outcomes.get(key);
+		if (counts != null) {
+			return counts;
+		}
+		if (outcomes.size() >= maxIssuers) {
+			key = OTHER_ISSUERS;
+		}
+		counts = new AtomicLongArray(Outcome.values().length);
+		AtomicLongArray existing = outcomes.putIfAbsent(key, counts);
+		return (existing != null) ? existing : counts;
+	}
+}
@@ -0,0 +1,239 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.Key;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.Extensions;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.xml.AttributeExtensibleXMLObject;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A {@link SigningCredentialSelector}, that selects the credential with the
+ * cheapest signing key among the credentials whose signature algorithm the
+ * requester supports. Supported signature algorithms are the
+ * {@code alg:SigningMethod} elements (SAML V2.0 Metadata Profile for
+ * Algorithm Support) in the requester entity or SP role metadata extensions.
+ * The algorithm used with each credential is resolved like the endpoint does,
+ * so the signature algorithms configured here must match the ones configured
+ * on the {@link XACMLAuthzDecisionQueryEndpoint}. If the requester does not
+ * advertise any signing method, or no credential matches, the selection is
+ * delegated to the fallback selector.
+ * <p>
+ * Supported signature algorithms are cached per requester, in a bounded
+ * cache, until the metadata changes.
+ */
+public class MetadataCapabilitySigningCredentialSelector implements SigningCredentialSelector {
+
+	private static final Logger log = LoggerFactory.getLogger(MetadataCapabilitySigningCredentialSelector.class);
+
+	static final String ALGSUPPORT_NS = "urn:oasis:names:tc:SAML:metadata:algsupport";
+	static final QName SIGNING_METHOD = new QName(ALGSUPPORT_NS, "SigningMethod");
+	private static final QName ALGORITHM_ATTR = new QName("Algorithm");
+
+	public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+	private final MetadataProvider metadata;
+	private final SigningCredentialSelector fallback;
+	private final Cache<String, ImmutableSet<String>> signingMethods;
+	private final AtomicLong generation = new AtomicLong();
+	private volatile SignatureAlgorithms signatureAlgorithms;
+	private volatile Map<Credential, SignatureAlgorithms> credentialSignatureAlgorithms;
+
+	public MetadataCapabilitySigningCredentialSelector(MetadataProvider metadata) {
+		this(metadata, AlwaysFirstSigningCredentialSelector.instance());
+	}
+
+	public MetadataCapabilitySigningCredentialSelector(MetadataProvider metadata,
+			SigningCredentialSelector fallback) {
+		this.metadata = checkNotNull(metadata, "'metadata' is null.");
+		this.fallback = checkNotNull(fallback, "'fallback' is null.");
+		this.signingMethods = CacheBuilder.newBuilder()
+				.maximumSize(DEFAULT_MAXIMUM_SIZE)
+				.build();
+		this.credentialSignatureAlgorithms = Collections.emptyMap();
+		if (metadata instanceof ObservableMetadataProvider) {
+			((ObservableMetadataProvider) metadata).getObservers().add(new ObservableMetadataProvider.Observer() {
+				@Override
+				public void onEvent(MetadataProvider provider) {
+					generation.incrementAndGet();
+					signingMethods.invalidateAll();
+				}
+			});
+		} else {
+			log.warn("Metadata provider is not observable, cached signing methods will not be refreshed");
+		}
+	}
+
+	/**
+	 * Sets the signature algorithms used with credentials supporting them,
+	 * see {@link XACMLAuthzDecisionQueryEndpoint#setSignatureAlgorithms(SignatureAlgorithms)}
+	 *
+	 * @param signatureAlgorithms signature algorithms or {@code null}
+	 */
+	public void setSignatureAlgorithms(SignatureAlgorithms signatureAlgorithms) {
+		this.signatureAlgorithms = signatureAlgorithms;
+	}
+
+	/**
+	 * Sets the signature algorithms used with specific credentials, see
+	 * {@link XACMLAuthzDecisionQueryEndpoint#setCredentialSignatureAlgorithms(Map)}
+	 *
+	 * @param credentialSignatureAlgorithms signature algorithms by credential
+	 */
+	public void setCredentialSignatureAlgorithms(
+			Map<Credential, SignatureAlgorithms> credentialSignatureAlgorithms) {
+		checkNotNull(credentialSignatureAlgorithms, "'credentialSignatureAlgorithms' is null.");
+		this.credentialSignatureAlgorithms = ImmutableMap.copyOf(credentialSignatureAlgorithms);
+	}
+
+	@Override
+	public Credential selectCredential(RequestAbstractType request, Response response,
+			IDPConfiguration idpConfiguration) {
+		List<Credential> credentials = idpConfiguration.getSigningCredentials();
+		if (credentials.size() == 1 || request.getIssuer() == null
+				|| request.getIssuer().getValue() == null) {
+			return fallback.selectCredential(request, response, idpConfiguration);
+		}
+		ImmutableSet<String> supported = getSigningMethods(request.getIssuer().getValue());
+		if (supported.isEmpty()) {
+			return fallback.selectCredential(request, response, idpConfiguration);
+		}
+		Credential cheapest = null;
+		long cheapestCost = Long.MAX_VALUE;
+		for (Credential credential : credentials) {
+			Key key = SecurityHelper.extractSigningKey(credential);
+			if (key == null || !supported.contains(SignatureAlgorithms.resolve(credential,
+					credentialSignatureAlgorithms, signatureAlgorithms).getSignatureAlgorithm())) {
+				continue;
+			}
+			long cost = getSigningCost(key);
+			if (cost < cheapestCost) {
+				cheapest = credential;
+				cheapestCost = cost;
+			}
+		}
+		return (cheapest != null) ? cheapest : fallback.selectCredential(request, response, idpConfiguration);
+	}
+
+	/**
+	 * Gets a rough relative cost of a signature with the given key:
+	 * an RSA private key operation is far more expensive than an ECDSA
+	 * signature of comparable strength.
+	 */
+	private static long getSigningCost(Key key) {
+		if (key instanceof ECKey) {
+			return ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+		}
+		if (key instanceof RSAKey) {
+			return ((RSAKey) key).getModulus().bitLength() * 8L;
+		}
+		return Long.MAX_VALUE - 1;
+	}
+
+	private ImmutableSet<String> getSigningMethods(final String entityId) {
+		long loadedGeneration = generation.get();
+		ImmutableSet<String> algorithms;
+		try {
+			algorithms = signingMethods.get(entityId, new Callable<ImmutableSet<String>>() {
+				@Override
+				public ImmutableSet<String> call() {
+					return resolveSigningMethods(entityId);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+		if (generation.get() != loadedGeneration) {
+			// metadata changed while resolving, the signing methods may be stale
+			signingMethods.invalidate(entityId);
+		}
+		return algorithms;
+	}
+
+	private ImmutableSet<String> resolveSigningMethods(String entityId) {
+		ImmutableSet.Builder<String> algorithms = ImmutableSet.builder();
+		try {
+			EntityDescriptor entity = metadata.getEntityDescriptor(entityId);
+			if (entity == null) {
+				return ImmutableSet.of();
+			}
+			addSigningMethods(entity.getExtensions(), algorithms);
+			SPSSODescriptor role = entity.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+			if (role != null) {
+				addSigningMethods(role.getExtensions(), algorithms);
+			}
+		} catch (MetadataProviderException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to get metadata of entity=\"{}\"", entityId, e);
+			}
+		}
+		return algorithms.build();
+	}
+
+	private static void addSigningMethods(Extensions extensions, ImmutableSet.Builder<String> algorithms) {
+		if (extensions == null) {
+			return;
+		}
+		for (XMLObject signingMethod : extensions.getUnknownXMLObjects(SIGNING_METHOD)) {
+			if (!(signingMethod instanceof AttributeExtensibleXMLObject)) {
+				continue;
+			}
+			String algorithm = ((AttributeExtensibleXMLObject) signingMethod)
+					.getUnknownAttributes().get(ALGORITHM_ATTR);
+			if (algorithm != null) {
+				algorithms.add(algorithm.trim());
+			}
+		}
+	}
+}
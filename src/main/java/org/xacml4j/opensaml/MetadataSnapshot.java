@@ -0,0 +1,603 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.common.CacheableSAMLObject;
+import org.opensaml.saml2.common.Extensions;
+import org.opensaml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml2.metadata.ArtifactResolutionService;
+import org.opensaml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml2.metadata.AssertionIDRequestService;
+import org.opensaml.saml2.metadata.AttributeAuthorityDescriptor;
+import org.opensaml.saml2.metadata.AttributeService;
+import org.opensaml.saml2.metadata.AuthnAuthorityDescriptor;
+import org.opensaml.saml2.metadata.AuthnQueryService;
+import org.opensaml.saml2.metadata.AuthzService;
+import org.opensaml.saml2.metadata.Endpoint;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.IndexedEndpoint;
+import org.opensaml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml2.metadata.ManageNameIDService;
+import org.opensaml.saml2.metadata.NameIDMappingService;
+import org.opensaml.saml2.metadata.PDPDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.SSODescriptor;
+import org.opensaml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.X509Certificate;
+import org.opensaml.xml.signature.X509Data;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A compact binary snapshot of parsed SAML metadata.
+ *
+ * <p>A snapshot keeps the metadata state used for trust evaluation and
+ * endpoint lookups: entity and entity group identifiers, validity, the
+ * SAML 2.0 role descriptors with their supported protocols, endpoints,
+ * extensions and key descriptors with key names, decoded certificates
+ * and public keys. Other content, e.g. organizations, contact persons
+ * or name identifier formats, is not kept.
+ *
+ * <p>A snapshot is keyed by a hash of its source, {@link #read} returns
+ * {@code null} when the snapshot was taken from a different source.
+ * The snapshot content is protected by a CRC-32 checksum against
+ * accidental corruption.
+ */
+public final class MetadataSnapshot
+{
+	private final static Logger log = LoggerFactory.getLogger(MetadataSnapshot.class);
+
+	private final static int MAGIC = 0x584d4453;
+	private final static int VERSION = 2;
+	private final static int MAX_SOURCE_HASH_SIZE = 1024;
+	private final static int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final static byte ENTITY = 1;
+	private final static byte ENTITIES = 2;
+
+	private final static List<QName> ROLES = Arrays.asList(
+			SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+			IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+			PDPDescriptor.DEFAULT_ELEMENT_NAME,
+			AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME,
+			AuthnAuthorityDescriptor.DEFAULT_ELEMENT_NAME);
+
+	private MetadataSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot of the given metadata
+	 *
+	 * @param metadata an {@link EntityDescriptor} or {@link EntitiesDescriptor}
+	 * @param sourceHash a hash of the metadata source
+	 * @param out an output stream
+	 * @throws IOException if an I/O error occurs or metadata can not be written
+	 */
+	public static void write(XMLObject metadata, byte[] sourceHash, OutputStream out)
+			throws IOException {
+		checkNotNull(metadata, "'metadata' is null.");
+		checkNotNull(sourceHash, "'sourceHash' is null.");
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		DataOutputStream content = new DataOutputStream(payload);
+		if (metadata instanceof EntityDescriptor) {
+			content.writeByte(ENTITY);
+			writeEntity(content, (EntityDescriptor) metadata);
+		} else if (metadata instanceof EntitiesDescriptor) {
+			content.writeByte(ENTITIES);
+			writeEntities(content, (EntitiesDescriptor) metadata);
+		} else {
+			throw new IOException("Unsupported metadata=\"" + metadata.getElementQName() + "\"");
+		}
+		content.flush();
+		byte[] bytes = payload.toByteArray();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		writeBytes(data, sourceHash);
+		data.writeInt(bytes.length);
+		data.writeLong(checksum(bytes));
+		data.write(bytes);
+		data.flush();
+	}
+
+	/**
+	 * Reads a snapshot
+	 *
+	 * @param in an input stream
+	 * @param sourceHash a hash of the current metadata source
+	 * @param parserPool a parser pool used to parse metadata extensions
+	 * @return metadata or {@code null} if the snapshot was
+	 *         not taken from the given source
+	 * @throws IOException if an I/O error occurs or the snapshot is corrupted
+	 */
+	public static XMLObject read(InputStream in, byte[] sourceHash, ParserPool parserPool)
+			throws IOException {
+		checkNotNull(sourceHash, "'sourceHash' is null.");
+		checkNotNull(parserPool, "'parserPool' is null.");
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+			throw new IOException("Not a metadata snapshot");
+		}
+		if (!Arrays.equals(readBytes(data, MAX_SOURCE_HASH_SIZE), sourceHash)) {
+			return null;
+		}
+		int length = data.readInt();
+		long checksum = data.readLong();
+		if (length < 0) {
+			throw new IOException("Corrupted metadata snapshot");
+		}
+		// the buffer grows with the data actually read, not with the declared length
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(Math.min(length, INITIAL_BUFFER_SIZE));
+		ByteStreams.copy(ByteStreams.limit(data, length), payload);
+		byte[] bytes = payload.toByteArray();
+		if (bytes.length != length || checksum(bytes) != checksum) {
+			throw new IOException("Corrupted metadata snapshot");
+		}
+		DataInputStream content = new DataInputStream(new ByteArrayInputStream(bytes));
+		try {
+			byte type = content.readByte();
+			if (type == ENTITY) {
+				return readEntity(content, parserPool);
+			}
+			if (type == ENTITIES) {
+				return readEntities(content, parserPool);
+			}
+		} catch (RuntimeException e) {
+			// e.g. an unknown enum constant or an element of an unexpected type
+			throw new IOException("Corrupted metadata snapshot", e);
+		}
+		throw new IOException("Corrupted metadata snapshot");
+	}
+
+	private static long checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private static void writeEntities(DataOutputStream out, EntitiesDescriptor entities)
+			throws IOException {
+		writeString(out, entities.getName());
+		writeString(out, entities.getID());
+		writeTimes(out, entities, entities);
+		writeExtensions(out, entities.getExtensions());
+		out.writeInt(entities.getEntityDescriptors().size());
+		for (EntityDescriptor entity : entities.getEntityDescriptors()) {
+			writeEntity(out, entity);
+		}
+		out.writeInt(entities.getEntitiesDescriptors().size());
+		for (EntitiesDescriptor child : entities.getEntitiesDescriptors()) {
+			writeEntities(out, child);
+		}
+	}
+
+	private static EntitiesDescriptor readEntities(DataInputStream in, ParserPool parserPool)
+			throws IOException {
+		EntitiesDescriptor entities = build(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+		entities.setName(readString(in));
+		entities.setID(readString(in));
+		readTimes(in, entities, entities);
+		entities.setExtensions(readExtensions(in, parserPool));
+		for (int i = in.readInt(); i > 0; i--) {
+			entities.getEntityDescriptors().add(readEntity(in, parserPool));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			entities.getEntitiesDescriptors().add(readEntities(in, parserPool));
+		}
+		return entities;
+	}
+
+	private static void writeEntity(DataOutputStream out, EntityDescriptor entity)
+			throws IOException {
+		writeString(out, entity.getEntityID());
+		writeString(out, entity.getID());
+		writeTimes(out, entity, entity);
+		writeExtensions(out, entity.getExtensions());
+		List<RoleDescriptor> roles = new ArrayList<RoleDescriptor>();
+		for (RoleDescriptor role : entity.getRoleDescriptors()) {
+			if (ROLES.contains(role.getElementQName())) {
+				roles.add(role);
+			} else if (log.isDebugEnabled()) {
+				log.debug("Role=\"{}\" of entity=\"{}\" is not kept in snapshot",
+						role.getElementQName(), entity.getEntityID());
+			}
+		}
+		out.writeInt(roles.size());
+		for (RoleDescriptor role : roles) {
+			writeRole(out, role);
+		}
+	}
+
+	private static EntityDescriptor readEntity(DataInputStream in, ParserPool parserPool)
+			throws IOException {
+		EntityDescriptor entity = build(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+		entity.setEntityID(readString(in));
+		entity.setID(readString(in));
+		readTimes(in, entity, entity);
+		entity.setExtensions(readExtensions(in, parserPool));
+		for (int i = in.readInt(); i > 0; i--) {
+			entity.getRoleDescriptors().add(readRole(in, parserPool));
+		}
+		return entity;
+	}
+
+	private static void writeRole(DataOutputStream out, RoleDescriptor role) throws IOException {
+		writeQName(out, role.getElementQName());
+		writeString(out, role.getID());
+		writeTimes(out, role, role);
+		out.writeInt(role.getSupportedProtocols().size());
+		for (String protocol : role.getSupportedProtocols()) {
+			writeString(out, protocol);
+		}
+		writeExtensions(out, role.getExtensions());
+		out.writeInt(role.getKeyDescriptors().size());
+		for (KeyDescriptor key : role.getKeyDescriptors()) {
+			writeKey(out, key);
+		}
+		List<Endpoint> endpoints = role.getEndpoints();
+		out.writeInt(endpoints.size());
+		for (Endpoint endpoint : endpoints) {
+			writeEndpoint(out, endpoint);
+		}
+	}
+
+	private static RoleDescriptor readRole(DataInputStream in, ParserPool parserPool)
+			throws IOException {
+		RoleDescriptor role = build(readQName(in));
+		role.setID(readString(in));
+		readTimes(in, role, role);
+		for (int i = in.readInt(); i > 0; i--) {
+			role.addSupportedProtocol(readString(in));
+		}
+		role.setExtensions(readExtensions(in, parserPool));
+		for (int i = in.readInt(); i > 0; i--) {
+			role.getKeyDescriptors().add(readKey(in));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			Endpoint endpoint = readEndpoint(in);
+			if (!addEndpoint(role, endpoint)) {
+				log.debug("Endpoint=\"{}\" is not supported by role=\"{}\"",
+						endpoint.getElementQName(), role.getElementQName());
+			}
+		}
+		return role;
+	}
+
+	private static void writeKey(DataOutputStream out, KeyDescriptor key) throws IOException {
+		UsageType use = key.getUse();
+		writeString(out, use == null ? null : use.name());
+		KeyInfo keyInfo = key.getKeyInfo();
+		out.writeBoolean(keyInfo != null);
+		if (keyInfo == null) {
+			return;
+		}
+		List<String> names = KeyInfoHelper.getKeyNames(keyInfo);
+		out.writeInt(names.size());
+		for (String name : names) {
+			writeString(out, name);
+		}
+		out.writeInt(keyInfo.getX509Datas().size());
+		for (X509Data x509 : keyInfo.getX509Datas()) {
+			out.writeInt(x509.getX509Certificates().size());
+			for (X509Certificate cert : x509.getX509Certificates()) {
+				writeBytes(out, Base64.decode(cert.getValue()));
+			}
+		}
+		List<PublicKey> keys;
+		try {
+			keys = KeyInfoHelper.getPublicKeys(keyInfo);
+		} catch (KeyException e) {
+			throw new IOException(e);
+		}
+		out.writeInt(keys.size());
+		for (PublicKey publicKey : keys) {
+			writeString(out, publicKey.getAlgorithm());
+			writeBytes(out, publicKey.getEncoded());
+		}
+	}
+
+	private static KeyDescriptor readKey(DataInputStream in) throws IOException {
+		KeyDescriptor key = build(KeyDescriptor.DEFAULT_ELEMENT_NAME);
+		String use = readString(in);
+		key.setUse(use == null ? null : UsageType.valueOf(use));
+		if (!in.readBoolean()) {
+			return key;
+		}
+		KeyInfo keyInfo = build(KeyInfo.DEFAULT_ELEMENT_NAME);
+		for (int i = in.readInt(); i > 0; i--) {
+			KeyInfoHelper.addKeyName(keyInfo, readString(in));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			X509Data x509 = build(X509Data.DEFAULT_ELEMENT_NAME);
+			for (int j = in.readInt(); j > 0; j--) {
+				X509Certificate cert = build(X509Certificate.DEFAULT_ELEMENT_NAME);
+				cert.setValue(Base64.encodeBytes(readBytes(in)));
+				x509.getX509Certificates().add(cert);
+			}
+			keyInfo.getX509Datas().add(x509);
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			String algorithm = readString(in);
+			byte[] encoded = readBytes(in);
+			try {
+				KeyInfoHelper.addPublicKey(keyInfo,
+						KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded)));
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+		key.setKeyInfo(keyInfo);
+		return key;
+	}
+
+	private static void writeEndpoint(DataOutputStream out, Endpoint endpoint) throws IOException {
+		writeQName(out, endpoint.getElementQName());
+		writeString(out, endpoint.getBinding());
+		writeString(out, endpoint.getLocation());
+		writeString(out, endpoint.getResponseLocation());
+		Integer index = null;
+		Boolean isDefault = null;
+		if (endpoint instanceof IndexedEndpoint) {
+			index = ((IndexedEndpoint) endpoint).getIndex();
+			isDefault = ((IndexedEndpoint) endpoint).isDefaultXSBoolean() == null ?
+					null : ((IndexedEndpoint) endpoint).isDefault();
+		}
+		out.writeBoolean(index != null);
+		if (index != null) {
+			out.writeInt(index);
+		}
+		out.writeBoolean(isDefault != null);
+		if (isDefault != null) {
+			out.writeBoolean(isDefault);
+		}
+	}
+
+	private static Endpoint readEndpoint(DataInputStream in) throws IOException {
+		Endpoint endpoint = build(readQName(in));
+		endpoint.setBinding(readString(in));
+		endpoint.setLocation(readString(in));
+		endpoint.setResponseLocation(readString(in));
+		Integer index = in.readBoolean() ? in.readInt() : null;
+		Boolean isDefault = in.readBoolean() ? in.readBoolean() : null;
+		if (endpoint instanceof IndexedEndpoint) {
+			((IndexedEndpoint) endpoint).setIndex(index);
+			((IndexedEndpoint) endpoint).setIsDefault(isDefault);
+		}
+		return endpoint;
+	}
+
+	private static boolean addEndpoint(RoleDescriptor role, Endpoint endpoint) {
+		if (endpoint instanceof AssertionConsumerService && role instanceof SPSSODescriptor) {
+			return ((SPSSODescriptor) role).getAssertionConsumerServices().add((AssertionConsumerService) endpoint);
+		}
+		if (endpoint instanceof SingleSignOnService && role instanceof IDPSSODescriptor) {
+			return ((IDPSSODescriptor) role).getSingleSignOnServices().add((SingleSignOnService) endpoint);
+		}
+		if (endpoint instanceof NameIDMappingService && role instanceof IDPSSODescriptor) {
+			return ((IDPSSODescriptor) role).getNameIDMappingServices().add((NameIDMappingService) endpoint);
+		}
+		if (endpoint instanceof ArtifactResolutionService && role instanceof SSODescriptor) {
+			return ((SSODescriptor) role).getArtifactResolutionServices().add((ArtifactResolutionService) endpoint);
+		}
+		if (endpoint instanceof SingleLogoutService && role instanceof SSODescriptor) {
+			return ((SSODescriptor) role).getSingleLogoutServices().add((SingleLogoutService) endpoint);
+		}
+		if (endpoint instanceof ManageNameIDService && role instanceof SSODescriptor) {
+			return ((SSODescriptor) role).getManageNameIDServices().add((ManageNameIDService) endpoint);
+		}
+		if (endpoint instanceof AuthzService && role instanceof PDPDescriptor) {
+			return ((PDPDescriptor) role).getAuthzServices().add((AuthzService) endpoint);
+		}
+		if (endpoint instanceof AttributeService && role instanceof AttributeAuthorityDescriptor) {
+			return ((AttributeAuthorityDescriptor) role).getAttributeServices().add((AttributeService) endpoint);
+		}
+		if (endpoint instanceof AuthnQueryService && role instanceof AuthnAuthorityDescriptor) {
+			return ((AuthnAuthorityDescriptor) role).getAuthnQueryServices().add((AuthnQueryService) endpoint);
+		}
+		if (endpoint instanceof AssertionIDRequestService) {
+			AssertionIDRequestService service = (AssertionIDRequestService) endpoint;
+			if (role instanceof IDPSSODescriptor) {
+				return ((IDPSSODescriptor) role).getAssertionIDRequestServices().add(service);
+			}
+			if (role instanceof PDPDescriptor) {
+				return ((PDPDescriptor) role).getAssertionIDRequestServices().add(service);
+			}
+			if (role instanceof AttributeAuthorityDescriptor) {
+				return ((AttributeAuthorityDescriptor) role).getAssertionIDRequestServices().add(service);
+			}
+			if (role instanceof AuthnAuthorityDescriptor) {
+				return ((AuthnAuthorityDescriptor) role).getAssertionIDRequestServices().add(service);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Extensions are arbitrary XML, they are kept in their serialized form
+	 */
+	private static void writeExtensions(DataOutputStream out, Extensions extensions)
+			throws IOException {
+		if (extensions == null) {
+			writeString(out, null);
+			return;
+		}
+		Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(extensions);
+		try {
+			Element dom = extensions.getDOM();
+			if (dom == null || dom.getOwnerDocument().getDocumentElement() != dom) {
+				extensions.releaseDOM();
+				dom = marshaller.marshall(extensions);
+			}
+			writeString(out, XMLHelper.nodeToString(dom));
+		} catch (MarshallingException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static Extensions readExtensions(DataInputStream in, ParserPool parserPool)
+			throws IOException {
+		String xml = readString(in);
+		if (xml == null) {
+			return null;
+		}
+		try {
+			Element dom = parserPool.parse(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)))
+					.getDocumentElement();
+			Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(dom);
+			Extensions extensions = (Extensions) unmarshaller.unmarshall(dom);
+			extensions.releaseDOM();
+			extensions.releaseChildrenDOM(true);
+			return extensions;
+		} catch (XMLParserException e) {
+			throw new IOException(e);
+		} catch (UnmarshallingException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void writeTimes(DataOutputStream out, TimeBoundSAMLObject timeBound,
+			CacheableSAMLObject cacheable) throws IOException {
+		DateTime validUntil = timeBound.getValidUntil();
+		out.writeBoolean(validUntil != null);
+		if (validUntil != null) {
+			out.writeLong(validUntil.getMillis());
+		}
+		Long cacheDuration = cacheable.getCacheDuration();
+		out.writeBoolean(cacheDuration != null);
+		if (cacheDuration != null) {
+			out.writeLong(cacheDuration);
+		}
+	}
+
+	private static void readTimes(DataInputStream in, TimeBoundSAMLObject timeBound,
+			CacheableSAMLObject cacheable) throws IOException {
+		if (in.readBoolean()) {
+			timeBound.setValidUntil(new DateTime(in.readLong()));
+		}
+		if (in.readBoolean()) {
+			cacheable.setCacheDuration(in.readLong());
+		}
+	}
+
+	private static void writeQName(DataOutputStream out, QName name) throws IOException {
+		writeString(out, name.getNamespaceURI());
+		writeString(out, name.getLocalPart());
+		writeString(out, name.getPrefix());
+	}
+
+	private static QName readQName(DataInputStream in) throws IOException {
+		return new QName(readString(in), readString(in), readString(in));
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		writeBytes(out, value == null ? null : value.getBytes(Charsets.UTF_8));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] value = readBytes(in);
+		return value == null ? null : new String(value, Charsets.UTF_8);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(value.length);
+		out.write(value);
+	}
+
+	/**
+	 * Reads a byte array from the snapshot content, the length
+	 * is bounded by the remaining content
+	 */
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		return readBytes(in, in.available());
+	}
+
+	private static byte[] readBytes(DataInputStream in, int maxLength) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > maxLength) {
+			throw new IOException("Corrupted metadata snapshot");
+		}
+		byte[] value = new byte[length];
+		in.readFully(value);
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends XMLObject> T build(QName name) throws IOException {
+		XMLObjectBuilder<?> builder = Configuration.getBuilderFactory().getBuilder(name);
+		if (builder == null) {
+			throw new IOException("No builder for element=\"" + name + "\"");
+		}
+		return (T) builder.buildObject(name);
+	}
+}
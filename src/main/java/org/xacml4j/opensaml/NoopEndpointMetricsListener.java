@@ -0,0 +1,47 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * An {@link EndpointMetricsListener} which ignores all events. The endpoint
+ * does not take any timings while this listener is used.
+ */
+public class NoopEndpointMetricsListener implements EndpointMetricsListener
+{
+	private static final NoopEndpointMetricsListener instance = new NoopEndpointMetricsListener();
+
+	public static NoopEndpointMetricsListener instance() {
+		return instance;
+	}
+
+	private NoopEndpointMetricsListener() {
+	}
+
+	@Override
+	public void stageCompleted(Stage stage, long durationNanos) {
+	}
+
+	@Override
+	public void requestCompleted(String issuer, Outcome outcome) {
+	}
+}
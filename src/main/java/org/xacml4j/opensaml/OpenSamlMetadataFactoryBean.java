@@ -28,6 +28,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -35,7 +41,8 @@ import javax.xml.xpath.XPathExpressionException;
 
 import org.joda.time.DateTime;
 import org.opensaml.DefaultBootstrap;
-import org.opensaml.saml2.metadata.provider.ChainingMetadataProvider;
+import org.opensaml.saml2.metadata.provider.AbstractMetadataProvider;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.saml2.metadata.provider.ResourceBackedMetadataProvider;
@@ -43,22 +50,39 @@ import org.opensaml.util.resource.Resource;
 import org.opensaml.util.resource.ResourceException;
 import org.opensaml.xml.ConfigurationException;
 import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.config.AbstractFactoryBean;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.core.io.support.ResourcePatternResolver;
+import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class OpenSamlMetadataFactoryBean extends AbstractFactoryBean<MetadataProvider> implements DisposableBean {
 
+	private final static Logger log = LoggerFactory.getLogger(OpenSamlMetadataFactoryBean.class);
+
 	private final ResourcePatternResolver resourcePatternResolver = new PathMatchingResourcePatternResolver();
 	private Collection<org.springframework.core.io.Resource> metadata;
 	private boolean bootStrapped = false;
-	private Timer timer = new Timer(true);
-	private ChainingMetadataProvider cmp = null;
+	@VisibleForTesting
+	final Timer timer = new Timer(true);
+	private ReloadableChainingMetadataProvider cmp = null;
+	private long reloadInterval = 0;
+	private boolean streaming = false;
+	private int streamingCacheSize = StreamingMetadataProvider.DEFAULT_CACHE_SIZE;
+	private boolean snapshots = false;
+	private int loadingThreads = 1;
+	private BasicParserPool pool;
+	private List<MetadataSource> sources;
 
 	public void setLocation(org.springframework.core.io.Resource resource) throws IOException{
 		this.metadata = Lists.newLinkedList();
@@ -76,6 +100,70 @@ public class OpenSamlMetadataFactoryBean extends AbstractFactoryBean<MetadataPro
 		}
 	}
 
+	/**
+	 * Enables incremental metadata reload. Every given number of milliseconds
+	 * the modification time of each metadata location is checked and only
+	 * the locations which changed are parsed again, each replacing its own
+	 * provider in the chain. By default reload is disabled and each location
+	 * is refreshed by its own {@link ResourceBackedMetadataProvider}.
+	 *
+	 * @param reloadInterval a reload check interval in milliseconds,
+	 *        {@code 0} disables incremental reload
+	 */
+	public void setReloadInterval(long reloadInterval) {
+		Preconditions.checkArgument(reloadInterval >= 0);
+		this.reloadInterval = reloadInterval;
+	}
+
+	/**
+	 * Enables streaming metadata loading, each metadata location is indexed
+	 * by a {@link StreamingMetadataProvider} and entity descriptors are
+	 * parsed only when looked up. All metadata locations have to be files.
+	 * Without incremental reload, see {@link #setReloadInterval(long)},
+	 * streamed metadata is not refreshed.
+	 *
+	 * @param streaming {@code true} to enable streaming metadata loading
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Sets maximum number of materialized entity descriptors kept in memory
+	 * per metadata location when streaming metadata loading is enabled
+	 *
+	 * @param streamingCacheSize a maximum number of cached entity descriptors
+	 */
+	public void setStreamingCacheSize(int streamingCacheSize) {
+		Preconditions.checkArgument(streamingCacheSize > 0);
+		this.streamingCacheSize = streamingCacheSize;
+	}
+
+	/**
+	 * Enables metadata snapshots, each metadata location is loaded by
+	 * a {@link SnapshotMetadataProvider} from a binary snapshot kept next
+	 * to the metadata file when the snapshot is up to date. All metadata
+	 * locations have to be files. Can not be combined with streaming.
+	 *
+	 * @param snapshots {@code true} to enable metadata snapshots
+	 */
+	public void setSnapshots(boolean snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * Sets number of threads used to parse and initialize the metadata
+	 * locations at startup. Providers are added to the chain in the order
+	 * of the locations regardless of the order in which they are loaded.
+	 *
+	 * @param loadingThreads a maximum number of metadata locations loaded
+	 *        in parallel, {@code 1} loads them sequentially
+	 */
+	public void setLoadingThreads(int loadingThreads) {
+		Preconditions.checkArgument(loadingThreads > 0);
+		this.loadingThreads = loadingThreads;
+	}
+
 	@Override
 	public Class<?> getObjectType() {
 		return MetadataProvider.class;
@@ -88,23 +176,207 @@ public class OpenSamlMetadataFactoryBean extends AbstractFactoryBean<MetadataPro
 			bootStrapped=true;
 		}
 		Preconditions.checkState(metadata != null);
-		cmp = new ChainingMetadataProvider();
-		BasicParserPool pool = new BasicParserPool();
+		Preconditions.checkState(!(streaming && snapshots));
+		cmp = new ReloadableChainingMetadataProvider();
+		pool = new BasicParserPool();
 		pool.setNamespaceAware(true);
 
-		for (org.springframework.core.io.Resource provider : metadata) {
-			ResourceBackedMetadataProvider mdp = new ResourceBackedMetadataProvider(
-					new SpringResourceWrapper(provider),
-					timer,
-					Integer.MAX_VALUE
-			);
-			mdp.setParserPool(pool);
-			mdp.initialize();
-			cmp.addMetadataProvider(mdp);
+		List<Callable<AbstractMetadataProvider>> tasks = Lists.newArrayListWithCapacity(metadata.size());
+		if (reloadInterval > 0 || streaming || snapshots) {
+			sources = Lists.newArrayListWithCapacity(metadata.size());
+			for (org.springframework.core.io.Resource resource : metadata) {
+				final MetadataSource source = new MetadataSource(resource);
+				sources.add(source);
+				tasks.add(new Callable<AbstractMetadataProvider>() {
+					@Override
+					public AbstractMetadataProvider call() throws MetadataProviderException {
+						source.provider = source.load();
+						return source.provider;
+					}
+				});
+			}
+		} else {
+			for (final org.springframework.core.io.Resource provider : metadata) {
+				tasks.add(new Callable<AbstractMetadataProvider>() {
+					@Override
+					public AbstractMetadataProvider call() throws MetadataProviderException {
+						ResourceBackedMetadataProvider mdp = new ResourceBackedMetadataProvider(
+								new SpringResourceWrapper(provider),
+								timer,
+								Integer.MAX_VALUE
+						);
+						mdp.setParserPool(pool);
+						mdp.initialize();
+						return mdp;
+					}
+				});
+			}
+		}
+		cmp.setProviders(Lists.<MetadataProvider>newArrayList(load(tasks)));
+		if (sources != null && reloadInterval > 0) {
+			timer.schedule(new ReloadTask(), reloadInterval, reloadInterval);
 		}
 		return cmp;
 	}
 
+	/**
+	 * Runs given provider loading tasks, in parallel when more than one
+	 * loading thread is configured. If any task fails the providers
+	 * loaded by the other tasks are destroyed, which cancels their
+	 * scheduled refresh tasks.
+	 *
+	 * @return loaded providers in the order of the tasks
+	 */
+	private List<AbstractMetadataProvider> load(List<Callable<AbstractMetadataProvider>> tasks)
+			throws MetadataProviderException {
+		List<AbstractMetadataProvider> providers = Lists.newArrayListWithCapacity(tasks.size());
+		int threads = Math.min(loadingThreads, tasks.size());
+		if (threads <= 1) {
+			for (Callable<AbstractMetadataProvider> task : tasks) {
+				try {
+					providers.add(task.call());
+				} catch (Exception e) {
+					destroy(providers);
+					throw toMetadataProviderException(e);
+				}
+			}
+			return providers;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder()
+						.setDaemon(true)
+						.setNameFormat("metadata-loader-%d")
+						.build());
+		try {
+			MetadataProviderException failure = null;
+			for (Future<AbstractMetadataProvider> provider : executor.invokeAll(tasks)) {
+				try {
+					providers.add(provider.get());
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = toMetadataProviderException(e);
+					}
+				}
+			}
+			if (failure != null) {
+				destroy(providers);
+				throw failure;
+			}
+			return providers;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetadataProviderException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static MetadataProviderException toMetadataProviderException(Exception e) {
+		Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+		return (cause instanceof MetadataProviderException) ?
+				(MetadataProviderException) cause : new MetadataProviderException(e);
+	}
+
+	private static void destroy(List<AbstractMetadataProvider> providers) {
+		for (AbstractMetadataProvider provider : providers) {
+			try {
+				provider.destroy();
+			} catch (RuntimeException e) {
+				log.warn("Failed to destroy metadata provider", e);
+			}
+		}
+	}
+
+	/**
+	 * Parses again the metadata locations modified since they were
+	 * last loaded and swaps their providers in the chain.
+	 */
+	void reload() {
+		for (MetadataSource source : sources) {
+			long lastModified;
+			try {
+				lastModified = source.resource.lastModified();
+			} catch (IOException e) {
+				log.warn("Failed to check metadata location=\"{}\"",
+						source.resource.getDescription(), e);
+				continue;
+			}
+			if (lastModified == source.lastModified) {
+				continue;
+			}
+			try {
+				AbstractMetadataProvider previous = source.provider;
+				AbstractMetadataProvider current = source.load();
+				cmp.replaceMetadataProvider(previous, current);
+				source.provider = current;
+				previous.destroy();
+				if (log.isDebugEnabled()) {
+					log.debug("Reloaded metadata location=\"{}\"", source.resource.getDescription());
+				}
+			} catch (MetadataProviderException e) {
+				log.warn("Failed to reload metadata location=\"{}\", keeping previous metadata",
+						source.resource.getDescription(), e);
+			}
+		}
+	}
+
+	private final class ReloadTask extends TimerTask {
+		@Override
+		public void run() {
+			reload();
+		}
+	}
+
+	/**
+	 * A single metadata location loaded into a static DOM backed,
+	 * a streaming or a snapshot backed provider.
+	 */
+	private final class MetadataSource {
+
+		private final org.springframework.core.io.Resource resource;
+		private long lastModified;
+		private AbstractMetadataProvider provider;
+
+		MetadataSource(org.springframework.core.io.Resource resource) {
+			this.resource = resource;
+		}
+
+		AbstractMetadataProvider load() throws MetadataProviderException {
+			InputStream in = null;
+			try {
+				long modified = resource.lastModified();
+				if (streaming) {
+					StreamingMetadataProvider mdp = new StreamingMetadataProvider(
+							resource.getFile(), streamingCacheSize);
+					mdp.setParserPool(pool);
+					mdp.initialize();
+					this.lastModified = modified;
+					return mdp;
+				}
+				if (snapshots) {
+					SnapshotMetadataProvider mdp = new SnapshotMetadataProvider(resource.getFile());
+					mdp.setParserPool(pool);
+					mdp.initialize();
+					this.lastModified = modified;
+					return mdp;
+				}
+				in = resource.getInputStream();
+				Document doc = pool.parse(in);
+				DOMMetadataProvider mdp = new DOMMetadataProvider(doc.getDocumentElement());
+				mdp.setParserPool(pool);
+				mdp.initialize();
+				this.lastModified = modified;
+				return mdp;
+			} catch (IOException e) {
+				throw new MetadataProviderException(e);
+			} catch (XMLParserException e) {
+				throw new MetadataProviderException(e);
+			} finally {
+				Closeables.closeQuietly(in);
+			}
+		}
+	}
+
 	public static class SpringResourceWrapper implements Resource {
 
 		private final org.springframework.core.io.Resource source;
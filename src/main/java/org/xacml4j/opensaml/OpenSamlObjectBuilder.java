@@ -24,16 +24,13 @@ package org.xacml4j.opensaml;
 
 import java.io.File;
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.joda.time.DateTime;
 import org.opensaml.DefaultBootstrap;
@@ -44,7 +41,6 @@ import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.binding.BasicEndpointSelector;
 import org.opensaml.common.binding.BasicSAMLMessageContext;
 import org.opensaml.common.binding.SAMLMessageContext;
-import org.opensaml.common.impl.SecureRandomIdentifierGenerator;
 import org.opensaml.saml2.core.Assertion;
 import org.opensaml.saml2.core.Audience;
 import org.opensaml.saml2.core.AudienceRestriction;
@@ -65,11 +61,22 @@ import org.opensaml.saml2.metadata.RoleDescriptor;
 import org.opensaml.saml2.metadata.provider.FilesystemMetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xacml.XACMLObject;
+import org.opensaml.xacml.XACMLObjectBuilder;
+import org.opensaml.xacml.ctx.DecisionType;
 import org.opensaml.xacml.ctx.RequestType;
 import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.ctx.ResultType;
+import org.opensaml.xacml.ctx.StatusCodeType;
+import org.opensaml.xacml.ctx.StatusMessageType;
+import org.opensaml.xacml.ctx.StatusType;
 import org.opensaml.xacml.ctx.impl.RequestTypeMarshaller;
 import org.opensaml.xacml.ctx.impl.RequestTypeUnmarshaller;
 import org.opensaml.xacml.ctx.impl.ResponseTypeUnmarshaller;
+import org.opensaml.xacml.policy.AttributeAssignmentType;
+import org.opensaml.xacml.policy.EffectType;
+import org.opensaml.xacml.policy.ObligationType;
+import org.opensaml.xacml.policy.ObligationsType;
 import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
 import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionStatementType;
 import org.opensaml.xacml.profile.saml.impl.XACMLAuthzDecisionQueryTypeUnmarshaller;
@@ -89,13 +96,25 @@ import org.opensaml.xml.signature.Signature;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-
+import org.xacml4j.v30.Attribute;
+import org.xacml4j.v30.AttributeAssignment;
+import org.xacml4j.v30.AttributeExp;
+import org.xacml4j.v30.Categories;
+import org.xacml4j.v30.Category;
+import org.xacml4j.v30.Decision;
+import org.xacml4j.v30.Obligation;
+import org.xacml4j.v30.ResponseContext;
+import org.xacml4j.v30.types.TypeToString;
+
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
 public final class OpenSamlObjectBuilder {
 	/** Private constructor for utility class */
 	private OpenSamlObjectBuilder() {}
 
+	private static final String DISALLOW_DOCTYPE_FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
+
 	private static final SAMLObjectBuilder<Assertion> assertionBuilder;
 
 	private static final SAMLObjectBuilder<Audience> audienceBuilder;
@@ -120,6 +139,16 @@ public final class OpenSamlObjectBuilder {
 	private static final ResponseTypeUnmarshaller xacml20ResUnmarshaller;
 	private static final RequestTypeMarshaller xacml20ReqMarshaller;
 
+	private static final XACMLObjectBuilder<ResponseType> xacml20ResponseBuilder;
+	private static final XACMLObjectBuilder<ResultType> xacml20ResultBuilder;
+	private static final XACMLObjectBuilder<DecisionType> xacml20DecisionBuilder;
+	private static final XACMLObjectBuilder<StatusType> xacml20StatusBuilder;
+	private static final XACMLObjectBuilder<StatusCodeType> xacml20StatusCodeBuilder;
+	private static final XACMLObjectBuilder<StatusMessageType> xacml20StatusMessageBuilder;
+	private static final XACMLObjectBuilder<ObligationsType> xacml20ObligationsBuilder;
+	private static final XACMLObjectBuilder<ObligationType> xacml20ObligationBuilder;
+	private static final XACMLObjectBuilder<AttributeAssignmentType> xacml20AttributeAssignmentBuilder;
+
 	private static final XMLObjectBuilderFactory objectBuilderFactory;
 	private static final UnmarshallerFactory unmarshallerFactory;
 	private static final MarshallerFactory marshallerFactory;
@@ -158,20 +187,21 @@ public final class OpenSamlObjectBuilder {
 
 		xacml20ReqUnmarshaller = makeSamlObjectUnmarshaller(RequestType.DEFAULT_ELEMENT_NAME);
 		xacml20ResUnmarshaller = makeSamlObjectUnmarshaller(ResponseType.DEFAULT_ELEMENT_NAME);
+
+		xacml20ResponseBuilder = makeXacmlObjectBuilder(ResponseType.DEFAULT_ELEMENT_NAME);
+		xacml20ResultBuilder = makeXacmlObjectBuilder(ResultType.DEFAULT_ELEMENT_NAME);
+		xacml20DecisionBuilder = makeXacmlObjectBuilder(DecisionType.DEFAULT_ELEMENT_NAME);
+		xacml20StatusBuilder = makeXacmlObjectBuilder(StatusType.DEFAULT_ELEMENT_NAME);
+		xacml20StatusCodeBuilder = makeXacmlObjectBuilder(StatusCodeType.DEFAULT_ELEMENT_NAME);
+		xacml20StatusMessageBuilder = makeXacmlObjectBuilder(StatusMessageType.DEFAULT_ELEMENT_NAME);
+		xacml20ObligationsBuilder = makeXacmlObjectBuilder(ObligationsType.DEFAULT_ELEMENT_QNAME);
+		xacml20ObligationBuilder = makeXacmlObjectBuilder(ObligationType.DEFAULT_ELEMENT_QNAME);
+		xacml20AttributeAssignmentBuilder = makeXacmlObjectBuilder(AttributeAssignmentType.DEFAULT_ELEMENT_NAME);
 	}
 
-	private static final IdentifierGenerator idGenerator;
+	private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
 
-	private static final TransformerFactory transformerFactory;
-
-	static {
-		try {
-			transformerFactory = TransformerFactory.newInstance();
-			idGenerator = new SecureRandomIdentifierGenerator();
-		} catch (Exception e) {
-			throw new IllegalStateException(e);
-		}
-	}
+	private static volatile IdentifierGenerator idGenerator = ThreadLocalIdentifierGenerator.instance();
 
 	private static void initializeResponse(StatusResponseType response,
 			Status status, RequestAbstractType request) {
@@ -193,6 +223,17 @@ public final class OpenSamlObjectBuilder {
 		return idGenerator.generateIdentifier();
 	}
 
+	/**
+	 * Sets the generator used for SAML object identifiers,
+	 * by default {@link ThreadLocalIdentifierGenerator#instance()}
+	 *
+	 * @param generator an identifier generator
+	 */
+	public static void setIdentifierGenerator(IdentifierGenerator generator) {
+		Preconditions.checkNotNull(generator, "'generator' is null.");
+		idGenerator = generator;
+	}
+
 	@SuppressWarnings("unchecked")
 	private static <T extends SAMLObject> SAMLObjectBuilder<T> makeSamlObjectBuilder(
 			QName name) {
@@ -211,6 +252,15 @@ public final class OpenSamlObjectBuilder {
 		return b;
 	}
 
+	@SuppressWarnings("unchecked")
+	private static <T extends XACMLObject> XACMLObjectBuilder<T> makeXacmlObjectBuilder(
+			QName name) {
+		XACMLObjectBuilder<T> b = (XACMLObjectBuilder<T>) objectBuilderFactory
+				.getBuilder(name);
+		Preconditions.checkState(b != null);
+		return b;
+	}
+
 	@SuppressWarnings("unchecked")
 	private static <M extends Marshaller> M makeSamlObjectMarshaller(QName name) {
 		M m = (M) marshallerFactory.getMarshaller(name);
@@ -231,14 +281,8 @@ public final class OpenSamlObjectBuilder {
 			boolean identOutput, boolean ommitXmlDecl) throws TransformerException {
 
 		Preconditions.checkState(e != null);
-		Transformer serializer = transformerFactory.newTransformer();
-		serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, ommitXmlDecl?"no":"yes");
-		serializer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-		serializer.setOutputProperty(OutputKeys.METHOD, "xml");
-		serializer.setOutputProperty(OutputKeys.INDENT, identOutput ? "yes": "no");
-		Source source = new DOMSource(e);
-		Result result = new StreamResult(out);
-		serializer.transform(source, result);
+		// 'ommitXmlDecl' set to true has always written the XML declaration
+		DomSerializer.serialize(e, out, identOutput, ommitXmlDecl);
 	}
 
 	public static void serialize(Node xml, OutputStream out) throws TransformerException
@@ -319,6 +363,126 @@ public final class OpenSamlObjectBuilder {
 		return (ResponseType) xacml20ResUnmarshaller.unmarshall(request);
 	}
 
+	/**
+	 * Static factory for XACML 2.0 <code>Response</code> objects.
+	 *
+	 * Builds the response directly from the given {@link ResponseContext}
+	 * without marshalling it into an intermediate DOM. XACML 2.0 response
+	 * in OpenSAML carries a single result, only the first result from the
+	 * given context is used.
+	 *
+	 * @param context
+	 *            A decision returned by the policy decision point.
+	 * @return A new <code>Response</code> object.
+	 */
+	public static ResponseType makeXacml20Response(ResponseContext context) {
+		Preconditions.checkArgument(context != null);
+		ResponseType response = xacml20ResponseBuilder.buildObject();
+		Collection<org.xacml4j.v30.Result> results = context.getResults();
+		if (!results.isEmpty()) {
+			response.setResult(makeXacml20Result(results.iterator().next()));
+		}
+		return response;
+	}
+
+	private static ResultType makeXacml20Result(org.xacml4j.v30.Result result) {
+		ResultType resultType = xacml20ResultBuilder.buildObject();
+		DecisionType decision = xacml20DecisionBuilder.buildObject();
+		decision.setDecision(toXacml20Decision(result.getDecision()));
+		resultType.setDecision(decision);
+		resultType.setResourceId(getResourceId(result));
+		if (result.getStatus() != null) {
+			resultType.setStatus(makeXacml20Status(result.getStatus()));
+		}
+		EffectType fulfillOn = toXacml20Effect(result.getDecision());
+		if (fulfillOn != null && !result.getObligations().isEmpty()) {
+			ObligationsType obligations = xacml20ObligationsBuilder.buildObject();
+			for (Obligation o : result.getObligations()) {
+				obligations.getObligations().add(makeXacml20Obligation(o, fulfillOn));
+			}
+			resultType.setObligations(obligations);
+		}
+		return resultType;
+	}
+
+	private static StatusType makeXacml20Status(org.xacml4j.v30.Status status) {
+		StatusType statusType = xacml20StatusBuilder.buildObject();
+		statusType.setStatusCode(makeXacml20StatusCode(status.getStatusCode()));
+		if (status.getMessage() != null) {
+			StatusMessageType message = xacml20StatusMessageBuilder.buildObject();
+			message.setValue(status.getMessage());
+			statusType.setStatusMessage(message);
+		}
+		return statusType;
+	}
+
+	private static StatusCodeType makeXacml20StatusCode(org.xacml4j.v30.StatusCode code) {
+		StatusCodeType codeType = xacml20StatusCodeBuilder.buildObject();
+		codeType.setValue(code.getValue().getId());
+		if (code.getMinorStatus() != null) {
+			codeType.setStatusCode(makeXacml20StatusCode(code.getMinorStatus()));
+		}
+		return codeType;
+	}
+
+	private static ObligationType makeXacml20Obligation(Obligation obligation, EffectType fulfillOn) {
+		ObligationType obligationType = xacml20ObligationBuilder.buildObject();
+		obligationType.setObligationId(obligation.getId());
+		obligationType.setFulfillOn(fulfillOn);
+		for (AttributeAssignment a : obligation.getAttributes()) {
+			AttributeAssignmentType assignment = xacml20AttributeAssignmentBuilder.buildObject();
+			assignment.setAttributeId(a.getAttributeId());
+			assignment.setDataType(a.getAttribute().getType().getDataTypeId());
+			assignment.setValue(toXacml20String(a.getAttribute()));
+			obligationType.getAttributeAssignments().add(assignment);
+		}
+		return obligationType;
+	}
+
+	private static DecisionType.DECISION toXacml20Decision(Decision decision) {
+		switch (decision) {
+			case PERMIT:
+				return DecisionType.DECISION.Permit;
+			case DENY:
+				return DecisionType.DECISION.Deny;
+			case NOT_APPLICABLE:
+				return DecisionType.DECISION.NotApplicable;
+			default:
+				return DecisionType.DECISION.Indeterminate;
+		}
+	}
+
+	private static EffectType toXacml20Effect(Decision decision) {
+		switch (decision) {
+			case PERMIT:
+				return EffectType.Permit;
+			case DENY:
+				return EffectType.Deny;
+			default:
+				return null;
+		}
+	}
+
+	private static String getResourceId(org.xacml4j.v30.Result result) {
+		for (Category category : result.getIncludeInResultAttributes()) {
+			if (!Categories.RESOURCE.equals(category.getCategoryId())) {
+				continue;
+			}
+			for (Attribute attribute : category.getEntity().getAttributes()) {
+				if (RESOURCE_ID.equals(attribute.getAttributeId())
+						&& !attribute.getValues().isEmpty()) {
+					return toXacml20String(attribute.getValues().iterator().next());
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String toXacml20String(AttributeExp value) {
+		Optional<TypeToString> toString = TypeToString.Types.getIndex().get(value.getType());
+		return toString.isPresent() ? toString.get().toString(value) : String.valueOf(value.getValue());
+	}
+
 	public static Signature makeSiganture()
 	{
 		return signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
@@ -620,6 +784,25 @@ public final class OpenSamlObjectBuilder {
 		}
 	}
 
+	/**
+	 * Creates a namespace aware parser pool for untrusted input, i.e. SAML
+	 * messages received over the network. Documents with a document type
+	 * declaration are rejected and entity references are not expanded,
+	 * which rules out external entities and entity expansion attacks.
+	 *
+	 * @return a hardened parser pool
+	 */
+	public static BasicParserPool newSecureParserPool() {
+		BasicParserPool parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+		parserPool.setExpandEntityReferences(false);
+		Map<String, Boolean> features = new HashMap<String, Boolean>();
+		features.put(DISALLOW_DOCTYPE_FEATURE, Boolean.TRUE);
+		features.put(XMLConstants.FEATURE_SECURE_PROCESSING, Boolean.TRUE);
+		parserPool.setBuilderFeatures(features);
+		return parserPool;
+	}
+
 	public static MetadataProvider getMetadata(File input) throws MetadataProviderException
 	{
 		FilesystemMetadataProvider provider = new FilesystemMetadataProvider(input);
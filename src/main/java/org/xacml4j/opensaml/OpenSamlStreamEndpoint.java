@@ -0,0 +1,47 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte oriented variant of {@link OpenSamlEndpoint}. Implementations own
+ * the whole message path: parsing and unmarshalling of the incoming SAML
+ * request, its processing and the serialization of the (signed) SAML
+ * response.
+ */
+public interface OpenSamlStreamEndpoint
+{
+	/**
+	 * Reads a serialized SAML request from the given input stream, processes
+	 * it and writes a serialized SAML response to the given output stream.
+	 * Malformed requests are answered with an error response.
+	 *
+	 * @param in a serialized SAML request
+	 * @param out an output stream for the serialized SAML response
+	 * @throws IOException if an I/O error occurs while writing the response
+	 */
+	void handle(InputStream in, OutputStream out) throws IOException;
+}
@@ -0,0 +1,184 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.opensaml.xacml.ctx.ActionType;
+import org.opensaml.xacml.ctx.AttributeType;
+import org.opensaml.xacml.ctx.AttributeValueType;
+import org.opensaml.xacml.ctx.EnvironmentType;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.ctx.ResourceContentType;
+import org.opensaml.xacml.ctx.ResourceType;
+import org.opensaml.xacml.ctx.SubjectType;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+import org.xacml4j.v30.Attribute;
+import org.xacml4j.v30.AttributeExp;
+import org.xacml4j.v30.Categories;
+import org.xacml4j.v30.Category;
+import org.xacml4j.v30.CategoryId;
+import org.xacml4j.v30.Entity;
+import org.xacml4j.v30.RequestContext;
+import org.xacml4j.v30.XacmlSyntaxException;
+import org.xacml4j.v30.types.TypeToString;
+
+import com.google.common.base.Optional;
+
+/**
+ * Translates an OpenSAML XACML 2.0 {@link RequestType} directly into a xacml4j
+ * {@link RequestContext} by walking the OpenSAML object graph, without
+ * marshalling the request into an intermediate DOM first.
+ */
+public class OpenSamlXacml20RequestTranslator {
+
+	private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+	private static final OpenSamlXacml20RequestTranslator instance = new OpenSamlXacml20RequestTranslator();
+
+	public static OpenSamlXacml20RequestTranslator instance() {
+		return instance;
+	}
+
+	private OpenSamlXacml20RequestTranslator() {
+	}
+
+	/**
+	 * Translates given XACML 2.0 request to the {@link RequestContext}
+	 *
+	 * @param request an OpenSAML XACML 2.0 request
+	 * @return translated request context
+	 * @throws XacmlSyntaxException if request contains unsupported
+	 *         categories or data types
+	 */
+	public RequestContext translate(RequestType request) throws XacmlSyntaxException {
+		checkNotNull(request, "'request' is null.");
+		List<Category> categories = new ArrayList<Category>();
+		for (SubjectType subject : request.getSubjects()) {
+			categories.add(createSubject(subject));
+		}
+		for (ResourceType resource : request.getResources()) {
+			categories.add(createResource(resource));
+		}
+		ActionType action = request.getAction();
+		if (action != null) {
+			categories.add(createCategory(Categories.ACTION, action.getAttributes(), false, null));
+		}
+		EnvironmentType environment = request.getEnvironment();
+		if (environment != null) {
+			categories.add(createCategory(Categories.ENVIRONMENT, environment.getAttributes(), false, null));
+		}
+		return RequestContext.builder()
+				.returnPolicyIdList(false)
+				.combinedDecision(false)
+				.attributes(categories)
+				.build();
+	}
+
+	private Category createSubject(SubjectType subject) throws XacmlSyntaxException {
+		String subjectCategory = subject.getSubjectCategory();
+		CategoryId categoryId = (subjectCategory == null) ?
+				Categories.SUBJECT_ACCESS : Categories.parse(subjectCategory);
+		return createCategory(categoryId, subject.getAttributes(), false, null);
+	}
+
+	private Category createResource(ResourceType resource) throws XacmlSyntaxException {
+		return createCategory(Categories.RESOURCE, resource.getAttributes(), true,
+				getContent(resource.getResourceContent()));
+	}
+
+	private Category createCategory(CategoryId categoryId,
+			List<AttributeType> attributes,
+			boolean includeResourceId,
+			Element content) throws XacmlSyntaxException {
+		Entity.Builder entity = Entity.builder();
+		for (AttributeType attribute : attributes) {
+			entity.attribute(createAttribute(attribute,
+					includeResourceId && RESOURCE_ID.equals(attribute.getAttributeID())));
+		}
+		if (content != null) {
+			entity.content(content);
+		}
+		return Category.builder(categoryId)
+				.entity(entity.build())
+				.build();
+	}
+
+	private Attribute createAttribute(AttributeType attribute, boolean includeInResult)
+			throws XacmlSyntaxException {
+		String dataType = attribute.getDataType();
+		Optional<TypeToString> toString = (dataType == null) ?
+				Optional.<TypeToString>absent() : TypeToString.Types.getIndex().get(dataType);
+		if (!toString.isPresent()) {
+			throw new XacmlSyntaxException(
+					"Unsupported XACML attribute data type=\"" + dataType + "\"");
+		}
+		Collection<AttributeExp> values = new ArrayList<AttributeExp>(attribute.getAttributeValues().size());
+		for (AttributeValueType value : attribute.getAttributeValues()) {
+			if (value.getValue() == null) {
+				throw new XacmlSyntaxException(
+						"XACML attribute id=\"" + attribute.getAttributeID() + "\" has no value");
+			}
+			try {
+				values.add(toString.get().fromString(value.getValue()));
+			} catch (RuntimeException e) {
+				// malformed value of the given data type
+				throw new XacmlSyntaxException(e);
+			}
+		}
+		try {
+			return Attribute.builder(attribute.getAttributeID())
+					.issuer(attribute.getIssuer())
+					.includeInResult(includeInResult)
+					.values(values)
+					.build();
+		} catch (RuntimeException e) {
+			// i.e. missing attribute identifier
+			throw new XacmlSyntaxException(e);
+		}
+	}
+
+	private Element getContent(ResourceContentType content) throws XacmlSyntaxException {
+		if (content == null) {
+			return null;
+		}
+		Element dom = content.getDOM();
+		if (dom == null) {
+			Marshaller m = Configuration.getMarshallerFactory().getMarshaller(content);
+			try {
+				dom = m.marshall(content);
+			} catch (MarshallingException e) {
+				throw new XacmlSyntaxException(e);
+			}
+		}
+		return XMLHelper.getFirstChildElement(dom);
+	}
+}
@@ -0,0 +1,269 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.provider.ChainingMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A {@link ChainingMetadataProvider} which allows to replace a single
+ * member provider of the chain without touching the others.
+ *
+ * <p>The replacement is visible to readers atomically and the observers
+ * of this provider are notified afterwards, so that caches built on top
+ * of the metadata can be invalidated.
+ *
+ * <p>Entity descriptors of all member providers are indexed by entityID,
+ * entity and role lookups go straight to the member provider holding the
+ * entity instead of asking each member in turn under the chain lock. When
+ * several members describe the same entity the first one in the chain wins.
+ * The index is rebuilt for a single member whenever it is added, replaced
+ * or reports a metadata change.
+ */
+public class ReloadableChainingMetadataProvider extends ChainingMetadataProvider
+{
+	private final static Logger log = LoggerFactory.getLogger(ReloadableChainingMetadataProvider.class);
+
+	private final ObservableMetadataProvider.Observer indexingObserver = new IndexingObserver();
+
+	private Map<MetadataProvider, Map<String, EntityDescriptor>> providerIndexes =
+			new HashMap<MetadataProvider, Map<String, EntityDescriptor>>();
+	private volatile ImmutableMap<String, IndexEntry> index = ImmutableMap.of();
+	private volatile boolean unobservedProviders;
+
+	/**
+	 * Replaces given member provider of this chain, keeping its position.
+	 *
+	 * @param current a provider currently in the chain
+	 * @param replacement a provider to put in place of {@code current}
+	 * @throws MetadataProviderException if the chain can not be updated
+	 * @throws IllegalArgumentException if {@code current} is not in the chain
+	 */
+	public synchronized void replaceMetadataProvider(MetadataProvider current,
+			MetadataProvider replacement) throws MetadataProviderException {
+		checkNotNull(current, "'current' is null.");
+		checkNotNull(replacement, "'replacement' is null.");
+		List<MetadataProvider> providers = new ArrayList<MetadataProvider>(getProviders());
+		int index = providers.indexOf(current);
+		checkArgument(index >= 0, "Provider is not a member of this chain.");
+		providers.set(index, replacement);
+		setProviders(providers);
+		emitChangeEvent();
+	}
+
+	@Override
+	public synchronized void setProviders(List<MetadataProvider> newProviders)
+			throws MetadataProviderException {
+		super.setProviders(newProviders);
+		updateIndex(null);
+	}
+
+	/**
+	 * The chain list is immutable once set by {@link #setProviders(List)},
+	 * the member is added by setting a copy of the list with it.
+	 */
+	@Override
+	public synchronized void addMetadataProvider(MetadataProvider provider)
+			throws MetadataProviderException {
+		checkNotNull(provider, "'provider' is null.");
+		List<MetadataProvider> providers = new ArrayList<MetadataProvider>(getProviders());
+		providers.add(provider);
+		setProviders(providers);
+	}
+
+	/**
+	 * Removes given member provider by setting a copy of the chain list
+	 * without it.
+	 */
+	@Override
+	public synchronized void removeMetadataProvider(MetadataProvider provider) {
+		List<MetadataProvider> providers = new ArrayList<MetadataProvider>(getProviders());
+		if (!providers.remove(provider)) {
+			return;
+		}
+		try {
+			setProviders(providers);
+		} catch (MetadataProviderException e) {
+			log.warn("Failed to remove metadata provider", e);
+		}
+	}
+
+	@Override
+	public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
+		IndexEntry entry = index.get(entityID);
+		if (entry == null) {
+			return unobservedProviders ? super.getEntityDescriptor(entityID) : null;
+		}
+		if (entry.descriptor != null && !requireValidMetadata()) {
+			return entry.descriptor;
+		}
+		return entry.provider.getEntityDescriptor(entityID);
+	}
+
+	@Override
+	public List<RoleDescriptor> getRole(String entityID, QName roleName)
+			throws MetadataProviderException {
+		IndexEntry entry = index.get(entityID);
+		if (entry == null) {
+			return unobservedProviders ? super.getRole(entityID, roleName) : null;
+		}
+		return entry.provider.getRole(entityID, roleName);
+	}
+
+	@Override
+	public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol)
+			throws MetadataProviderException {
+		IndexEntry entry = index.get(entityID);
+		if (entry == null) {
+			return unobservedProviders ? super.getRole(entityID, roleName, supportedProtocol) : null;
+		}
+		return entry.provider.getRole(entityID, roleName, supportedProtocol);
+	}
+
+	/**
+	 * {@link #setProviders(List)} re-adds every member, providers which are
+	 * already in the chain are kept as they are to avoid registering the
+	 * chain observer with them twice.
+	 */
+	@Override
+	protected void doAddMetadataProvider(MetadataProvider provider,
+			List<MetadataProvider> providerList) {
+		if (getProviders().contains(provider)) {
+			providerList.add(provider);
+			return;
+		}
+		super.doAddMetadataProvider(provider, providerList);
+		if (provider instanceof ObservableMetadataProvider) {
+			// ahead of the chain observer, the index has to be current
+			// by the time the chain observers are notified
+			List<ObservableMetadataProvider.Observer> observers =
+					((ObservableMetadataProvider) provider).getObservers();
+			observers.add(observers.size() - 1, indexingObserver);
+		}
+	}
+
+	/**
+	 * Rebuilds the entityID index, re-reading the entities of the given
+	 * member provider and of the members not indexed yet.
+	 *
+	 * @param changed a member provider which metadata changed,
+	 *        may be {@code null}
+	 */
+	private synchronized void updateIndex(MetadataProvider changed) {
+		List<MetadataProvider> providers = getProviders();
+		Map<MetadataProvider, Map<String, EntityDescriptor>> indexes =
+				new HashMap<MetadataProvider, Map<String, EntityDescriptor>>(providers.size());
+		Map<String, IndexEntry> entries = new HashMap<String, IndexEntry>();
+		boolean unobserved = false;
+		for (MetadataProvider provider : providers) {
+			Map<String, EntityDescriptor> entities = (provider == changed) ? null : providerIndexes.get(provider);
+			if (entities == null) {
+				entities = indexEntities(provider);
+			}
+			indexes.put(provider, entities);
+			for (Map.Entry<String, EntityDescriptor> entity : entities.entrySet()) {
+				if (!entries.containsKey(entity.getKey())) {
+					entries.put(entity.getKey(), new IndexEntry(provider, entity.getValue()));
+				}
+			}
+			unobserved |= !(provider instanceof ObservableMetadataProvider);
+		}
+		this.providerIndexes = indexes;
+		this.index = ImmutableMap.copyOf(entries);
+		this.unobservedProviders = unobserved;
+	}
+
+	private static Map<String, EntityDescriptor> indexEntities(MetadataProvider provider) {
+		Map<String, EntityDescriptor> entities = new HashMap<String, EntityDescriptor>();
+		if (provider instanceof StreamingMetadataProvider) {
+			// descriptors are materialized by the provider on lookup
+			for (String entityID : ((StreamingMetadataProvider) provider).getEntityIDs()) {
+				entities.put(entityID, null);
+			}
+			return entities;
+		}
+		try {
+			indexEntities(provider.getMetadata(), entities);
+		} catch (MetadataProviderException e) {
+			log.warn("Failed to index metadata provider entities", e);
+		}
+		return entities;
+	}
+
+	private static void indexEntities(XMLObject metadata, Map<String, EntityDescriptor> entities) {
+		if (metadata instanceof EntityDescriptor) {
+			EntityDescriptor entity = (EntityDescriptor) metadata;
+			if (entity.getEntityID() != null && !entities.containsKey(entity.getEntityID())) {
+				entities.put(entity.getEntityID(), entity);
+			}
+		} else if (metadata instanceof EntitiesDescriptor) {
+			EntitiesDescriptor group = (EntitiesDescriptor) metadata;
+			for (EntityDescriptor entity : group.getEntityDescriptors()) {
+				indexEntities(entity, entities);
+			}
+			for (EntitiesDescriptor child : group.getEntitiesDescriptors()) {
+				indexEntities(child, entities);
+			}
+		}
+	}
+
+	private final class IndexingObserver implements ObservableMetadataProvider.Observer {
+		@Override
+		public void onEvent(MetadataProvider provider) {
+			if (getProviders().contains(provider)) {
+				updateIndex(provider);
+			}
+		}
+	}
+
+	private static final class IndexEntry {
+
+		private final MetadataProvider provider;
+		private final EntityDescriptor descriptor;
+
+		IndexEntry(MetadataProvider provider, EntityDescriptor descriptor) {
+			this.provider = provider;
+			this.descriptor = descriptor;
+		}
+	}
+}
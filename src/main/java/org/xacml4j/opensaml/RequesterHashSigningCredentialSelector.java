@@ -0,0 +1,68 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.List;
+
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.security.credential.Credential;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A {@link SigningCredentialSelector}, that selects a credential by
+ * consistent hashing of the request issuer. Each requester is always
+ * answered with the same credential, adding a credential at the end of
+ * the list moves only a proportional share of the requesters to it.
+ * Requests without issuer are signed with the first credential.
+ */
+public class RequesterHashSigningCredentialSelector implements SigningCredentialSelector {
+
+	private static final RequesterHashSigningCredentialSelector instance = new RequesterHashSigningCredentialSelector();
+
+	private static final HashFunction hashFunction = Hashing.murmur3_32();
+
+	public static RequesterHashSigningCredentialSelector instance() {
+		return instance;
+	}
+
+	private RequesterHashSigningCredentialSelector() {
+	}
+
+	@Override
+	public Credential selectCredential(RequestAbstractType request, Response response,
+			IDPConfiguration idpConfiguration) {
+		List<Credential> credentials = idpConfiguration.getSigningCredentials();
+		if (credentials.size() == 1 || request.getIssuer() == null
+				|| request.getIssuer().getValue() == null) {
+			return credentials.get(0);
+		}
+		int index = Hashing.consistentHash(
+				hashFunction.hashString(request.getIssuer().getValue(), Charsets.UTF_8),
+				credentials.size());
+		return credentials.get(index);
+	}
+}
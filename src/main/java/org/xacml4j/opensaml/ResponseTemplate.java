@@ -0,0 +1,167 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Statement;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A pre-built DOM skeleton of the successful XACML authorization decision
+ * query response issued by a local entity: the SAML response with its
+ * issuer and status and an assertion with its issuer and an empty XACML
+ * authorization decision statement. A response is created by copying the
+ * skeleton and filling in the identifiers, issue instants, "InResponseTo"
+ * and the XACML response, instead of building and marshalling the whole
+ * OpenSAML object tree. The created response DOM is ready to be signed with
+ * {@link SigningProfile#sign(Element)}.
+ */
+public final class ResponseTemplate
+{
+	private static final ConcurrentMap<String, ResponseTemplate> templates =
+			new ConcurrentHashMap<String, ResponseTemplate>();
+
+	private final String issuer;
+	private final Document skeleton;
+
+	/**
+	 * Per thread copy of the skeleton, the shared skeleton is not safe
+	 * for concurrent reads
+	 */
+	private final ThreadLocal<Document> threadSkeleton = new ThreadLocal<Document>() {
+		@Override
+		protected Document initialValue() {
+			synchronized (skeleton) {
+				return (Document) skeleton.cloneNode(true);
+			}
+		}
+	};
+
+	private ResponseTemplate(String issuer) throws MarshallingException {
+		this.issuer = issuer;
+		Assertion assertion = OpenSamlObjectBuilder.makeXacml20AuthzDecisionAssertion(issuer, null, null);
+		Response response = OpenSamlObjectBuilder.makeXacml20AuthzDecisionQueryResponse(issuer, null, assertion);
+		this.skeleton = Configuration.getMarshallerFactory().getMarshaller(response)
+				.marshall(response).getOwnerDocument();
+	}
+
+	/**
+	 * Gets a template for the responses issued by the given local entity,
+	 * creates the template on first use.
+	 *
+	 * @param issuer a local entity identifier
+	 * @return a response template
+	 * @throws MarshallingException if the skeleton can not be marshalled
+	 */
+	public static ResponseTemplate forIssuer(String issuer) throws MarshallingException {
+		checkNotNull(issuer, "'issuer' is null.");
+		ResponseTemplate template = templates.get(issuer);
+		if (template != null) {
+			return template;
+		}
+		template = new ResponseTemplate(issuer);
+		ResponseTemplate existing = templates.putIfAbsent(issuer, template);
+		return (existing != null) ? existing : template;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * Creates a new unsigned SAML response to the given query carrying the
+	 * given XACML response. The XACML request of the query is included in
+	 * the statement if the query asks to return the context.
+	 *
+	 * @param query an XACML authorization decision query
+	 * @param xacmlResponse an XACML response
+	 * @return the SAML response document element
+	 * @throws MarshallingException if the XACML response or request can not be marshalled
+	 */
+	public Element newResponse(XACMLAuthzDecisionQueryType query, ResponseType xacmlResponse)
+			throws MarshallingException {
+		checkNotNull(query, "'query' is null.");
+		checkNotNull(xacmlResponse, "'xacmlResponse' is null.");
+		Document doc = (Document) threadSkeleton.get().cloneNode(true);
+		String issueInstant = org.opensaml.Configuration.getSAMLDateFormatter().print(new DateTime());
+		Element response = doc.getDocumentElement();
+		response.setAttributeNS(null, Response.ID_ATTRIB_NAME, OpenSamlObjectBuilder.generateIdentifier());
+		response.setAttributeNS(null, Response.ISSUE_INSTANT_ATTRIB_NAME, issueInstant);
+		if (query.getID() != null) {
+			response.setAttributeNS(null, Response.IN_RESPONSE_TO_ATTRIB_NAME, query.getID());
+		}
+		Element assertion = getChild(response, Assertion.DEFAULT_ELEMENT_LOCAL_NAME);
+		assertion.setAttributeNS(null, Assertion.ID_ATTRIB_NAME, OpenSamlObjectBuilder.generateIdentifier());
+		assertion.setAttributeNS(null, Assertion.ISSUE_INSTANT_ATTRIB_NAME, issueInstant);
+		Element statement = getChild(assertion, Statement.DEFAULT_ELEMENT_LOCAL_NAME);
+		RequestType xacmlRequest = query.getRequest();
+		if (query.isReturnContext() && xacmlRequest != null) {
+			appendRequest(statement, xacmlRequest);
+		}
+		Configuration.getMarshallerFactory().getMarshaller(xacmlResponse).marshall(xacmlResponse, statement);
+		return response;
+	}
+
+	private static void appendRequest(Element statement, RequestType xacmlRequest) throws MarshallingException {
+		Element dom = xacmlRequest.getDOM();
+		if (dom == null) {
+			dom = Configuration.getMarshallerFactory().getMarshaller(xacmlRequest).marshall(xacmlRequest);
+		}
+		Element request = (Element) statement.getOwnerDocument().importNode(dom, true);
+		statement.appendChild(request);
+		try {
+			// the namespaces used by the request may be declared by the query
+			XMLHelper.rootNamespaces(request);
+		} catch (XMLParserException e) {
+			throw new MarshallingException("Failed to declare XACML request namespaces", e);
+		}
+	}
+
+	private static Element getChild(Element parent, String localName) {
+		Element child = XMLHelper.getFirstChildElement(parent);
+		while (child != null) {
+			if (SAMLConstants.SAML20_NS.equals(child.getNamespaceURI())
+					&& localName.equals(child.getLocalName())) {
+				return child;
+			}
+			child = XMLHelper.getNextSiblingElement(child);
+		}
+		throw new IllegalStateException("Response template does not have \"" + localName + "\" element");
+	}
+}
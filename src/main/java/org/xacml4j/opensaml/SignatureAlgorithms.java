@@ -0,0 +1,179 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.Key;
+import java.util.Map;
+
+import org.opensaml.xml.encryption.EncryptionConstants;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.util.XMLConstants;
+
+import com.google.common.base.Objects;
+
+/**
+ * An immutable combination of the XML signature, digest and
+ * canonicalization algorithms used to sign SAML messages.
+ */
+public final class SignatureAlgorithms
+{
+	/**
+	 * RSA with SHA-1 signature and SHA-1 digest, the historical default
+	 */
+	public static final SignatureAlgorithms RSA_SHA1 = new SignatureAlgorithms(
+			SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1,
+			SignatureConstants.ALGO_ID_DIGEST_SHA1);
+
+	public static final SignatureAlgorithms RSA_SHA256 = new SignatureAlgorithms(
+			SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+			EncryptionConstants.ALGO_ID_DIGEST_SHA256);
+
+	public static final SignatureAlgorithms RSA_SHA512 = new SignatureAlgorithms(
+			SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512,
+			EncryptionConstants.ALGO_ID_DIGEST_SHA512);
+
+	/**
+	 * ECDSA with SHA-1 signature and SHA-256 digest, the only ECDSA
+	 * signature algorithm supported by the bundled XML security library
+	 */
+	public static final SignatureAlgorithms ECDSA_SHA1 = new SignatureAlgorithms(
+			SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1,
+			EncryptionConstants.ALGO_ID_DIGEST_SHA256);
+
+	private final String signatureAlgorithm;
+	private final String digestAlgorithm;
+	private final String canonicalizationAlgorithm;
+
+	public SignatureAlgorithms(String signatureAlgorithm, String digestAlgorithm) {
+		this(signatureAlgorithm, digestAlgorithm, SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+	}
+
+	public SignatureAlgorithms(String signatureAlgorithm, String digestAlgorithm,
+			String canonicalizationAlgorithm) {
+		this.signatureAlgorithm = checkNotNull(signatureAlgorithm, "'signatureAlgorithm' is null.");
+		this.digestAlgorithm = checkNotNull(digestAlgorithm, "'digestAlgorithm' is null.");
+		this.canonicalizationAlgorithm = checkNotNull(canonicalizationAlgorithm,
+				"'canonicalizationAlgorithm' is null.");
+	}
+
+	/**
+	 * Gets default algorithms for the given credential: {@link #ECDSA_SHA1}
+	 * for elliptic curve keys, {@link #RSA_SHA1} otherwise.
+	 *
+	 * @param credential a signing credential
+	 * @return signature algorithms
+	 */
+	public static SignatureAlgorithms getDefault(Credential credential) {
+		Key key = SecurityHelper.extractSigningKey(credential);
+		return (key != null && "EC".equals(key.getAlgorithm())) ? ECDSA_SHA1 : RSA_SHA1;
+	}
+
+	/**
+	 * Resolves the algorithms used to sign with the given credential: the
+	 * credential specific algorithms, the given algorithms if the credential
+	 * supports them, otherwise the {@link #getDefault(Credential) defaults}.
+	 */
+	static SignatureAlgorithms resolve(Credential credential,
+			Map<Credential, SignatureAlgorithms> credentialAlgorithms,
+			SignatureAlgorithms algorithms) {
+		SignatureAlgorithms resolved = credentialAlgorithms.get(credential);
+		if (resolved == null && algorithms != null && algorithms.isSupportedBy(credential)) {
+			resolved = algorithms;
+		}
+		return (resolved != null) ? resolved : getDefault(credential);
+	}
+
+	public String getSignatureAlgorithm() {
+		return signatureAlgorithm;
+	}
+
+	public String getDigestAlgorithm() {
+		return digestAlgorithm;
+	}
+
+	public String getCanonicalizationAlgorithm() {
+		return canonicalizationAlgorithm;
+	}
+
+	/**
+	 * Tests if the signature algorithm can be used with the given credential
+	 *
+	 * @param credential a signing credential
+	 * @return {@code true} if the credential signing key matches the
+	 *         signature algorithm
+	 */
+	public boolean isSupportedBy(Credential credential) {
+		Key key = SecurityHelper.extractSigningKey(credential);
+		if (key == null) {
+			return false;
+		}
+		String keyAlgorithm = getKeyAlgorithm(signatureAlgorithm);
+		return keyAlgorithm == null || keyAlgorithm.equals(key.getAlgorithm());
+	}
+
+	static String getKeyAlgorithm(String signatureAlgorithm) {
+		if (signatureAlgorithm.startsWith(XMLConstants.XMLSIG_NS + "rsa-") ||
+				signatureAlgorithm.startsWith(SignatureConstants.MORE_ALGO_NS + "rsa-")) {
+			return "RSA";
+		}
+		if (signatureAlgorithm.startsWith(SignatureConstants.MORE_ALGO_NS + "ecdsa-")) {
+			return "EC";
+		}
+		if (signatureAlgorithm.startsWith(XMLConstants.XMLSIG_NS + "dsa-")) {
+			return "DSA";
+		}
+		return null;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (!(o instanceof SignatureAlgorithms)) {
+			return false;
+		}
+		SignatureAlgorithms a = (SignatureAlgorithms) o;
+		return signatureAlgorithm.equals(a.signatureAlgorithm)
+				&& digestAlgorithm.equals(a.digestAlgorithm)
+				&& canonicalizationAlgorithm.equals(a.canonicalizationAlgorithm);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(signatureAlgorithm, digestAlgorithm, canonicalizationAlgorithm);
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("signature", signatureAlgorithm)
+				.add("digest", digestAlgorithm)
+				.add("c14n", canonicalizationAlgorithm)
+				.toString();
+	}
+}
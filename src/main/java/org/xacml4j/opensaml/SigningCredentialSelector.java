@@ -32,6 +32,15 @@ import org.opensaml.xml.security.credential.Credential;
  */
 public interface SigningCredentialSelector {
 
+	/**
+	 * Selects the credential used to sign the response to the given request
+	 *
+	 * @param request a SAML request
+	 * @param response a SAML response or {@code null} if the response
+	 *        is built from a {@link ResponseTemplate}
+	 * @param idpConfiguration a local IDP configuration
+	 * @return a signing credential
+	 */
 	Credential selectCredential(RequestAbstractType request, Response response,
 			IDPConfiguration idpConfiguration);
 }
@@ -0,0 +1,328 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.XMLSignature;
+import org.apache.xml.security.transforms.Transforms;
+import org.opensaml.common.SignableSAMLObject;
+import org.opensaml.common.impl.SAMLObjectContentReference;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilder;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.keyinfo.KeyInfoGenerator;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.security.x509.X509KeyInfoGeneratorFactory;
+import org.opensaml.xml.signature.ContentReference;
+import org.opensaml.xml.signature.KeyInfo;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.Signer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Signing parameters computed once per {@link Credential}: the signature
+ * algorithms and a template of the {@link KeyInfo} generated for the
+ * credential by the global security configuration. Cached profiles use
+ * the {@link SignatureAlgorithms#getDefault(Credential) default algorithms}
+ * of the credential, see {@link #withAlgorithms(SignatureAlgorithms)}. Signing a message with
+ * a profile only copies the template instead of resolving the key info
+ * generator and regenerating the key info from the credential each time.
+ */
+public final class SigningProfile
+{
+	/**
+	 * A maximum number of cached profiles, a profile references its
+	 * credential, the cache is bounded so rotated credentials are released
+	 */
+	public static final int MAX_CACHED_PROFILES = 1024;
+
+	private static final Cache<Credential, SigningProfile> profiles = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_PROFILES)
+			.build();
+
+	private static final Logger log = LoggerFactory.getLogger(SigningProfile.class);
+
+	private static final BasicParserPool parserPool = new BasicParserPool();
+
+	static {
+		parserPool.setNamespaceAware(true);
+	}
+
+	private final Credential credential;
+	private final SignatureAlgorithms algorithms;
+	private final XMLObjectBuilder<Signature> signatureBuilder;
+	private final ThreadLocal<Document> threadKeyInfoTemplate;
+	private final Unmarshaller keyInfoUnmarshaller;
+
+	/**
+	 * Profiles of the same credential with non default algorithms,
+	 * shared by all profiles of the credential
+	 */
+	private final ConcurrentMap<SignatureAlgorithms, SigningProfile> variants;
+
+	@SuppressWarnings("unchecked")
+	private SigningProfile(Credential credential) throws SecurityException {
+		this.credential = credential;
+		this.algorithms = SignatureAlgorithms.getDefault(credential);
+		this.variants = new ConcurrentHashMap<SignatureAlgorithms, SigningProfile>();
+		variants.put(algorithms, this);
+		ensureProviderSupport(algorithms);
+		this.signatureBuilder = Configuration.getBuilderFactory().getBuilder(Signature.DEFAULT_ELEMENT_NAME);
+		KeyInfo keyInfo = generateKeyInfo(credential);
+		if (keyInfo == null) {
+			this.threadKeyInfoTemplate = null;
+			this.keyInfoUnmarshaller = null;
+			return;
+		}
+		final Document keyInfoTemplate;
+		try {
+			keyInfoTemplate = parserPool.newDocument();
+			Configuration.getMarshallerFactory().getMarshaller(keyInfo).marshall(keyInfo, keyInfoTemplate);
+		} catch (XMLParserException e) {
+			throw new SecurityException("Failed to marshall KeyInfo", e);
+		} catch (MarshallingException e) {
+			throw new SecurityException("Failed to marshall KeyInfo", e);
+		}
+		this.keyInfoUnmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(
+				keyInfoTemplate.getDocumentElement());
+		// DOM is not thread safe even for reading, each thread copies the template once
+		this.threadKeyInfoTemplate = new ThreadLocal<Document>() {
+			@Override
+			protected Document initialValue() {
+				synchronized (keyInfoTemplate) {
+					return (Document) keyInfoTemplate.cloneNode(true);
+				}
+			}
+		};
+	}
+
+	private SigningProfile(SigningProfile profile, SignatureAlgorithms algorithms) {
+		this.credential = profile.credential;
+		this.algorithms = algorithms;
+		ensureProviderSupport(algorithms);
+		this.signatureBuilder = profile.signatureBuilder;
+		this.threadKeyInfoTemplate = profile.threadKeyInfoTemplate;
+		this.keyInfoUnmarshaller = profile.keyInfoUnmarshaller;
+		this.variants = profile.variants;
+	}
+
+	/**
+	 * The XML security library maps ECDSA signatures to the "ECDSAwithSHA1"
+	 * JCA algorithm name, which the JDK providers do not know. Registers
+	 * {@link EcdsaSignatureProvider} with the lowest preference if no
+	 * installed provider supports it.
+	 */
+	private static void ensureProviderSupport(SignatureAlgorithms algorithms) {
+		if (!algorithms.getSignatureAlgorithm().equals(SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA1)) {
+			return;
+		}
+		try {
+			java.security.Signature.getInstance(EcdsaSignatureProvider.ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("No provider supports \"{}\", registering \"{}\" provider",
+						EcdsaSignatureProvider.ALGORITHM, EcdsaSignatureProvider.NAME);
+			}
+			Security.addProvider(new EcdsaSignatureProvider());
+		}
+	}
+
+	/**
+	 * Generates key info with the generator configured for the given
+	 * credential. The configured generators can not emit key values of
+	 * elliptic curve keys, for such keys only the certificate is emitted.
+	 */
+	private static KeyInfo generateKeyInfo(Credential credential) throws SecurityException {
+		KeyInfoGenerator keyInfoGenerator = SecurityHelper.getKeyInfoGenerator(credential, null, null);
+		if (keyInfoGenerator == null) {
+			return null;
+		}
+		try {
+			return keyInfoGenerator.generate(credential);
+		} catch (IllegalArgumentException e) {
+			if (!(credential instanceof X509Credential)) {
+				throw new SecurityException("Failed to generate KeyInfo", e);
+			}
+			X509KeyInfoGeneratorFactory certificateOnly = new X509KeyInfoGeneratorFactory();
+			certificateOnly.setEmitEntityCertificate(true);
+			return certificateOnly.newInstance().generate(credential);
+		}
+	}
+
+	/**
+	 * Gets a signing profile for the given credential, creates the profile
+	 * on first use and caches up to {@link #MAX_CACHED_PROFILES} recently
+	 * used profiles.
+	 *
+	 * @param credential a signing credential
+	 * @return a signing profile
+	 * @throws SecurityException if the profile can not be created
+	 */
+	public static SigningProfile forCredential(Credential credential) throws SecurityException {
+		checkNotNull(credential, "'credential' is null.");
+		SigningProfile profile = profiles.getIfPresent(credential);
+		if (profile != null) {
+			return profile;
+		}
+		profile = new SigningProfile(credential);
+		SigningProfile existing = profiles.asMap().putIfAbsent(credential, profile);
+		return (existing != null) ? existing : profile;
+	}
+
+	public Credential getCredential() {
+		return credential;
+	}
+
+	public SignatureAlgorithms getAlgorithms() {
+		return algorithms;
+	}
+
+	/**
+	 * Gets a profile sharing the key info template of this profile
+	 * but using the given algorithms, created once per algorithms.
+	 *
+	 * @param algorithms signature algorithms
+	 * @return a signing profile
+	 * @throws IllegalArgumentException if the given signature algorithm
+	 *         can not be used with the profile credential
+	 */
+	public SigningProfile withAlgorithms(SignatureAlgorithms algorithms) {
+		checkNotNull(algorithms, "'algorithms' is null.");
+		if (algorithms.equals(this.algorithms)) {
+			return this;
+		}
+		SigningProfile profile = variants.get(algorithms);
+		if (profile != null) {
+			return profile;
+		}
+		checkArgument(algorithms.isSupportedBy(credential),
+				"Signature algorithm=\"%s\" can not be used with the given credential",
+				algorithms.getSignatureAlgorithm());
+		profile = new SigningProfile(this, algorithms);
+		SigningProfile existing = variants.putIfAbsent(algorithms, profile);
+		return (existing != null) ? existing : profile;
+	}
+
+	/**
+	 * Creates a new signature populated from this profile.
+	 *
+	 * @return a signature ready to be attached to a message
+	 * @throws SecurityException if the key info can not be created
+	 */
+	public Signature makeSignature() throws SecurityException {
+		Signature dsig = signatureBuilder.buildObject(Signature.DEFAULT_ELEMENT_NAME);
+		dsig.setSigningCredential(credential);
+		dsig.setSignatureAlgorithm(algorithms.getSignatureAlgorithm());
+		dsig.setCanonicalizationAlgorithm(algorithms.getCanonicalizationAlgorithm());
+		dsig.setKeyInfo(makeKeyInfo());
+		return dsig;
+	}
+
+	/**
+	 * Signs the given SAML object with this profile.
+	 *
+	 * @param message a SAML object to sign
+	 */
+	public void sign(SignableSAMLObject message) throws SecurityException, MarshallingException, SignatureException {
+		Signature dsig = makeSignature();
+		message.setSignature(dsig);
+		for (ContentReference reference : dsig.getContentReferences()) {
+			if (reference instanceof SAMLObjectContentReference) {
+				((SAMLObjectContentReference) reference).setDigestAlgorithm(algorithms.getDigestAlgorithm());
+			}
+		}
+		Configuration.getMarshallerFactory().getMarshaller(message).marshall(message);
+		Signer.signObject(dsig);
+	}
+
+	/**
+	 * Signs the given SAML message DOM with this profile. The enveloped
+	 * signature references the message "ID" attribute and is inserted after
+	 * the first child element of the message, the SAML issuer.
+	 *
+	 * @param message a SAML message element with the "ID" attribute
+	 */
+	public void sign(Element message) throws SecurityException, SignatureException {
+		checkNotNull(message, "'message' is null.");
+		String id = message.getAttributeNS(null, "ID");
+		checkArgument(id.length() > 0, "Message does not have \"ID\" attribute");
+		message.setIdAttributeNS(null, "ID", true);
+		Document doc = message.getOwnerDocument();
+		try {
+			XMLSignature dsig = new XMLSignature(doc, null,
+					algorithms.getSignatureAlgorithm(), algorithms.getCanonicalizationAlgorithm());
+			Node issuer = message.getFirstChild();
+			while (issuer != null && issuer.getNodeType() != Node.ELEMENT_NODE) {
+				issuer = issuer.getNextSibling();
+			}
+			message.insertBefore(dsig.getElement(), (issuer != null) ? issuer.getNextSibling() : null);
+			Transforms transforms = new Transforms(doc);
+			transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
+			transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+			dsig.addDocument("#" + id, transforms, algorithms.getDigestAlgorithm());
+			if (threadKeyInfoTemplate != null) {
+				dsig.getElement().appendChild(
+						doc.importNode(threadKeyInfoTemplate.get().getDocumentElement(), true));
+			}
+			dsig.sign(SecurityHelper.extractSigningKey(credential));
+		} catch (XMLSecurityException e) {
+			throw new SignatureException("Failed to sign message", e);
+		}
+	}
+
+	private KeyInfo makeKeyInfo() throws SecurityException {
+		if (threadKeyInfoTemplate == null) {
+			return null;
+		}
+		try {
+			Document doc = (Document) threadKeyInfoTemplate.get().cloneNode(true);
+			return (KeyInfo) keyInfoUnmarshaller.unmarshall(doc.getDocumentElement());
+		} catch (UnmarshallingException e) {
+			throw new SecurityException("Failed to copy KeyInfo template", e);
+		}
+	}
+}
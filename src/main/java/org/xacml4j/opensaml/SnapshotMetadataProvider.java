@@ -0,0 +1,226 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.opensaml.saml2.metadata.provider.AbstractObservableMetadataProvider;
+import org.opensaml.saml2.metadata.provider.FilterException;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * A static metadata provider which keeps a {@link MetadataSnapshot} of
+ * the parsed metadata next to the metadata file.
+ *
+ * <p>On initialization the snapshot is used when it was taken from the
+ * current content of the metadata file, otherwise the metadata file is
+ * parsed, filtered and a new snapshot is written. A snapshot holds the
+ * metadata as it was after filtering, it is not filtered again when
+ * loaded. Snapshots have to be protected the same way as the metadata files.
+ *
+ * <p>Filters have no identity which could tell a changed filter, snapshots
+ * are therefore neither read nor written when a metadata filter is set,
+ * unless the filter is identified by {@link #setFilterVersion(String)}.
+ * The filter version is part of the snapshot key, changing it invalidates
+ * existing snapshots.
+ */
+public class SnapshotMetadataProvider extends AbstractObservableMetadataProvider
+{
+	private final static Logger log = LoggerFactory.getLogger(SnapshotMetadataProvider.class);
+
+	public final static String SNAPSHOT_SUFFIX = ".snapshot";
+
+	private final File metadataFile;
+	private final File snapshotFile;
+	private volatile XMLObject metadata;
+	private volatile boolean fromSnapshot;
+	private volatile String filterVersion;
+
+	public SnapshotMetadataProvider(File metadataFile) {
+		this(metadataFile, new File(metadataFile.getPath() + SNAPSHOT_SUFFIX));
+	}
+
+	public SnapshotMetadataProvider(File metadataFile, File snapshotFile) {
+		checkNotNull(metadataFile, "'metadataFile' is null.");
+		checkNotNull(snapshotFile, "'snapshotFile' is null.");
+		this.metadataFile = metadataFile;
+		this.snapshotFile = snapshotFile;
+		BasicParserPool pool = new BasicParserPool();
+		pool.setNamespaceAware(true);
+		setParserPool(pool);
+	}
+
+	/**
+	 * Identifies the configuration of the metadata filter, the version has
+	 * to change whenever the filter or its configuration changes
+	 *
+	 * @param filterVersion a metadata filter version
+	 */
+	public void setFilterVersion(String filterVersion) {
+		this.filterVersion = filterVersion;
+	}
+
+	/**
+	 * Tests if metadata was loaded from the snapshot
+	 *
+	 * @return {@code true} if metadata was loaded from the snapshot
+	 */
+	public boolean isLoadedFromSnapshot() {
+		return fromSnapshot;
+	}
+
+	@Override
+	protected XMLObject doGetMetadata() throws MetadataProviderException {
+		return metadata;
+	}
+
+	@Override
+	protected void doInitialization() throws MetadataProviderException {
+		if (getMetadataFilter() != null && filterVersion == null) {
+			log.warn("Metadata filter without version is set, snapshot=\"{}\" is not used", snapshotFile);
+			this.fromSnapshot = false;
+			this.metadata = parse();
+			return;
+		}
+		byte[] hash;
+		try {
+			hash = Files.hash(metadataFile, Hashing.sha256()).asBytes();
+		} catch (IOException e) {
+			throw new MetadataProviderException(e);
+		}
+		if (getMetadataFilter() != null) {
+			hash = Hashing.sha256().newHasher()
+					.putBytes(hash)
+					.putString(getMetadataFilter().getClass().getName() + '\n' + filterVersion, Charsets.UTF_8)
+					.hash().asBytes();
+		}
+		XMLObject md = readSnapshot(hash);
+		this.fromSnapshot = (md != null);
+		if (md == null) {
+			md = parse();
+			writeSnapshot(md, hash);
+		}
+		this.metadata = md;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		metadata = null;
+		super.destroy();
+	}
+
+	private XMLObject parse() throws MetadataProviderException {
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(metadataFile));
+			XMLObject md = unmarshallMetadata(in);
+			filterMetadata(md);
+			releaseMetadataDOM(md);
+			return md;
+		} catch (IOException e) {
+			throw new MetadataProviderException(e);
+		} catch (UnmarshallingException e) {
+			throw new MetadataProviderException(e);
+		} catch (FilterException e) {
+			throw new MetadataProviderException(e);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	private XMLObject readSnapshot(byte[] hash) {
+		if (!snapshotFile.isFile()) {
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(snapshotFile));
+			XMLObject md = MetadataSnapshot.read(in, hash, getParserPool());
+			if (md == null && log.isDebugEnabled()) {
+				log.debug("Snapshot=\"{}\" is stale", snapshotFile);
+			}
+			return md;
+		} catch (IOException e) {
+			log.warn("Failed to read metadata snapshot=\"{}\"", snapshotFile, e);
+			return null;
+		} catch (RuntimeException e) {
+			log.warn("Failed to read metadata snapshot=\"{}\"", snapshotFile, e);
+			return null;
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Writes the snapshot to a unique temporary file first, a concurrent
+	 * reader never sees a partially written snapshot and concurrent
+	 * writers do not interleave
+	 */
+	private void writeSnapshot(XMLObject md, byte[] hash) {
+		File tmp = null;
+		OutputStream out = null;
+		try {
+			tmp = File.createTempFile(snapshotFile.getName() + ".", ".tmp",
+					snapshotFile.getAbsoluteFile().getParentFile());
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			MetadataSnapshot.write(md, hash, out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(snapshotFile)) {
+				snapshotFile.delete();
+				if (!tmp.renameTo(snapshotFile)) {
+					throw new IOException("Failed to rename \"" + tmp + "\"");
+				}
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Written metadata snapshot=\"{}\"", snapshotFile);
+			}
+		} catch (IOException e) {
+			log.warn("Failed to write metadata snapshot=\"{}\"", snapshotFile, e);
+		} finally {
+			Closeables.closeQuietly(out);
+			if (tmp != null && tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,637 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.AbstractObservableMetadataProvider;
+import org.opensaml.saml2.metadata.provider.FilterException;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Closeables;
+
+/**
+ * A metadata provider for very large metadata aggregates which does not
+ * keep the aggregate in memory.
+ *
+ * <p>On initialization the metadata file is scanned with StAX, recording
+ * for each entityID the byte range of its {@link EntityDescriptor} and the
+ * namespaces declared by the enclosing elements. An entity descriptor is
+ * parsed and unmarshalled only on its first lookup and then kept in a
+ * bounded cache.
+ *
+ * <p>A materialized entity descriptor is detached from the enclosing
+ * {@link EntitiesDescriptor} elements, the earliest "validUntil" of these
+ * elements is therefore recorded by the scan and applied to the entity
+ * descriptor, so an expired aggregate is not trusted entity by entity.
+ *
+ * <p>The metadata filter, if any, is applied to each materialized entity
+ * descriptor separately, so filters which need the whole aggregate, e.g.
+ * a signature check of the aggregate, can not be used with this provider.
+ * {@link #getMetadata()} parses the whole file on first use and keeps it
+ * softly reachable, the garbage collector may reclaim it under memory
+ * pressure.
+ */
+public class StreamingMetadataProvider extends AbstractObservableMetadataProvider
+{
+	private final static Logger log = LoggerFactory.getLogger(StreamingMetadataProvider.class);
+
+	public final static int DEFAULT_CACHE_SIZE = 1024;
+
+	private final static String ENTITY_DESCRIPTOR = EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME;
+	private final static String ENTITIES_DESCRIPTOR = EntitiesDescriptor.DEFAULT_ELEMENT_LOCAL_NAME;
+
+	private final File metadataFile;
+	private final Cache<String, EntityDescriptor> cache;
+	private volatile ImmutableMap<String, EntityLocation> locations = ImmutableMap.of();
+	private volatile String encoding = Charsets.UTF_8.name();
+	private volatile SoftReference<XMLObject> metadata = new SoftReference<XMLObject>(null);
+
+	public StreamingMetadataProvider(File metadataFile) {
+		this(metadataFile, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates provider
+	 *
+	 * @param metadataFile a metadata file
+	 * @param cacheSize a maximum number of materialized entity descriptors
+	 *        kept in memory
+	 */
+	public StreamingMetadataProvider(File metadataFile, int cacheSize) {
+		checkNotNull(metadataFile, "'metadataFile' is null.");
+		checkArgument(cacheSize > 0, "'cacheSize' must be positive.");
+		this.metadataFile = metadataFile;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(cacheSize)
+				.build();
+		BasicParserPool pool = new BasicParserPool();
+		pool.setNamespaceAware(true);
+		setParserPool(pool);
+	}
+
+	/**
+	 * Gets entity identifiers found in the metadata file
+	 *
+	 * @return an immutable set of entity identifiers
+	 */
+	public Set<String> getEntityIDs() {
+		return locations.keySet();
+	}
+
+	/**
+	 * Gets number of currently materialized entity descriptors
+	 *
+	 * @return number of cached entity descriptors
+	 */
+	public long getMaterializedCount() {
+		return cache.size();
+	}
+
+	@Override
+	protected void doInitialization() throws MetadataProviderException {
+		long start = System.currentTimeMillis();
+		List<ScannedEntity> entities = scanEntities();
+		List<long[]> ranges;
+		try {
+			ranges = scanEntityRanges(metadataFile);
+		} catch (IOException e) {
+			throw new MetadataProviderException(e);
+		}
+		if (ranges.size() != entities.size()) {
+			throw new MetadataProviderException(
+					"Inconsistent entity descriptor ranges in metadata file=\"" + metadataFile + "\"");
+		}
+		Map<String, EntityLocation> index = new HashMap<String, EntityLocation>(entities.size());
+		for (int i = 0; i < entities.size(); i++) {
+			ScannedEntity entity = entities.get(i);
+			if (entity.entityID == null || index.containsKey(entity.entityID)) {
+				continue;
+			}
+			long[] range = ranges.get(i);
+			index.put(entity.entityID, new EntityLocation(range[0], (int) range[1],
+					entity.namespaces, entity.validUntil));
+		}
+		this.locations = ImmutableMap.copyOf(index);
+		this.cache.invalidateAll();
+		this.metadata = new SoftReference<XMLObject>(null);
+		if (log.isDebugEnabled()) {
+			log.debug("Indexed {} entities of metadata file=\"{}\" in {} ms",
+					new Object[] { index.size(), metadataFile, System.currentTimeMillis() - start });
+		}
+	}
+
+	@Override
+	protected EntityDescriptor doGetEntityDescriptor(final String entityID)
+			throws MetadataProviderException {
+		final EntityLocation location = locations.get(entityID);
+		if (location == null) {
+			return null;
+		}
+		try {
+			return cache.get(entityID, new Callable<EntityDescriptor>() {
+				@Override
+				public EntityDescriptor call() throws MetadataProviderException {
+					return materialize(location);
+				}
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof MetadataProviderException) {
+				throw (MetadataProviderException) e.getCause();
+			}
+			throw new MetadataProviderException(e);
+		}
+	}
+
+	@Override
+	protected XMLObject doGetMetadata() throws MetadataProviderException {
+		XMLObject cached = metadata.get();
+		if (cached != null) {
+			return cached;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(metadataFile));
+			XMLObject parsed = unmarshall(getParserPool().parse(in).getDocumentElement());
+			filterMetadata(parsed);
+			releaseMetadataDOM(parsed);
+			this.metadata = new SoftReference<XMLObject>(parsed);
+			return parsed;
+		} catch (IOException e) {
+			throw new MetadataProviderException(e);
+		} catch (XMLParserException e) {
+			throw new MetadataProviderException(e);
+		} catch (FilterException e) {
+			throw new MetadataProviderException(e);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	@Override
+	protected EntitiesDescriptor doGetEntitiesDescriptor(String name) throws MetadataProviderException {
+		XMLObject metadata = doGetMetadata();
+		if (metadata instanceof EntitiesDescriptor) {
+			return getEntitiesDescriptorByName(name, (EntitiesDescriptor) metadata);
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		locations = ImmutableMap.of();
+		cache.invalidateAll();
+		metadata = new SoftReference<XMLObject>(null);
+		super.destroy();
+	}
+
+	private EntityDescriptor materialize(EntityLocation location) throws MetadataProviderException {
+		byte[] fragment = new byte[location.length];
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(metadataFile, "r");
+			file.seek(location.offset);
+			file.readFully(fragment);
+		} catch (IOException e) {
+			throw new MetadataProviderException(e);
+		} finally {
+			Closeables.closeQuietly(file);
+		}
+		StringBuilder b = new StringBuilder("<?xml version=\"1.0\" encoding=\"")
+				.append(encoding).append("\"?><EntityDescriptors");
+		for (Map.Entry<String, String> ns : location.namespaces.entrySet()) {
+			b.append(ns.getKey().length() == 0 ? " xmlns" : " xmlns:" + ns.getKey());
+			b.append("=\"").append(escape(ns.getValue())).append('"');
+		}
+		b.append('>');
+		InputStream in = new SequenceInputStream(Collections.enumeration(
+				Arrays.<InputStream>asList(
+						new ByteArrayInputStream(b.toString().getBytes(Charsets.US_ASCII)),
+						new ByteArrayInputStream(fragment),
+						new ByteArrayInputStream("</EntityDescriptors>".getBytes(Charsets.US_ASCII)))));
+		try {
+			Document doc = getParserPool().parse(in);
+			XMLObject entity = unmarshall(XMLHelper.getFirstChildElement(doc.getDocumentElement()));
+			if (!(entity instanceof EntityDescriptor)) {
+				throw new MetadataProviderException("Indexed element is not an entity descriptor");
+			}
+			DateTime validUntil = ((EntityDescriptor) entity).getValidUntil();
+			if (location.validUntil != null && (validUntil == null || validUntil.isAfter(location.validUntil))) {
+				((EntityDescriptor) entity).setValidUntil(location.validUntil);
+			}
+			filterMetadata(entity);
+			releaseMetadataDOM(entity);
+			return (EntityDescriptor) entity;
+		} catch (XMLParserException e) {
+			throw new MetadataProviderException(e);
+		} catch (FilterException e) {
+			throw new MetadataProviderException(e);
+		}
+	}
+
+	private XMLObject unmarshall(Element element) throws MetadataProviderException {
+		Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(element);
+		if (unmarshaller == null) {
+			throw new MetadataProviderException(
+					"No unmarshaller for element=\"" + XMLHelper.getNodeQName(element) + "\"");
+		}
+		try {
+			return unmarshaller.unmarshall(element);
+		} catch (UnmarshallingException e) {
+			throw new MetadataProviderException(e);
+		}
+	}
+
+	/**
+	 * Scans the metadata file with StAX collecting every element with
+	 * {@link EntityDescriptor} local name in document order together with
+	 * the earliest "validUntil" of the enclosing {@link EntitiesDescriptor}
+	 * elements.
+	 */
+	private List<ScannedEntity> scanEntities() throws MetadataProviderException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		InputStream in = null;
+		XMLStreamReader reader = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(metadataFile));
+			reader = factory.createXMLStreamReader(in);
+			this.encoding = checkEncoding(reader.getEncoding());
+			List<ScannedEntity> entities = new ArrayList<ScannedEntity>();
+			LinkedList<Map<String, String>> scopes = new LinkedList<Map<String, String>>();
+			LinkedList<DateTime> validity = new LinkedList<DateTime>();
+			Map<Map<String, String>, Map<String, String>> interned = new HashMap<Map<String, String>, Map<String, String>>();
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					if (ENTITY_DESCRIPTOR.equals(reader.getLocalName())) {
+						entities.add(new ScannedEntity(
+								SAMLConstants.SAML20MD_NS.equals(reader.getNamespaceURI()) ?
+										reader.getAttributeValue(null, EntityDescriptor.ENTITY_ID_ATTRIB_NAME) : null,
+								intern(inScope(scopes), interned),
+								validity.peekLast()));
+					}
+					scopes.addLast(declared(reader));
+					validity.addLast(validUntil(reader, validity.peekLast()));
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					scopes.removeLast();
+					validity.removeLast();
+				}
+			}
+			return entities;
+		} catch (IOException e) {
+			throw new MetadataProviderException(e);
+		} catch (XMLStreamException e) {
+			throw new MetadataProviderException(e);
+		} catch (IllegalArgumentException e) {
+			throw new MetadataProviderException("Malformed validUntil in metadata file=\"" + metadataFile + "\"", e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// ignore
+				}
+			}
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Entity descriptors are located by scanning the raw bytes,
+	 * which requires an encoding compatible with US-ASCII
+	 */
+	private static String checkEncoding(String encoding) throws MetadataProviderException {
+		if (encoding == null) {
+			return Charsets.UTF_8.name();
+		}
+		String name = Charset.forName(encoding).name();
+		if (name.equals(Charsets.UTF_8.name())
+				|| name.equals(Charsets.US_ASCII.name())
+				|| name.startsWith("ISO-8859-")) {
+			return name;
+		}
+		throw new MetadataProviderException("Unsupported metadata encoding=\"" + encoding + "\"");
+	}
+
+	/**
+	 * Gets the effective "validUntil" of the current element, the earlier
+	 * of the enclosing one and the element own if it is an entities descriptor
+	 */
+	private static DateTime validUntil(XMLStreamReader reader, DateTime enclosing) {
+		if (!ENTITIES_DESCRIPTOR.equals(reader.getLocalName())
+				|| !SAMLConstants.SAML20MD_NS.equals(reader.getNamespaceURI())) {
+			return enclosing;
+		}
+		String value = reader.getAttributeValue(null, TimeBoundSAMLObject.VALID_UNTIL_ATTRIB_NAME);
+		if (value == null) {
+			return enclosing;
+		}
+		DateTime validUntil = new DateTime(value).withChronology(ISOChronology.getInstanceUTC());
+		return (enclosing == null || validUntil.isBefore(enclosing)) ? validUntil : enclosing;
+	}
+
+	private static Map<String, String> declared(XMLStreamReader reader) {
+		int count = reader.getNamespaceCount();
+		if (count == 0) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> namespaces = new HashMap<String, String>(count);
+		for (int i = 0; i < count; i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			String uri = reader.getNamespaceURI(i);
+			namespaces.put(prefix == null ? "" : prefix, uri == null ? "" : uri);
+		}
+		return namespaces;
+	}
+
+	private static Map<String, String> inScope(List<Map<String, String>> scopes) {
+		Map<String, String> namespaces = new HashMap<String, String>();
+		for (Map<String, String> scope : scopes) {
+			namespaces.putAll(scope);
+		}
+		return namespaces;
+	}
+
+	private static Map<String, String> intern(Map<String, String> namespaces,
+			Map<Map<String, String>, Map<String, String>> interned) {
+		Map<String, String> existing = interned.get(namespaces);
+		if (existing == null) {
+			existing = ImmutableMap.copyOf(namespaces);
+			interned.put(existing, existing);
+		}
+		return existing;
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+	}
+
+	/**
+	 * Finds byte ranges of all elements with {@link EntityDescriptor} local
+	 * name in document order. The StAX parser does not report reliable
+	 * byte offsets, the ranges are found by a minimal tag level scan of the
+	 * raw bytes instead.
+	 */
+	static List<long[]> scanEntityRanges(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		try {
+			return new RangeScanner(in).scan();
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	private static final class RangeScanner
+	{
+		private final InputStream in;
+		private long position;
+		private int pushback = -1;
+
+		RangeScanner(InputStream in) {
+			this.in = in;
+		}
+
+		List<long[]> scan() throws IOException {
+			List<long[]> ranges = new ArrayList<long[]>();
+			LinkedList<long[]> open = new LinkedList<long[]>();
+			int b;
+			while ((b = read()) != -1) {
+				if (b != '<') {
+					continue;
+				}
+				long start = position - 1;
+				b = read();
+				if (b == '?') {
+					skipPast("?>");
+				} else if (b == '!') {
+					b = read();
+					if (b == '-') {
+						skipPast("-->");
+					} else if (b == '[') {
+						skipPast("]]>");
+					} else {
+						skipDeclaration();
+					}
+				} else if (b == '/') {
+					String name = readName();
+					skipTag();
+					if (isEntityDescriptor(name) && !open.isEmpty()) {
+						long[] range = open.removeLast();
+						range[1] = position - range[0];
+					}
+				} else {
+					unread(b);
+					String name = readName();
+					boolean empty = skipTag();
+					if (isEntityDescriptor(name)) {
+						long[] range = new long[] { start, position - start };
+						ranges.add(range);
+						if (!empty) {
+							open.addLast(range);
+						}
+					}
+				}
+			}
+			return ranges;
+		}
+
+		private static boolean isEntityDescriptor(String name) {
+			int colon = name.indexOf(':');
+			return ENTITY_DESCRIPTOR.equals(colon < 0 ? name : name.substring(colon + 1));
+		}
+
+		private int read() throws IOException {
+			int b;
+			if (pushback != -1) {
+				b = pushback;
+				pushback = -1;
+			} else {
+				b = in.read();
+			}
+			if (b != -1) {
+				position++;
+			}
+			return b;
+		}
+
+		private void unread(int b) {
+			if (b != -1) {
+				pushback = b;
+				position--;
+			}
+		}
+
+		private String readName() throws IOException {
+			StringBuilder name = new StringBuilder();
+			int b;
+			while ((b = read()) != -1 && b != '>' && b != '/' && !Character.isWhitespace(b)) {
+				name.append((char) b);
+			}
+			unread(b);
+			return name.toString();
+		}
+
+		/**
+		 * Skips the rest of a tag, returns {@code true} for an empty element tag
+		 */
+		private boolean skipTag() throws IOException {
+			int quote = -1;
+			int last = -1;
+			int b;
+			while ((b = read()) != -1) {
+				if (quote != -1) {
+					if (b == quote) {
+						quote = -1;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '>') {
+					return last == '/';
+				}
+				last = b;
+			}
+			return false;
+		}
+
+		private void skipDeclaration() throws IOException {
+			int depth = 0;
+			int quote = -1;
+			int b;
+			while ((b = read()) != -1) {
+				if (quote != -1) {
+					if (b == quote) {
+						quote = -1;
+					}
+				} else if (b == '"' || b == '\'') {
+					quote = b;
+				} else if (b == '[') {
+					depth++;
+				} else if (b == ']') {
+					depth--;
+				} else if (b == '>' && depth <= 0) {
+					return;
+				}
+			}
+		}
+
+		private void skipPast(String terminator) throws IOException {
+			int length = terminator.length();
+			int[] window = new int[length];
+			long count = 0;
+			int b;
+			while ((b = read()) != -1) {
+				window[(int) (count++ % length)] = b;
+				if (count >= length && endsWith(window, count, terminator)) {
+					return;
+				}
+			}
+		}
+
+		private static boolean endsWith(int[] window, long count, String terminator) {
+			int length = terminator.length();
+			for (int i = 0; i < length; i++) {
+				if (window[(int) ((count - length + i) % length)] != terminator.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class ScannedEntity
+	{
+		private final String entityID;
+		private final Map<String, String> namespaces;
+		private final DateTime validUntil;
+
+		ScannedEntity(String entityID, Map<String, String> namespaces, DateTime validUntil) {
+			this.entityID = entityID;
+			this.namespaces = namespaces;
+			this.validUntil = validUntil;
+		}
+	}
+
+	private static final class EntityLocation
+	{
+		private final long offset;
+		private final int length;
+		private final Map<String, String> namespaces;
+		private final DateTime validUntil;
+
+		EntityLocation(long offset, int length, Map<String, String> namespaces, DateTime validUntil) {
+			this.offset = offset;
+			this.length = length;
+			this.namespaces = namespaces;
+			this.validUntil = validUntil;
+		}
+	}
+}
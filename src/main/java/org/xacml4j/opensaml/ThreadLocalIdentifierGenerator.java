@@ -0,0 +1,100 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.security.SecureRandom;
+
+import org.opensaml.common.IdentifierGenerator;
+
+/**
+ * An {@link IdentifierGenerator} producing identifiers in the same format
+ * as OpenSAML {@code SecureRandomIdentifierGenerator}, an underscore
+ * followed by hex encoded random bytes, without sharing a single
+ * {@link SecureRandom} between threads. Each thread owns a
+ * {@link SecureRandom} and a buffer of its output, every random byte is
+ * used for exactly one identifier.
+ */
+public final class ThreadLocalIdentifierGenerator implements IdentifierGenerator {
+
+	/** Number of random bytes in the identifier, 128 bits */
+	private static final int DEFAULT_SIZE = 16;
+	private static final int BUFFER_SIZE = 1024;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocalIdentifierGenerator instance = new ThreadLocalIdentifierGenerator();
+
+	public static ThreadLocalIdentifierGenerator instance() {
+		return instance;
+	}
+
+	private final ThreadLocal<RandomBuffer> buffer = new ThreadLocal<RandomBuffer>() {
+		@Override
+		protected RandomBuffer initialValue() {
+			return new RandomBuffer();
+		}
+	};
+
+	private ThreadLocalIdentifierGenerator() {
+	}
+
+	@Override
+	public String generateIdentifier() {
+		return generateIdentifier(DEFAULT_SIZE);
+	}
+
+	@Override
+	public String generateIdentifier(int size) {
+		checkArgument(size > 0, "Identifier size=%s must be positive", size);
+		char[] id = new char[1 + (size << 1)];
+		id[0] = '_';
+		buffer.get().encode(id, 1, size);
+		return new String(id);
+	}
+
+	private static final class RandomBuffer {
+
+		private final SecureRandom random = new SecureRandom();
+		private final byte[] bytes = new byte[BUFFER_SIZE];
+		private int position = BUFFER_SIZE;
+
+		void encode(char[] id, int offset, int size) {
+			while (size > 0) {
+				if (position == bytes.length) {
+					random.nextBytes(bytes);
+					position = 0;
+				}
+				int n = Math.min(size, bytes.length - position);
+				for (int i = 0; i < n; i++) {
+					int b = bytes[position];
+					bytes[position++] = 0;
+					id[offset++] = HEX[(b >> 4) & 0xf];
+					id[offset++] = HEX[b & 0xf];
+				}
+				size -= n;
+			}
+		}
+	}
+}
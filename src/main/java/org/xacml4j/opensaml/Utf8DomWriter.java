@@ -0,0 +1,324 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Writes a DOM tree as compact UTF-8 encoded XML directly to an output
+ * stream, without going through a JAXP identity transform.
+ *
+ * <p>Namespace declarations missing in the written tree, e.g. when only
+ * a subtree of a document is written, are added where the element or
+ * attribute names need them. Instances keep an internal buffer between
+ * calls and are not thread safe.
+ */
+public final class Utf8DomWriter
+{
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final byte[] XML_DECLARATION =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(Charsets.US_ASCII);
+
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int count;
+	private OutputStream out;
+
+	/**
+	 * In scope namespace bindings of the written elements, prefix and URI pairs
+	 */
+	private final List<String> bindings = new ArrayList<String>();
+
+	/**
+	 * Writes given node and its descendants
+	 *
+	 * @param node a node to write
+	 * @param out an output stream
+	 * @param xmlDeclaration {@code true} to start with an XML declaration
+	 * @throws IOException if an I/O error occurs or a text
+	 *         contains an unpaired surrogate character
+	 */
+	public void write(Node node, OutputStream out, boolean xmlDeclaration) throws IOException {
+		checkNotNull(node, "'node' is null.");
+		checkNotNull(out, "'out' is null.");
+		this.out = out;
+		try {
+			if (xmlDeclaration) {
+				writeBytes(XML_DECLARATION);
+			}
+			writeNode(node);
+			flushBuffer();
+		} finally {
+			this.out = null;
+			this.count = 0;
+			this.bindings.clear();
+		}
+	}
+
+	private void writeNode(Node node) throws IOException {
+		switch (node.getNodeType()) {
+			case Node.DOCUMENT_NODE:
+			case Node.DOCUMENT_FRAGMENT_NODE:
+			case Node.ENTITY_REFERENCE_NODE:
+				writeChildren(node);
+				break;
+			case Node.ELEMENT_NODE:
+				writeElement(node);
+				break;
+			case Node.TEXT_NODE:
+				writeEscaped(node.getNodeValue(), false);
+				break;
+			case Node.CDATA_SECTION_NODE:
+				writeAscii("<![CDATA[");
+				writeUtf8(node.getNodeValue().replace("]]>", "]]]]><![CDATA[>"));
+				writeAscii("]]>");
+				break;
+			case Node.COMMENT_NODE:
+				writeAscii("<!--");
+				writeUtf8(node.getNodeValue());
+				writeAscii("-->");
+				break;
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				writeAscii("<?");
+				writeUtf8(node.getNodeName());
+				String data = node.getNodeValue();
+				if (data != null && data.length() > 0) {
+					write(' ');
+					writeUtf8(data);
+				}
+				writeAscii("?>");
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void writeChildren(Node node) throws IOException {
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			writeNode(child);
+		}
+	}
+
+	private void writeElement(Node element) throws IOException {
+		int mark = bindings.size();
+		String name = element.getNodeName();
+		write('<');
+		writeUtf8(name);
+		NamedNodeMap attributes = element.getAttributes();
+		int length = attributes.getLength();
+		for (int i = 0; i < length; i++) {
+			Attr attr = (Attr) attributes.item(i);
+			if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+				String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getNodeName()) ?
+						XMLConstants.DEFAULT_NS_PREFIX : attr.getLocalName();
+				bind(prefix, attr.getValue());
+				writeAttribute(attr.getNodeName(), attr.getValue());
+			}
+		}
+		declare(element.getPrefix(), element.getNamespaceURI());
+		for (int i = 0; i < length; i++) {
+			Attr attr = (Attr) attributes.item(i);
+			if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+				continue;
+			}
+			if (attr.getNamespaceURI() != null && attr.getPrefix() != null) {
+				declare(attr.getPrefix(), attr.getNamespaceURI());
+			}
+			writeAttribute(attr.getNodeName(), attr.getValue());
+		}
+		if (element.getFirstChild() == null) {
+			writeAscii("/>");
+		} else {
+			write('>');
+			writeChildren(element);
+			writeAscii("</");
+			writeUtf8(name);
+			write('>');
+		}
+		while (bindings.size() > mark) {
+			bindings.remove(bindings.size() - 1);
+		}
+	}
+
+	/**
+	 * Writes a namespace declaration if given prefix is not bound to given
+	 * namespace in the written output yet
+	 */
+	private void declare(String prefix, String namespaceURI) throws IOException {
+		prefix = (prefix == null) ? XMLConstants.DEFAULT_NS_PREFIX : prefix;
+		namespaceURI = (namespaceURI == null) ? XMLConstants.NULL_NS_URI : namespaceURI;
+		if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+			return;
+		}
+		String bound = lookup(prefix);
+		if (bound == null ? namespaceURI.length() == 0 : bound.equals(namespaceURI)) {
+			return;
+		}
+		bind(prefix, namespaceURI);
+		writeAttribute(prefix.length() == 0 ?
+				XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, namespaceURI);
+	}
+
+	private void bind(String prefix, String namespaceURI) {
+		bindings.add(prefix);
+		bindings.add(namespaceURI);
+	}
+
+	private String lookup(String prefix) {
+		for (int i = bindings.size() - 2; i >= 0; i -= 2) {
+			if (bindings.get(i).equals(prefix)) {
+				return bindings.get(i + 1);
+			}
+		}
+		return null;
+	}
+
+	private void writeAttribute(String name, String value) throws IOException {
+		write(' ');
+		writeUtf8(name);
+		writeAscii("=\"");
+		writeEscaped(value, true);
+		write('"');
+	}
+
+	private void writeEscaped(String s, boolean attribute) throws IOException {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '&':
+					writeAscii("&amp;");
+					break;
+				case '<':
+					writeAscii("&lt;");
+					break;
+				case '>':
+					writeAscii("&gt;");
+					break;
+				case '\r':
+					writeAscii("&#13;");
+					break;
+				case '"':
+					if (attribute) {
+						writeAscii("&quot;");
+					} else {
+						write(c);
+					}
+					break;
+				case '\n':
+					if (attribute) {
+						writeAscii("&#10;");
+					} else {
+						write(c);
+					}
+					break;
+				case '\t':
+					if (attribute) {
+						writeAscii("&#9;");
+					} else {
+						write(c);
+					}
+					break;
+				default:
+					i = writeChar(s, i, c);
+			}
+		}
+	}
+
+	private void writeUtf8(String s) throws IOException {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			i = writeChar(s, i, s.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes UTF-8 encoding of the character at given index
+	 *
+	 * @return index of the last character consumed
+	 */
+	private int writeChar(String s, int i, char c) throws IOException {
+		if (c < 0x80) {
+			write(c);
+		} else if (c < 0x800) {
+			write(0xc0 | (c >> 6));
+			write(0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+				&& Character.isLowSurrogate(s.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(++i));
+			write(0xf0 | (cp >> 18));
+			write(0x80 | ((cp >> 12) & 0x3f));
+			write(0x80 | ((cp >> 6) & 0x3f));
+			write(0x80 | (cp & 0x3f));
+		} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+			// not representable in UTF-8, replacing it would silently alter signed content
+			throw new IOException(String.format(
+					"Unpaired surrogate character=\"\\u%04x\" at index=%d", (int) c, i));
+		} else {
+			write(0xe0 | (c >> 12));
+			write(0x80 | ((c >> 6) & 0x3f));
+			write(0x80 | (c & 0x3f));
+		}
+		return i;
+	}
+
+	private void writeAscii(String s) throws IOException {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			write(s.charAt(i));
+		}
+	}
+
+	private void writeBytes(byte[] b) throws IOException {
+		for (byte v : b) {
+			write(v);
+		}
+	}
+
+	private void write(int b) throws IOException {
+		if (count == buf.length) {
+			flushBuffer();
+		}
+		buf[count++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
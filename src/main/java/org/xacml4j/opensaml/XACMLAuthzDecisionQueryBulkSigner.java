@@ -0,0 +1,524 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Signs many XACML authorization decision queries in parallel using an
+ * {@link XACMLAuthzDecisionQuerySigner}. Queries are read either from the
+ * XML files of a directory or from a stream of concatenated XML documents,
+ * signing failures are logged and counted without stopping the run.
+ *
+ * Can be used from the command line:
+ * <pre>
+ * java org.xacml4j.opensaml.XACMLAuthzDecisionQueryBulkSigner \
+ *     -keystore sp.jceks -storepass changeme -alias mykey -keypass changeme \
+ *     [-storetype JCEKS] [-threads 8] input output
+ * </pre>
+ * where {@code input} and {@code output} are either both directories or
+ * both files of concatenated queries.
+ */
+public class XACMLAuthzDecisionQueryBulkSigner
+{
+	private final static Logger log = LoggerFactory.getLogger(XACMLAuthzDecisionQueryBulkSigner.class);
+
+	private static final String XML_FILE_SUFFIX = ".xml";
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+	private static final int QUERIES_IN_FLIGHT_PER_THREAD = 4;
+
+	private final XACMLAuthzDecisionQuerySigner signer;
+	private int threads;
+
+	public XACMLAuthzDecisionQueryBulkSigner(XACMLAuthzDecisionQuerySigner signer) {
+		this.signer = checkNotNull(signer, "'signer' is null.");
+		this.threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Sets the number of signing threads, by default
+	 * the number of available processors
+	 *
+	 * @param threads a number of signing threads
+	 */
+	public void setThreads(int threads) {
+		checkArgument(threads > 0, "Number of threads=%s must be positive", threads);
+		this.threads = threads;
+	}
+
+	/**
+	 * Signs each XML file of the input directory into a file
+	 * with the same name in the output directory
+	 *
+	 * @param input an input directory
+	 * @param output an output directory, created if it does not exist
+	 * @return signing summary
+	 * @throws IOException if directories can not be accessed
+	 */
+	public Summary signDirectory(File input, final File output) throws IOException {
+		checkNotNull(input, "'input' is null.");
+		checkNotNull(output, "'output' is null.");
+		File[] files = input.listFiles();
+		if (files == null) {
+			throw new IOException("Failed to list directory=\"" + input + "\"");
+		}
+		if (!output.isDirectory() && !output.mkdirs()) {
+			throw new IOException("Failed to create directory=\"" + output + "\"");
+		}
+		Arrays.sort(files);
+		long start = System.nanoTime();
+		ExecutorService executor = newExecutor();
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.length);
+			for (final File file : files) {
+				if (!file.isFile() || !file.getName().endsWith(XML_FILE_SUFFIX)) {
+					continue;
+				}
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws IOException {
+						return signFile(file, new File(output, file.getName()));
+					}
+				}));
+			}
+			int signed = 0;
+			for (Future<Boolean> result : results) {
+				if (get(result) != null) {
+					signed++;
+				}
+			}
+			return new Summary(signed, results.size() - signed, System.nanoTime() - start);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Signs a stream of concatenated XML queries. Signed queries are
+	 * written in the input order, each followed by a line break, queries
+	 * failed to sign are omitted.
+	 *
+	 * @param input an input stream of concatenated queries
+	 * @param output an output stream for signed queries
+	 * @return signing summary
+	 * @throws IOException if reading input or writing output fails
+	 */
+	public Summary signConcatenated(InputStream input, OutputStream output) throws IOException {
+		checkNotNull(input, "'input' is null.");
+		checkNotNull(output, "'output' is null.");
+		XmlDocumentReader reader = new XmlDocumentReader(input);
+		int maxInFlight = threads * QUERIES_IN_FLIGHT_PER_THREAD;
+		Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>(maxInFlight);
+		int signed = 0;
+		int failed = 0;
+		long start = System.nanoTime();
+		ExecutorService executor = newExecutor();
+		try {
+			byte[] query;
+			while ((query = reader.next()) != null) {
+				if (inFlight.size() == maxInFlight) {
+					if (write(get(inFlight.removeFirst()), output)) {
+						signed++;
+					} else {
+						failed++;
+					}
+				}
+				inFlight.addLast(executor.submit(new SigningTask(reader.getCount(), query)));
+			}
+			while (!inFlight.isEmpty()) {
+				if (write(get(inFlight.removeFirst()), output)) {
+					signed++;
+				} else {
+					failed++;
+				}
+			}
+			output.flush();
+			return new Summary(signed, failed, System.nanoTime() - start);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ExecutorService newExecutor() {
+		return Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder()
+						.setDaemon(true)
+						.setNameFormat("xacml-authz-signer-%d")
+						.build());
+	}
+
+	private Boolean signFile(File input, File output) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(input));
+		ByteArrayOutputStream signed = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		try {
+			signer.signRequest(in, signed);
+		} catch (Exception e) {
+			log.warn("Failed to sign query file=\"{}\", {}", input, e.toString());
+			return null;
+		} finally {
+			in.close();
+		}
+		OutputStream out = new FileOutputStream(output);
+		try {
+			signed.writeTo(out);
+		} finally {
+			out.close();
+		}
+		return Boolean.TRUE;
+	}
+
+	private static boolean write(byte[] signed, OutputStream output) throws IOException {
+		if (signed == null) {
+			return false;
+		}
+		output.write(signed);
+		output.write('\n');
+		return true;
+	}
+
+	/**
+	 * Waits for the result of a signing task, task
+	 * failures other than I/O errors yield {@code null}
+	 */
+	private static <T> T get(Future<T> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while signing queries");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private final class SigningTask implements Callable<byte[]> {
+
+		private final int index;
+		private final byte[] query;
+
+		SigningTask(int index, byte[] query) {
+			this.index = index;
+			this.query = query;
+		}
+
+		@Override
+		public byte[] call() {
+			ByteArrayOutputStream signed = new ByteArrayOutputStream(query.length + INITIAL_BUFFER_SIZE);
+			try {
+				signer.signRequest(new ByteArrayInputStream(query), signed);
+				return signed.toByteArray();
+			} catch (Exception e) {
+				log.warn("Failed to sign query number={}, {}", index, e.toString());
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * A result of a bulk signing run
+	 */
+	public static final class Summary {
+
+		private final int signed;
+		private final int failed;
+		private final long elapsedNanos;
+
+		Summary(int signed, int failed, long elapsedNanos) {
+			this.signed = signed;
+			this.failed = failed;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public int getSigned() {
+			return signed;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public long getElapsed(TimeUnit unit) {
+			return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * @return signed queries per second
+		 */
+		public double getThroughput() {
+			return (elapsedNanos == 0) ? 0 : signed * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("signed=%d, failed=%d, elapsed=%dms, throughput=%.1f/s",
+					signed, failed, getElapsed(TimeUnit.MILLISECONDS), getThroughput());
+		}
+	}
+
+	/**
+	 * Splits a stream of concatenated XML documents. Scans the markup
+	 * only, documents are expected to be in an ASCII compatible encoding.
+	 */
+	static final class XmlDocumentReader {
+
+		private final InputStream in;
+		private ByteArrayOutputStream document;
+		private int count;
+
+		XmlDocumentReader(InputStream in) {
+			this.in = (in instanceof BufferedInputStream) ? in : new BufferedInputStream(in);
+		}
+
+		/**
+		 * @return the next document or {@code null} at the end of the stream
+		 * @throws IOException if the stream ends in the middle of a document
+		 */
+		byte[] next() throws IOException {
+			int c;
+			do {
+				c = in.read();
+			} while (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+			if (c < 0) {
+				return null;
+			}
+			if (c != '<') {
+				throw new IOException("Unexpected content outside of XML document number=" + (count + 1));
+			}
+			document = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+			int depth = 0;
+			boolean root = false;
+			while (true) {
+				document.write('<');
+				c = read();
+				if (c == '?') {
+					document.write(c);
+					copyUntil("?>");
+				} else if (c == '!') {
+					document.write(c);
+					c = read();
+					document.write(c);
+					if (c == '-') {
+						// the second dash of the comment start can not end the comment
+						document.write(read());
+						copyUntil("-->");
+					} else if (c == '[') {
+						copyUntil("]]>");
+					} else {
+						copyDeclaration();
+					}
+				} else if (c == '/') {
+					document.write(c);
+					copyTag();
+					depth--;
+				} else {
+					document.write(c);
+					if (!copyTag()) {
+						depth++;
+					}
+					root = true;
+				}
+				if (root && depth == 0) {
+					count++;
+					return document.toByteArray();
+				}
+				while ((c = read()) != '<') {
+					document.write(c);
+				}
+			}
+		}
+
+		/**
+		 * @return the number of documents read so far
+		 */
+		int getCount() {
+			return count;
+		}
+
+		private int read() throws IOException {
+			int c = in.read();
+			if (c < 0) {
+				throw new IOException("Truncated XML document number=" + (count + 1));
+			}
+			return c;
+		}
+
+		/**
+		 * Copies up to and including the given end sequence, comparing it
+		 * with a window of the last characters read, i.e. "]]]>" ends
+		 * a CDATA section.
+		 */
+		private void copyUntil(String end) throws IOException {
+			StringBuilder window = new StringBuilder(end.length());
+			while (true) {
+				int c = read();
+				document.write(c);
+				if (window.length() == end.length()) {
+					window.deleteCharAt(0);
+				}
+				window.append((char) c);
+				if (window.length() == end.length()
+						&& end.regionMatches(0, window.toString(), 0, end.length())) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Copies a tag up to the closing '>' skipping quoted attribute values
+		 *
+		 * @return {@code true} if the tag is an empty element tag
+		 */
+		private boolean copyTag() throws IOException {
+			int quote = 0;
+			int previous = 0;
+			while (true) {
+				int c = read();
+				document.write(c);
+				if (quote != 0) {
+					if (c == quote) {
+						quote = 0;
+					}
+				} else if (c == '"' || c == '\'') {
+					quote = c;
+				} else if (c == '>') {
+					return previous == '/';
+				}
+				previous = c;
+			}
+		}
+
+		private void copyDeclaration() throws IOException {
+			int quote = 0;
+			int brackets = 0;
+			while (true) {
+				int c = read();
+				document.write(c);
+				if (quote != 0) {
+					if (c == quote) {
+						quote = 0;
+					}
+				} else if (c == '"' || c == '\'') {
+					quote = c;
+				} else if (c == '[') {
+					brackets++;
+				} else if (c == ']') {
+					brackets--;
+				} else if (c == '>' && brackets == 0) {
+					return;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String keyStore = null;
+		String storeType = "JCEKS";
+		String storePassword = null;
+		String alias = null;
+		String keyPassword = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-keystore".equals(args[i]) && i + 1 < args.length) {
+				keyStore = args[++i];
+			} else if ("-storetype".equals(args[i]) && i + 1 < args.length) {
+				storeType = args[++i];
+			} else if ("-storepass".equals(args[i]) && i + 1 < args.length) {
+				storePassword = args[++i];
+			} else if ("-alias".equals(args[i]) && i + 1 < args.length) {
+				alias = args[++i];
+			} else if ("-keypass".equals(args[i]) && i + 1 < args.length) {
+				keyPassword = args[++i];
+			} else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (keyStore == null || storePassword == null || alias == null || files.size() != 2) {
+			System.err.println("Usage: " + XACMLAuthzDecisionQueryBulkSigner.class.getName() +
+					" -keystore <file> -storepass <password> -alias <alias> [-keypass <password>]" +
+					" [-storetype <type>] [-threads <n>] <input> <output>");
+			System.exit(2);
+		}
+		KeyStore ks = KeyStore.getInstance(storeType);
+		InputStream in = new FileInputStream(keyStore);
+		try {
+			ks.load(in, storePassword.toCharArray());
+		} finally {
+			in.close();
+		}
+		XACMLAuthzDecisionQueryBulkSigner bulkSigner = new XACMLAuthzDecisionQueryBulkSigner(
+				new XACMLAuthzDecisionQuerySigner(ks, alias, (keyPassword != null) ? keyPassword : storePassword));
+		bulkSigner.setThreads(threads);
+		File input = new File(files.get(0));
+		File output = new File(files.get(1));
+		Summary summary;
+		if (input.isDirectory()) {
+			summary = bulkSigner.signDirectory(input, output);
+		} else {
+			in = new FileInputStream(input);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+			try {
+				summary = bulkSigner.signConcatenated(in, out);
+			} finally {
+				out.close();
+				in.close();
+			}
+		}
+		System.out.println(summary);
+		System.exit(summary.getFailed() == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,772 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.xml.transform.TransformerException;
+
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.Statement;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.saml2.metadata.PDPDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionStatementType;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.signature.SignatureException;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.util.XMLHelper;
+import org.opensaml.xml.validation.ValidationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A PEP side client sending signed XACML authorization decision queries to
+ * a PDP over the SAML 2.0 SOAP 1.1 binding. Queries are sent over a bounded
+ * set of persistent HTTP/1.1 connections, each connection carries one
+ * query at a time. The response signature is verified against the PDP
+ * signing keys in the metadata before the XACML decision is returned.
+ */
+public class XACMLAuthzDecisionQueryClient
+{
+	private final static Logger log = LoggerFactory.getLogger(XACMLAuthzDecisionQueryClient.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+	public static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+
+	private static final String SOAP11_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+	private static final String SOAP_ACTION = "http://www.oasis-open.org/committees/security";
+
+	private static final byte[] ENVELOPE_START = ascii(
+			"<soap11:Envelope xmlns:soap11=\"" + SOAP11_NS + "\"><soap11:Body>");
+	private static final byte[] ENVELOPE_END = ascii("</soap11:Body></soap11:Envelope>");
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+	private final String issuer;
+	private final String pdpEntityId;
+	private final URI location;
+	private final XACMLAuthzDecisionQuerySigner signer;
+	private final SignatureTrustEngine trustEngine;
+	private final BasicParserPool parserPool;
+	private final byte[] requestHeader;
+
+	private volatile String destination;
+	private ConnectionPool connections;
+	private ListeningExecutorService executor;
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+	private volatile long keepAliveTimeout;
+	private volatile int maxResponseSize;
+	private SSLSocketFactory sslSocketFactory;
+	private HostnameVerifier hostnameVerifier;
+
+	/**
+	 * Creates a client for the given PDP
+	 *
+	 * @param issuer the PEP entity identifier, the issuer of the queries
+	 * @param pdpEntityId the PDP entity identifier, the expected issuer
+	 *        of the responses
+	 * @param location the PDP authorization service location
+	 * @param signer a query signer
+	 * @param metadata a metadata with the PDP signing keys
+	 */
+	public XACMLAuthzDecisionQueryClient(String issuer,
+			String pdpEntityId,
+			String location,
+			XACMLAuthzDecisionQuerySigner signer,
+			MetadataProvider metadata) {
+		this.issuer = checkNotNull(issuer, "'issuer' is null.");
+		this.pdpEntityId = checkNotNull(pdpEntityId, "'pdpEntityId' is null.");
+		this.location = URI.create(checkNotNull(location, "'location' is null."));
+		checkArgument("http".equals(this.location.getScheme()) || "https".equals(this.location.getScheme()),
+				"Unsupported location=\"%s\"", location);
+		this.signer = checkNotNull(signer, "'signer' is null.");
+		checkNotNull(metadata, "'metadata' is null.");
+		this.trustEngine = DefaultIDPConfiguration.createDefaultSignatureTrustEngine(metadata);
+		this.parserPool = OpenSamlObjectBuilder.newSecureParserPool();
+		this.requestHeader = makeRequestHeader(this.location);
+		this.destination = location;
+		this.connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+		this.readTimeout = DEFAULT_READ_TIMEOUT;
+		this.keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+		this.maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+		this.sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		this.hostnameVerifier = org.apache.commons.ssl.HostnameVerifier.STRICT;
+		this.connections = new ConnectionPool(DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Sets the maximum number of connections to the PDP, by default
+	 * {@link #DEFAULT_MAX_CONNECTIONS}. Queries wait for a free connection
+	 * for at most the connect timeout.
+	 *
+	 * @param maxConnections a maximum number of connections
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		checkArgument(maxConnections > 0, "Maximum number of connections=%s must be positive", maxConnections);
+		ConnectionPool previous = connections;
+		connections = new ConnectionPool(maxConnections);
+		previous.close();
+	}
+
+	/**
+	 * Sets the query destination, by default the location the queries
+	 * are sent to. Use when the PDP is reached through an address other
+	 * than its published authorization service location.
+	 *
+	 * @param destination a published authorization service location
+	 */
+	public void setDestination(String destination) {
+		this.destination = checkNotNull(destination, "'destination' is null.");
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		checkArgument(connectTimeout >= 0, "Connect timeout=%s must not be negative", connectTimeout);
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		checkArgument(readTimeout >= 0, "Read timeout=%s must not be negative", readTimeout);
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets the time after which idle connections are not reused
+	 *
+	 * @param timeout a timeout
+	 * @param unit a unit of the timeout
+	 */
+	public void setKeepAliveTimeout(long timeout, TimeUnit unit) {
+		checkArgument(timeout >= 0, "Keep-alive timeout=%s must not be negative", timeout);
+		this.keepAliveTimeout = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Sets the maximum size of a PDP response body in bytes, by default
+	 * {@link #DEFAULT_MAX_RESPONSE_SIZE}. Larger responses fail the query.
+	 *
+	 * @param maxResponseSize a maximum response size
+	 */
+	public void setMaxResponseSize(int maxResponseSize) {
+		checkArgument(maxResponseSize > 0, "Maximum response size=%s must be positive", maxResponseSize);
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	/**
+	 * Sets a factory of TLS connections to a "https" location,
+	 * by default the JVM default factory
+	 *
+	 * @param sslSocketFactory a TLS socket factory
+	 */
+	public synchronized void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory = checkNotNull(sslSocketFactory, "'sslSocketFactory' is null.");
+	}
+
+	/**
+	 * Sets a verifier of the PDP certificate against the location host
+	 * name, by default strict matching of the certificate names
+	 *
+	 * @param hostnameVerifier a host name verifier
+	 */
+	public synchronized void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
+		this.hostnameVerifier = checkNotNull(hostnameVerifier, "'hostnameVerifier' is null.");
+	}
+
+	/**
+	 * Sets an executor used by {@link #decideAsync(RequestType)}. By default
+	 * queries are sent from a shared pool of daemon threads.
+	 *
+	 * @param executor an executor service or {@code null} to use the default pool
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = (executor != null) ? MoreExecutors.listeningDecorator(executor) : null;
+	}
+
+	/**
+	 * Builds, signs and sends an XACML authorization decision query
+	 * carrying the given request.
+	 *
+	 * @param request an XACML request
+	 * @return the XACML response of the PDP
+	 * @throws IOException if the query can not be sent or the PDP
+	 *         returns an error
+	 * @throws SecurityException if the query can not be signed or the
+	 *         response signature is not trusted
+	 */
+	public ResponseType decide(RequestType request) throws IOException, SecurityException {
+		checkNotNull(request, "'request' is null.");
+		XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.makeXacml20SamlAuthzDecisionQuery(
+				issuer, destination, false, request);
+		byte[] body = encode(query);
+		Response response = decode(getConnections().send(body));
+		return verify(query, response);
+	}
+
+	/**
+	 * An asynchronous variant of {@link #decide(RequestType)}, the
+	 * returned future fails with the exception thrown by it.
+	 *
+	 * @param request an XACML request
+	 * @return a future XACML response of the PDP
+	 */
+	public ListenableFuture<ResponseType> decideAsync(final RequestType request) {
+		checkNotNull(request, "'request' is null.");
+		return getExecutor().submit(new Callable<ResponseType>() {
+			@Override
+			public ResponseType call() throws Exception {
+				return decide(request);
+			}
+		});
+	}
+
+	/**
+	 * Closes idle connections, connections in use are
+	 * closed when their query completes
+	 */
+	public void close() {
+		getConnections().close();
+	}
+
+	private synchronized ConnectionPool getConnections() {
+		return connections;
+	}
+
+	private synchronized SSLSocketFactory getSSLSocketFactory() {
+		return sslSocketFactory;
+	}
+
+	private synchronized HostnameVerifier getHostnameVerifier() {
+		return hostnameVerifier;
+	}
+
+	private synchronized ListeningExecutorService getExecutor() {
+		return (executor != null) ? executor : DefaultExecutor.executor;
+	}
+
+	private byte[] encode(XACMLAuthzDecisionQueryType query) throws IOException, SecurityException {
+		try {
+			signer.signRequest(query);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+			out.write(ENVELOPE_START);
+			OpenSamlObjectBuilder.serialize(query.getDOM(), out);
+			out.write(ENVELOPE_END);
+			return out.toByteArray();
+		} catch (MarshallingException e) {
+			throw new SecurityException("Failed to marshall query", e);
+		} catch (SignatureException e) {
+			throw new SecurityException("Failed to sign query", e);
+		} catch (TransformerException e) {
+			throw new IOException("Failed to serialize query", e);
+		}
+	}
+
+	private Response decode(byte[] body) throws IOException {
+		Element envelope;
+		try {
+			envelope = parserPool.parse(new ByteArrayInputStream(body)).getDocumentElement();
+		} catch (XMLParserException e) {
+			throw new IOException("Failed to parse SOAP response", e);
+		}
+		Element soapBody = XMLHelper.getFirstChildElement(envelope);
+		if (soapBody != null && "Header".equals(soapBody.getLocalName())) {
+			soapBody = XMLHelper.getNextSiblingElement(soapBody);
+		}
+		Element message = (soapBody != null) ? XMLHelper.getFirstChildElement(soapBody) : null;
+		if (!SOAP11_NS.equals(envelope.getNamespaceURI()) || message == null) {
+			throw new IOException("Invalid SOAP response");
+		}
+		if (SOAP11_NS.equals(message.getNamespaceURI()) && "Fault".equals(message.getLocalName())) {
+			List<Element> faultString = XMLHelper.getChildElementsByTagName(message, "faultstring");
+			throw new IOException("PDP returned SOAP fault=\"" +
+					(faultString.isEmpty() ? "" : faultString.get(0).getTextContent()) + "\"");
+		}
+		Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(message);
+		if (unmarshaller == null) {
+			throw new IOException("Unexpected SAML message=\"" + message.getNodeName() + "\"");
+		}
+		XMLObject response;
+		try {
+			response = unmarshaller.unmarshall(message);
+		} catch (UnmarshallingException e) {
+			throw new IOException("Failed to unmarshall SAML response", e);
+		} catch (RuntimeException e) {
+			// unmarshallers throw unchecked exceptions for malformed values, e.g. IssueInstant
+			throw new IOException("Failed to unmarshall SAML response", e);
+		}
+		if (!(response instanceof Response)) {
+			throw new IOException("Unexpected SAML message=\"" + message.getNodeName() + "\"");
+		}
+		return (Response) response;
+	}
+
+	private ResponseType verify(XACMLAuthzDecisionQueryType query, Response response)
+			throws IOException, SecurityException {
+		if (response.getIssuer() == null || !pdpEntityId.equals(response.getIssuer().getValue())) {
+			throw new SecurityException("Response is not issued by PDP=\"" + pdpEntityId + "\"");
+		}
+		if (!query.getID().equals(response.getInResponseTo())) {
+			throw new SecurityException("Response is not in response to query=\"" + query.getID() + "\"");
+		}
+		if (response.getSignature() == null) {
+			throw new SecurityException("Response is not signed");
+		}
+		try {
+			new SAMLSignatureProfileValidator().validate(response.getSignature());
+		} catch (ValidationException e) {
+			throw new SecurityException("Response signature does not conform to SAML signature profile", e);
+		}
+		CriteriaSet criteria = new CriteriaSet();
+		criteria.add(new EntityIDCriteria(pdpEntityId));
+		criteria.add(new MetadataCriteria(PDPDescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
+		criteria.add(new UsageCriteria(UsageType.SIGNING));
+		if (!trustEngine.validate(response.getSignature(), criteria)) {
+			throw new SecurityException("Response signature is not trusted");
+		}
+		StatusCode status = response.getStatus().getStatusCode();
+		if (!StatusCode.SUCCESS_URI.equals(status.getValue())) {
+			String message = (response.getStatus().getStatusMessage() != null) ?
+					response.getStatus().getStatusMessage().getMessage() : null;
+			throw new IOException("PDP returned status=\"" + status.getValue() +
+					"\", message=\"" + message + "\"");
+		}
+		for (Assertion assertion : response.getAssertions()) {
+			for (Statement statement : assertion.getStatements()) {
+				if (statement instanceof XACMLAuthzDecisionStatementType &&
+						((XACMLAuthzDecisionStatementType) statement).getResponse() != null) {
+					return ((XACMLAuthzDecisionStatementType) statement).getResponse();
+				}
+			}
+		}
+		throw new IOException("Response does not contain XACML authorization decision statement");
+	}
+
+	private static byte[] makeRequestHeader(URI location) {
+		String path = (location.getRawPath() == null || location.getRawPath().isEmpty()) ? "/" : location.getRawPath();
+		if (location.getRawQuery() != null) {
+			path = path + "?" + location.getRawQuery();
+		}
+		return ascii("POST " + path + " HTTP/1.1\r\n" +
+				"Host: " + location.getRawAuthority() + "\r\n" +
+				"Content-Type: text/xml; charset=utf-8\r\n" +
+				"SOAPAction: \"" + SOAP_ACTION + "\"\r\n" +
+				"Connection: keep-alive\r\n");
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A bounded pool of persistent connections, idle connections are
+	 * reused most recently released first so surplus connections expire
+	 */
+	private final class ConnectionPool {
+
+		private final Semaphore permits;
+		private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+		private volatile boolean closed;
+
+		ConnectionPool(int maxConnections) {
+			this.permits = new Semaphore(maxConnections, true);
+		}
+
+		byte[] send(byte[] body) throws IOException {
+			try {
+				if (!permits.tryAcquire(Math.max(connectTimeout, 1), TimeUnit.MILLISECONDS)) {
+					throw new IOException("Timed out waiting for a connection to=\"" + location + "\"");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a connection to=\"" + location + "\"");
+			}
+			try {
+				Connection c = takeIdle();
+				if (c != null) {
+					try {
+						return exchange(c, body);
+					} catch (StaleConnectionException e) {
+						// the server closed the idle connection before answering, retry once
+						if (log.isDebugEnabled()) {
+							log.debug("Reused connection failed, retrying on a new connection", e);
+						}
+						c.close();
+					}
+				}
+				return exchange(open(), body);
+			} finally {
+				permits.release();
+			}
+		}
+
+		private byte[] exchange(Connection c, byte[] body) throws IOException {
+			boolean reusable = false;
+			try {
+				byte[] response = c.exchange(body);
+				reusable = c.keepAlive;
+				return response;
+			} finally {
+				if (reusable && !closed) {
+					c.lastUsed = System.currentTimeMillis();
+					idle.addFirst(c);
+				} else {
+					c.close();
+				}
+			}
+		}
+
+		private Connection takeIdle() {
+			long now = System.currentTimeMillis();
+			Connection c;
+			while ((c = idle.pollFirst()) != null) {
+				if (now - c.lastUsed < keepAliveTimeout) {
+					return c;
+				}
+				c.close();
+			}
+			return null;
+		}
+
+		private Connection open() throws IOException {
+			boolean https = "https".equals(location.getScheme());
+			String host = location.getHost();
+			int port = location.getPort();
+			if (port < 0) {
+				port = https ? 443 : 80;
+			}
+			Socket socket = SocketFactory.getDefault().createSocket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+				socket.setSoTimeout(readTimeout);
+				if (https) {
+					socket = startTls(socket, host, port);
+				}
+				if (log.isDebugEnabled()) {
+					log.debug("Opened connection to=\"{}\"", location);
+				}
+				return new Connection(socket);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Layers TLS over the connected socket, passing the host name
+		 * for SNI, and verifies the host name against the PDP certificate
+		 */
+		private Socket startTls(Socket socket, String host, int port) throws IOException {
+			SSLSocket sslSocket = (SSLSocket) getSSLSocketFactory().createSocket(socket, host, port, true);
+			try {
+				sslSocket.startHandshake();
+				if (!getHostnameVerifier().verify(host, sslSocket.getSession())) {
+					throw new SSLPeerUnverifiedException(
+							"PDP certificate does not match host=\"" + host + "\"");
+				}
+				return sslSocket;
+			} catch (IOException e) {
+				sslSocket.close();
+				throw e;
+			}
+		}
+
+		void close() {
+			closed = true;
+			Connection c;
+			while ((c = idle.pollFirst()) != null) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Signals that a persistent connection failed before the PDP started
+	 * to answer, i.e. the PDP closed it while idle, so the request can be
+	 * safely sent again on a new connection
+	 */
+	private static final class StaleConnectionException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		StaleConnectionException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * A single persistent HTTP/1.1 connection
+	 */
+	private final class Connection {
+
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		long lastUsed;
+		boolean keepAlive;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		/**
+		 * Sends the given request body and reads the response
+		 *
+		 * @throws StaleConnectionException if the connection failed before
+		 *         any response byte arrived, the request was not processed
+		 */
+		byte[] exchange(byte[] body) throws IOException {
+			try {
+				out.write(requestHeader);
+				out.write(ascii("Content-Length: " + body.length + "\r\n\r\n"));
+				out.write(body);
+				out.flush();
+				in.mark(1);
+				if (in.read() < 0) {
+					throw new StaleConnectionException("Connection closed by PDP", null);
+				}
+				in.reset();
+			} catch (SocketTimeoutException e) {
+				// the PDP may still be processing the request
+				throw e;
+			} catch (StaleConnectionException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new StaleConnectionException("Connection closed by PDP", e);
+			}
+			int status;
+			do {
+				status = readStatus();
+				keepAlive = true;
+				long contentLength = -1;
+				boolean chunked = false;
+				String header;
+				while (!(header = readLine()).isEmpty()) {
+					int colon = header.indexOf(':');
+					if (colon < 0) {
+						throw new IOException("Malformed HTTP header=\"" + header + "\"");
+					}
+					String name = header.substring(0, colon).trim();
+					String value = header.substring(colon + 1).trim();
+					if ("Content-Length".equalsIgnoreCase(name)) {
+						try {
+							contentLength = Long.parseLong(value);
+						} catch (NumberFormatException e) {
+							throw new IOException("Malformed HTTP Content-Length=\"" + value + "\"");
+						}
+					} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+						chunked = value.toLowerCase().contains("chunked");
+					} else if ("Connection".equalsIgnoreCase(name)) {
+						keepAlive = !"close".equalsIgnoreCase(value);
+					}
+				}
+				if (status == 100) {
+					continue;
+				}
+				byte[] response;
+				if (chunked) {
+					response = readChunked();
+				} else if (contentLength >= 0) {
+					response = readFully(contentLength);
+				} else {
+					keepAlive = false;
+					response = readToEnd();
+				}
+				// SOAP faults are returned with status 500
+				if (status != 200 && status != 500) {
+					throw new IOException("PDP returned HTTP status=\"" + status + "\"");
+				}
+				return response;
+			} while (true);
+		}
+
+		private int readStatus() throws IOException {
+			String line = readLine();
+			String[] parts = line.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+				throw new IOException("Malformed HTTP status line=\"" + line + "\"");
+			}
+			try {
+				return Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed HTTP status line=\"" + line + "\"");
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder b = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0) {
+					throw new IOException("Connection closed by PDP");
+				}
+				if (c != '\r') {
+					if (b.length() == MAX_LINE_LENGTH) {
+						throw new IOException("HTTP response line is too long");
+					}
+					b.append((char) c);
+				}
+			}
+			return b.toString();
+		}
+
+		private byte[] readFully(long length) throws IOException {
+			if (length > maxResponseSize) {
+				throw new IOException("HTTP response is larger than maxResponseSize=" + maxResponseSize);
+			}
+			byte[] b = new byte[(int) length];
+			int off = 0;
+			while (off < b.length) {
+				int n = in.read(b, off, b.length - off);
+				if (n < 0) {
+					throw new IOException("Connection closed by PDP");
+				}
+				off += n;
+			}
+			return b;
+		}
+
+		private byte[] readChunked() throws IOException {
+			ByteArrayOutputStream b = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+			long size;
+			do {
+				String line = readLine();
+				int ext = line.indexOf(';');
+				try {
+					size = Long.parseLong((ext < 0 ? line : line.substring(0, ext)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed HTTP chunk size=\"" + line + "\"");
+				}
+				if (size > maxResponseSize - b.size()) {
+					throw new IOException("HTTP response is larger than maxResponseSize=" + maxResponseSize);
+				}
+				b.write(readFully(size));
+				if (size > 0) {
+					readLine();
+				}
+			} while (size > 0);
+			while (!readLine().isEmpty()) {
+				// trailers are ignored
+			}
+			return b.toByteArray();
+		}
+
+		private byte[] readToEnd() throws IOException {
+			ByteArrayOutputStream b = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+			byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				if (n > maxResponseSize - b.size()) {
+					throw new IOException("HTTP response is larger than maxResponseSize=" + maxResponseSize);
+				}
+				b.write(buf, 0, n);
+			}
+			return b.toByteArray();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Failed to close connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lazily created default executor for {@link #decideAsync(RequestType)}
+	 */
+	private static final class DefaultExecutor {
+
+		static final ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+				Executors.newCachedThreadPool(
+						new ThreadFactoryBuilder()
+								.setDaemon(true)
+								.setNameFormat("xacml-authz-client-%d")
+								.build()));
+	}
+}
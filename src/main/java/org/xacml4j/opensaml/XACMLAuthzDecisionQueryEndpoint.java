@@ -24,11 +24,27 @@ package org.xacml4j.opensaml;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.xml.namespace.QName;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMResult;
 
 import org.opensaml.common.xml.SAMLConstants;
@@ -44,24 +60,29 @@ import org.opensaml.xacml.ctx.RequestType;
 import org.opensaml.xacml.ctx.ResponseType;
 import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
 import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.BasicParserPool;
 import org.opensaml.xml.parse.XMLParserException;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
-import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.StaticCredentialResolver;
 import org.opensaml.xml.security.credential.UsageType;
 import org.opensaml.xml.security.criteria.EntityIDCriteria;
 import org.opensaml.xml.security.criteria.UsageCriteria;
-import org.opensaml.xml.signature.Signature;
-import org.opensaml.xml.signature.SignatureConstants;
 import org.opensaml.xml.signature.SignatureException;
-import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.impl.ExplicitKeySignatureTrustEngine;
 import org.opensaml.xml.validation.ValidationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xacml4j.opensaml.EndpointMetricsListener.Outcome;
+import org.xacml4j.opensaml.EndpointMetricsListener.Stage;
 import org.xacml4j.v30.Attribute;
 import org.xacml4j.v30.Categories;
 import org.xacml4j.v30.Category;
@@ -75,20 +96,64 @@ import org.xacml4j.v30.marshal.jaxb.Xacml20ResponseContextMarshaller;
 import org.xacml4j.v30.pdp.PolicyDecisionPoint;
 import org.xacml4j.v30.types.StringExp;
 
-public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint {
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint, OpenSamlStreamEndpoint {
 
 	private static final Logger log = LoggerFactory.getLogger(XACMLAuthzDecisionQueryEndpoint.class);
 
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+	private static final int MAX_INTERMEDIARY_SUBJECTS = 1024;
+
+	/**
+	 * Per thread response buffer, reused across {@link #handle(InputStream, OutputStream)} calls
+	 */
+	private static final ThreadLocal<ReusableByteArrayOutputStream> responseBuffer =
+			new ThreadLocal<ReusableByteArrayOutputStream>() {
+				@Override
+				protected ReusableByteArrayOutputStream initialValue() {
+					return new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+				}
+			};
+
 	private final IDPConfiguration idpConfig;
 
 	private final PolicyDecisionPoint pdp;
 	private final SigningCredentialSelector credentialSelector;
 	private final Xacml20RequestContextUnmarshaller xacmlRequest20Unmarshaller;
 	private final Xacml20ResponseContextMarshaller xacmlResponse20Unmarshaller;
+	private final OpenSamlXacml20RequestTranslator xacmlRequest20Translator;
 
 	private final BasicParserPool parserPool;
 
+	/**
+	 * Intermediary subject categories by request issuer, the issuers
+	 * are the relying parties known from the metadata
+	 */
+	private final LoadingCache<String, Category> intermediarySubjects = CacheBuilder.newBuilder()
+			.maximumSize(MAX_INTERMEDIARY_SUBJECTS)
+			.build(new CacheLoader<String, Category>() {
+				@Override
+				public Category load(String issuer) {
+					return makeIntermediarySubject(issuer);
+				}
+			});
+
 	private boolean requireSignatureValidation;
+	private boolean directRequestTranslation;
+	private boolean responseTemplates;
+	private DecisionCache decisionCache;
+	private ExecutorService batchExecutor;
+	private EndpointMetricsListener metricsListener;
+	private SignatureAlgorithms signatureAlgorithms;
+	private Map<Credential, SignatureAlgorithms> credentialSignatureAlgorithms;
+	private boolean timed;
 
 	@Deprecated
 	public XACMLAuthzDecisionQueryEndpoint(
@@ -105,64 +170,390 @@ public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint {
 
 		xacmlRequest20Unmarshaller = new Xacml20RequestContextUnmarshaller();
 		xacmlResponse20Unmarshaller = new Xacml20ResponseContextMarshaller();
-		parserPool = new BasicParserPool();
-		parserPool.setNamespaceAware(true);
+		xacmlRequest20Translator = OpenSamlXacml20RequestTranslator.instance();
+		parserPool = OpenSamlObjectBuilder.newSecureParserPool();
 		requireSignatureValidation = true;
+		directRequestTranslation = true;
+		metricsListener = NoopEndpointMetricsListener.instance();
+		credentialSignatureAlgorithms = Collections.emptyMap();
 	}
 
 	public void setRequireSignatureValidation(boolean flag) {
 		requireSignatureValidation = flag;
 	}
 
+	/**
+	 * Enables or disables direct translation of the OpenSAML XACML request
+	 * into the {@link RequestContext}. When disabled, the request is marshalled
+	 * into DOM and unmarshalled by {@link Xacml20RequestContextUnmarshaller}.
+	 * Enabled by default.
+	 *
+	 * @param flag {@code true} to translate requests directly
+	 */
+	public void setDirectRequestTranslation(boolean flag) {
+		directRequestTranslation = flag;
+	}
+
+	/**
+	 * Enables or disables building successful responses written by
+	 * {@link #handle(InputStream, OutputStream)} from a {@link ResponseTemplate}
+	 * of the local entity instead of the OpenSAML object tree. Responses are
+	 * then signed in DOM and the {@link SigningCredentialSelector} is called
+	 * without the response. Disabled by default.
+	 *
+	 * @param flag {@code true} to build responses from templates
+	 */
+	public void setResponseTemplates(boolean flag) {
+		responseTemplates = flag;
+	}
+
+	/**
+	 * Sets an optional cache for PDP decisions. Only decisions are cached,
+	 * every call still produces a new signed SAML response.
+	 *
+	 * @param decisionCache a decision cache or {@code null} to disable caching
+	 */
+	public void setDecisionCache(DecisionCache decisionCache) {
+		this.decisionCache = decisionCache;
+	}
+
+	/**
+	 * Sets an executor used by {@link #handleAll(List)}. By default requests
+	 * are processed on a shared pool of daemon threads sized to the number
+	 * of available processors.
+	 *
+	 * @param batchExecutor an executor service or {@code null} to use the default pool
+	 */
+	public void setBatchExecutor(ExecutorService batchExecutor) {
+		this.batchExecutor = batchExecutor;
+	}
+
+	/**
+	 * Sets the algorithms used to sign responses with credentials supporting
+	 * them. Responses signed with other credentials use the credential
+	 * {@link SignatureAlgorithms#getDefault(Credential) default algorithms}.
+	 *
+	 * @param signatureAlgorithms signature algorithms or {@code null}
+	 *        to use the credential defaults
+	 */
+	public void setSignatureAlgorithms(SignatureAlgorithms signatureAlgorithms) {
+		this.signatureAlgorithms = signatureAlgorithms;
+	}
+
+	/**
+	 * Sets the algorithms used to sign responses with particular credentials,
+	 * takes precedence over {@link #setSignatureAlgorithms(SignatureAlgorithms)}.
+	 *
+	 * @param credentialSignatureAlgorithms signature algorithms by credential
+	 */
+	public void setCredentialSignatureAlgorithms(
+			Map<Credential, SignatureAlgorithms> credentialSignatureAlgorithms) {
+		checkNotNull(credentialSignatureAlgorithms, "'credentialSignatureAlgorithms' is null.");
+		this.credentialSignatureAlgorithms = ImmutableMap.copyOf(credentialSignatureAlgorithms);
+	}
+
+	/**
+	 * Sets a listener receiving per stage timings and per issuer outcomes.
+	 * No timings are taken while the {@link NoopEndpointMetricsListener},
+	 * the default, is used.
+	 *
+	 * @param metricsListener a metrics listener
+	 */
+	public void setMetricsListener(EndpointMetricsListener metricsListener) {
+		this.metricsListener = checkNotNull(metricsListener, "'metricsListener' is null.");
+		this.timed = (metricsListener != NoopEndpointMetricsListener.instance());
+	}
+
 	@Override
 	public Response handle(RequestAbstractType request) {
+		return handle(request, null);
+	}
+
+	private Response handle(RequestAbstractType request,
+			ConcurrentMap<String, SignatureTrustEngine> issuerTrustEngines) {
+		Response error = validate(request, issuerTrustEngines);
+		if (error != null) {
+			return error;
+		}
+		XACMLAuthzDecisionQueryType xacml20DecisionQuery = (XACMLAuthzDecisionQueryType) request;
+		try {
+			return respond(xacml20DecisionQuery, evaluate(xacml20DecisionQuery));
+		} catch (Exception e) {
+			return makeInternalErrorResponse(request, e);
+		}
+	}
+
+	/**
+	 * Processes the given SAML requests in parallel on the batch executor.
+	 * A failure of one request does not affect the others, it is reported
+	 * as an error response at the position of the failed request.
+	 *
+	 * @param requests a list of SAML requests
+	 * @return a list of SAML responses in the order of the given requests
+	 */
+	public List<Response> handleAll(List<? extends RequestAbstractType> requests) {
+		checkNotNull(requests, "'requests' is null.");
+		ExecutorService executor = (batchExecutor != null) ? batchExecutor : DefaultBatchExecutor.executor;
+		ConcurrentMap<String, SignatureTrustEngine> issuerTrustEngines =
+				new ConcurrentHashMap<String, SignatureTrustEngine>();
+		List<Future<Response>> futures = new ArrayList<Future<Response>>(requests.size());
+		for (RequestAbstractType request : requests) {
+			futures.add(submit(executor, request, issuerTrustEngines));
+		}
+		List<Response> responses = new ArrayList<Response>(requests.size());
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				responses.add(futures.get(i).get());
+			} catch (InterruptedException e) {
+				interrupted = true;
+				futures.get(i).cancel(true);
+				responses.add(makeInternalErrorResponse(requests.get(i), e));
+			} catch (ExecutionException e) {
+				responses.add(makeInternalErrorResponse(requests.get(i), e.getCause()));
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return responses;
+	}
+
+	private Future<Response> submit(ExecutorService executor, final RequestAbstractType request,
+			final ConcurrentMap<String, SignatureTrustEngine> issuerTrustEngines) {
+		Callable<Response> task = new Callable<Response>() {
+			@Override
+			public Response call() {
+				return handle(request, issuerTrustEngines);
+			}
+		};
+		try {
+			return executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			FutureTask<Response> rejected = new FutureTask<Response>(task);
+			rejected.run();
+			return rejected;
+		}
+	}
+
+	/**
+	 * Validates the given SAML request: its type, signature and destination.
+	 *
+	 * @param request a SAML request
+	 * @return an error response or {@code null} if the given request
+	 *         is a valid {@link XACMLAuthzDecisionQueryType}
+	 */
+	Response validate(RequestAbstractType request) {
+		return validate(request, null);
+	}
+
+	private Response validate(RequestAbstractType request,
+			ConcurrentMap<String, SignatureTrustEngine> issuerTrustEngines) {
 		if (log.isDebugEnabled()) {
 			QName n = request.getElementQName();
 			log.debug("Processing SAML request type=\"{}:{}\"",
 					n.getNamespaceURI(), n.getLocalPart());
 		}
 		if (!(request instanceof XACMLAuthzDecisionQueryType)) {
-			return makeErrorResponse(request, "Invalid request");
+			return completed(request, Outcome.INVALID_REQUEST,
+					makeErrorResponse(request, "Invalid request"));
 		}
-		XACMLAuthzDecisionQueryType xacml20DecisionQuery = (XACMLAuthzDecisionQueryType) request;
-		RequestType xacmlRequest = xacml20DecisionQuery.getRequest();
-		if (xacmlRequest == null) {
+		if (((XACMLAuthzDecisionQueryType) request).getRequest() == null) {
 			if (log.isDebugEnabled()) {
 				log.debug("No XACML request found in the given request");
 			}
-			return makeErrorResponse(request, "Invalid request");
+			return completed(request, Outcome.INVALID_REQUEST,
+					makeErrorResponse(request, "Invalid request"));
 		}
 		try {
 			if (requireSignatureValidation) {
-				if (!validateRequestSignature(request)) {
+				if (!validateRequestSignature(request, issuerTrustEngines)) {
 					if (log.isDebugEnabled()) {
 						log.debug("Failed to validate signature");
 					}
-					return makeErrorResponse(request, "Failed to validate signature");
+					return completed(request, Outcome.BAD_SIGNATURE,
+							makeErrorResponse(request, "Failed to validate signature"));
 				}
 			} else {
 				log.info("Signature validation has been disabled");
 			}
-			if (!validateRequest(request)) {
+			long start = startTimer();
+			boolean valid = validateRequest(request);
+			stopTimer(Stage.DESTINATION_CHECK, start);
+			if (!valid) {
 				if (log.isDebugEnabled()) {
 					log.debug("Failed to validate request");
 				}
-				return makeErrorResponse(request, "Failed to validate request");
+				return completed(request, Outcome.INVALID_REQUEST,
+						makeErrorResponse(request, "Failed to validate request"));
+			}
+			return null;
+		} catch (Exception e) {
+			return makeInternalErrorResponse(request, e);
+		}
+	}
+
+	/**
+	 * Evaluates the XACML request carried by the given, already
+	 * validated, query.
+	 *
+	 * @param xacml20DecisionQuery a validated XACML authorization decision query
+	 * @return the PDP decision
+	 */
+	ResponseContext evaluate(XACMLAuthzDecisionQueryType xacml20DecisionQuery)
+			throws IOException, XMLParserException, MarshallingException {
+		long start = startTimer();
+		RequestContext xacmlReq = toRequestContext(xacml20DecisionQuery.getRequest());
+		stopTimer(Stage.REQUEST_MARSHALLING, start);
+		start = startTimer();
+		ResponseContext xacmlRes = decide(xacml20DecisionQuery.getIssuer().getValue(), xacmlReq);
+		stopTimer(Stage.PDP_DECIDE, start);
+		return xacmlRes;
+	}
+
+	/**
+	 * Builds and signs the SAML response for the given query and PDP decision.
+	 *
+	 * @param xacml20DecisionQuery a validated XACML authorization decision query
+	 * @param xacmlRes the PDP decision
+	 * @return a signed SAML response
+	 */
+	Response respond(XACMLAuthzDecisionQueryType xacml20DecisionQuery, ResponseContext xacmlRes)
+			throws SecurityException, MarshallingException, SignatureException {
+		long start = startTimer();
+		ResponseType xacmlResponse = OpenSamlObjectBuilder.makeXacml20Response(xacmlRes);
+		Assertion assertion = OpenSamlObjectBuilder.makeXacml20AuthzDecisionAssertion(
+				idpConfig.getLocalEntity().getEntityID(),
+				xacml20DecisionQuery.isReturnContext() ? xacml20DecisionQuery.getRequest() : null,
+				xacmlResponse);
+		Response samlResponse = OpenSamlObjectBuilder.makeXacml20AuthzDecisionQueryResponse(
+				idpConfig.getLocalEntity().getEntityID(), xacml20DecisionQuery, assertion);
+		stopTimer(Stage.RESPONSE_BUILDING, start);
+		start = startTimer();
+		signResponse(xacml20DecisionQuery, samlResponse);
+		stopTimer(Stage.SIGNING, start);
+		return completed(xacml20DecisionQuery, Outcome.SUCCESS, samlResponse);
+	}
+
+	/**
+	 * Builds the signed SAML response DOM for the given query and PDP
+	 * decision from the response template of the local entity.
+	 *
+	 * @param xacml20DecisionQuery a validated XACML authorization decision query
+	 * @param xacmlRes the PDP decision
+	 * @return a signed SAML response element
+	 */
+	Element respondWithTemplate(XACMLAuthzDecisionQueryType xacml20DecisionQuery, ResponseContext xacmlRes)
+			throws SecurityException, MarshallingException, SignatureException {
+		long start = startTimer();
+		ResponseType xacmlResponse = OpenSamlObjectBuilder.makeXacml20Response(xacmlRes);
+		Element samlResponse = ResponseTemplate.forIssuer(idpConfig.getLocalEntity().getEntityID())
+				.newResponse(xacml20DecisionQuery, xacmlResponse);
+		stopTimer(Stage.RESPONSE_BUILDING, start);
+		start = startTimer();
+		getSigningProfile(xacml20DecisionQuery, null).sign(samlResponse);
+		stopTimer(Stage.SIGNING, start);
+		completed(xacml20DecisionQuery, Outcome.SUCCESS, null);
+		return samlResponse;
+	}
+
+	Response makeInternalErrorResponse(RequestAbstractType request, Throwable e) {
+		log.error("Caught exception while processing XacmlAuthDecisionQuery", e);
+		return completed(request, Outcome.INTERNAL_ERROR, makeErrorResponse(request, "Internal error"));
+	}
+
+	private long startTimer() {
+		return timed ? System.nanoTime() : 0L;
+	}
+
+	private void stopTimer(Stage stage, long start) {
+		if (timed) {
+			metricsListener.stageCompleted(stage, System.nanoTime() - start);
+		}
+	}
+
+	private Response completed(RequestAbstractType request, Outcome outcome, Response response) {
+		String issuer = (request == null || request.getIssuer() == null) ?
+				null : request.getIssuer().getValue();
+		metricsListener.requestCompleted(issuer, outcome);
+		return response;
+	}
+
+	@Override
+	public void handle(InputStream in, OutputStream out) throws IOException {
+		RequestAbstractType request = parseRequest(in);
+		ReusableByteArrayOutputStream buffer = responseBuffer.get();
+		try {
+			if (request != null && responseTemplates) {
+				OpenSamlObjectBuilder.serialize(handleWithTemplate(request), buffer);
+			} else {
+				Response response = (request == null) ?
+						completed(null, Outcome.INVALID_REQUEST, makeErrorResponse(null, "Invalid request")) :
+						handle(request);
+				OpenSamlObjectBuilder.serialize(response, buffer);
 			}
-			Document reqDom = parserPool.newDocument();
-			OpenSamlObjectBuilder.marshallXacml20Request(xacmlRequest, reqDom);
-			Document resDom = performXacmlRequest(xacml20DecisionQuery.getIssuer().getValue(), reqDom);
-			ResponseType xacmlResponse = OpenSamlObjectBuilder.unmarshallXacml20Response(resDom.getDocumentElement());
-			Assertion assertion = OpenSamlObjectBuilder.makeXacml20AuthzDecisionAssertion(
-					idpConfig.getLocalEntity().getEntityID(),
-					xacml20DecisionQuery.isReturnContext() ? xacmlRequest : null, xacmlResponse);
-			Response samlResponse = OpenSamlObjectBuilder.makeXacml20AuthzDecisionQueryResponse(
-					idpConfig.getLocalEntity().getEntityID(), xacml20DecisionQuery, assertion);
-			signResponse(request, samlResponse);
-			return samlResponse;
+			buffer.writeTo(out);
+			out.flush();
+		} catch (TransformerException e) {
+			throw new IOException("Failed to serialize SAML response", e);
+		} catch (MarshallingException e) {
+			throw new IOException("Failed to marshall SAML response", e);
+		} finally {
+			buffer.release();
+		}
+	}
+
+	private Element handleWithTemplate(RequestAbstractType request) throws MarshallingException {
+		Response error = validate(request, null);
+		if (error != null) {
+			return marshall(error);
+		}
+		XACMLAuthzDecisionQueryType xacml20DecisionQuery = (XACMLAuthzDecisionQueryType) request;
+		try {
+			return respondWithTemplate(xacml20DecisionQuery, evaluate(xacml20DecisionQuery));
 		} catch (Exception e) {
-			log.error("Caught exception while processing XacmlAuthDecisionQuery", e);
-			return makeErrorResponse(request, "Internal error");
+			return marshall(makeInternalErrorResponse(request, e));
+		}
+	}
+
+	private static Element marshall(Response response) throws MarshallingException {
+		return Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+	}
+
+	private RequestAbstractType parseRequest(InputStream in) {
+		try {
+			Element root = parserPool.parse(in).getDocumentElement();
+			Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(root);
+			if (unmarshaller == null) {
+				if (log.isDebugEnabled()) {
+					log.debug("No unmarshaller found for element=\"{}\"", root.getNodeName());
+				}
+				return null;
+			}
+			XMLObject request = unmarshaller.unmarshall(root);
+			if (!(request instanceof RequestAbstractType)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Unsupported SAML message type=\"{}\"", request.getElementQName());
+				}
+				return null;
+			}
+			return (RequestAbstractType) request;
+		} catch (XMLParserException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to parse SAML request", e);
+			}
+			return null;
+		} catch (UnmarshallingException e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to unmarshall SAML request", e);
+			}
+			return null;
+		} catch (RuntimeException e) {
+			// unmarshallers throw unchecked exceptions for malformed values, e.g. IssueInstant
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to unmarshall SAML request", e);
+			}
+			return null;
 		}
 	}
 
@@ -173,31 +564,84 @@ public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint {
 		return response;
 	}
 
-	private boolean validateRequestSignature(RequestAbstractType request)
-			throws ValidationException, SecurityException {
+	boolean validateRequestSignature(RequestAbstractType request,
+			ConcurrentMap<String, SignatureTrustEngine> issuerTrustEngines)
+			throws SecurityException {
 		SAMLSignatureProfileValidator validator = new SAMLSignatureProfileValidator();
 		if (request.getSignature() == null) {
 			log.debug("Request is not signed");
 			return false;
 		}
-		validator.validate(request.getSignature());
+		long start = startTimer();
+		try {
+			validator.validate(request.getSignature());
+		} catch (ValidationException e) {
+			// a malformed signature is a bad signature, not an internal error
+			if (log.isDebugEnabled()) {
+				log.debug("Request signature does not conform to SAML signature profile", e);
+			}
+			return false;
+		} finally {
+			stopTimer(Stage.SIGNATURE_PROFILE_VALIDATION, start);
+		}
 		if (request.getIssuer() == null || request.getIssuer().getValue() == null) {
 			if (log.isDebugEnabled()) {
 				log.debug("Request does not have issuer");
 			}
 			return false;
 		}
-		CriteriaSet criteriaSet = new CriteriaSet();
-		criteriaSet.add(new EntityIDCriteria(request.getIssuer().getValue()));
-		criteriaSet.add(new MetadataCriteria(SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
-		criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
-		boolean dsigTrusted = idpConfig.getSignatureTrustEngine().validate(request.getSignature(), criteriaSet);
+		String issuer = request.getIssuer().getValue();
+		start = startTimer();
+		boolean dsigTrusted = getSignatureTrustEngine(issuer, issuerTrustEngines)
+				.validate(request.getSignature(), makeTrustCriteria(issuer));
+		stopTimer(Stage.TRUST_ENGINE_VALIDATION, start);
 		if (log.isDebugEnabled()) {
 			log.debug("Is SAML request XML dsig trusted=\"{}\"", dsigTrusted);
 		}
 		return dsigTrusted;
 	}
 
+	private static CriteriaSet makeTrustCriteria(String issuer) {
+		CriteriaSet criteriaSet = new CriteriaSet();
+		criteriaSet.add(new EntityIDCriteria(issuer));
+		criteriaSet.add(new MetadataCriteria(SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
+		criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
+		return criteriaSet;
+	}
+
+	/**
+	 * Gets a signature trust engine for the given issuer. Within a batch the
+	 * trusted credentials of each issuer are resolved only once and shared
+	 * by all queries of that issuer, provided the configured trust engine
+	 * is an {@link ExplicitKeySignatureTrustEngine}.
+	 *
+	 * @param issuer a request issuer
+	 * @param issuerTrustEngines per batch trust engines by issuer or
+	 *        {@code null} to use the configured trust engine
+	 * @return a signature trust engine
+	 */
+	private SignatureTrustEngine getSignatureTrustEngine(String issuer,
+			ConcurrentMap<String, SignatureTrustEngine> issuerTrustEngines) throws SecurityException {
+		SignatureTrustEngine trustEngine = idpConfig.getSignatureTrustEngine();
+		if (issuerTrustEngines == null || !(trustEngine instanceof ExplicitKeySignatureTrustEngine)) {
+			return trustEngine;
+		}
+		SignatureTrustEngine issuerTrustEngine = issuerTrustEngines.get(issuer);
+		if (issuerTrustEngine != null) {
+			return issuerTrustEngine;
+		}
+		ExplicitKeySignatureTrustEngine explicitKeyTrustEngine = (ExplicitKeySignatureTrustEngine) trustEngine;
+		List<Credential> trustedCredentials = new ArrayList<Credential>();
+		for (Credential credential : explicitKeyTrustEngine.getCredentialResolver().resolve(makeTrustCriteria(issuer))) {
+			trustedCredentials.add(credential);
+		}
+		issuerTrustEngine = new ExplicitKeySignatureTrustEngine(
+				new StaticCredentialResolver(trustedCredentials),
+				explicitKeyTrustEngine.getKeyInfoResolver());
+		SignatureTrustEngine existing = issuerTrustEngines.putIfAbsent(issuer, issuerTrustEngine);
+		return (existing != null) ? existing : issuerTrustEngine;
+	}
+
 	private boolean validateRequest(RequestAbstractType request) {
 		AuthzService authzService = idpConfig.getAuthzServiceByLocation(request.getDestination());
 		if (authzService == null) {
@@ -209,14 +653,27 @@ public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint {
 		return true;
 	}
 
+	private RequestContext toRequestContext(RequestType xacmlRequest)
+			throws IOException, XMLParserException, MarshallingException {
+		if (directRequestTranslation) {
+			try {
+				return xacmlRequest20Translator.translate(xacmlRequest);
+			} catch (XacmlSyntaxException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Failed to translate XACML request directly, " +
+							"falling back to DOM unmarshalling", e);
+				}
+			}
+		}
+		Document reqDom = parserPool.newDocument();
+		OpenSamlObjectBuilder.marshallXacml20Request(xacmlRequest, reqDom);
+		return xacmlRequest20Unmarshaller.unmarshal(reqDom);
+	}
+
 	public Document performXacmlRequest(String issuer, Document reqDom) throws IOException, XMLParserException {
 		try {
 			RequestContext xacmlReq = xacmlRequest20Unmarshaller.unmarshal(reqDom);
-			xacmlReq = addIssuerToRequest(issuer, xacmlReq);
-			if (log.isDebugEnabled()) {
-				log.debug("XACML request=\"{}\"", xacmlReq);
-			}
-			ResponseContext xacmlRes = pdp.decide(xacmlReq);
+			ResponseContext xacmlRes = decide(issuer, xacmlReq);
 			Document resDom = parserPool.newDocument();
 			xacmlResponse20Unmarshaller.marshal(xacmlRes, new DOMResult(resDom));
 			return resDom;
@@ -238,37 +695,47 @@ public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint {
 		}
 	}
 
-	private void signResponse(RequestAbstractType request, Response response)
-			throws SecurityException, MarshallingException, SignatureException {
-		Credential signingCredential = credentialSelector.selectCredential(request, response, idpConfig);
+	private ResponseContext decide(String issuer, RequestContext xacmlReq) {
+		xacmlReq = addIssuerToRequest(issuer, xacmlReq);
+		if (log.isDebugEnabled()) {
+			log.debug("XACML request=\"{}\"", xacmlReq);
+		}
+		if (decisionCache == null) {
+			return pdp.decide(xacmlReq);
+		}
+		HashCode key = DecisionCache.digest(xacmlReq);
+		if (key == null) {
+			return pdp.decide(xacmlReq);
+		}
+		ResponseContext xacmlRes = decisionCache.get(key);
+		if (xacmlRes != null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Found cached XACML decision for request digest=\"{}\"", key);
+			}
+			return xacmlRes;
+		}
+		xacmlRes = pdp.decide(xacmlReq);
+		decisionCache.put(key, xacmlRes);
+		return xacmlRes;
+	}
 
-		Signature dsig = (Signature) Configuration
-				.getBuilderFactory()
-				.getBuilder(Signature.DEFAULT_ELEMENT_NAME)
-				.buildObject(Signature.DEFAULT_ELEMENT_NAME);
-		dsig.setSigningCredential(signingCredential);
-		dsig.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
-		dsig.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
-		response.setSignature(dsig);
+	void signResponse(RequestAbstractType request, Response response)
+			throws SecurityException, MarshallingException, SignatureException {
+		getSigningProfile(request, response).sign(response);
+	}
 
-		SecurityHelper.prepareSignatureParams(dsig, signingCredential, null, null);
-		Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
-		Signer.signObject(dsig);
+	private SigningProfile getSigningProfile(RequestAbstractType request, Response response)
+			throws SecurityException {
+		Credential signingCredential = credentialSelector.selectCredential(request, response, idpConfig);
+		return SigningProfile.forCredential(signingCredential).withAlgorithms(SignatureAlgorithms.resolve(
+				signingCredential, credentialSignatureAlgorithms, signatureAlgorithms));
 	}
 
 	private RequestContext addIssuerToRequest(String issuer, RequestContext req) {
-		Category intermediarySubject =
-				Category.builder(Categories.SUBJECT_INTERMEDIARY)
-						.entity(
-						       Entity
-						               .builder()
-						               .attribute(
-						                       Attribute
-						                               .builder(SubjectAttributes.SUBJECT_ID.toString())
-						                               .value(StringExp.of(issuer))
-						                               .build())
-						               .build())
-						.build();
+		Category intermediarySubject = intermediarySubjects.getUnchecked(issuer);
+		if (req.getAttributes(Categories.SUBJECT_INTERMEDIARY).isEmpty()) {
+			return RequestContext.builder().copyOf(req).attribute(intermediarySubject).build();
+		}
 		Collection<Category> filtered = new ArrayList<Category>();
 		filtered.add(intermediarySubject);
 		for (Category category : req.getAttributes()) {
@@ -278,4 +745,49 @@ public class XACMLAuthzDecisionQueryEndpoint implements OpenSamlEndpoint {
 		}
 		return RequestContext.builder().copyOf(req, filtered).build();
 	}
+
+	private static Category makeIntermediarySubject(String issuer) {
+		return Category.builder(Categories.SUBJECT_INTERMEDIARY)
+				.entity(
+				       Entity
+				               .builder()
+				               .attribute(
+				                       Attribute
+				                               .builder(SubjectAttributes.SUBJECT_ID.toString())
+				                               .value(StringExp.of(issuer))
+				                               .build())
+				               .build())
+				.build();
+	}
+
+	/**
+	 * Lazily created default executor for {@link #handleAll(List)}
+	 */
+	private static final class DefaultBatchExecutor {
+
+		static final ExecutorService executor = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(),
+				new ThreadFactoryBuilder()
+						.setDaemon(true)
+						.setNameFormat("xacml-authz-batch-%d")
+						.build());
+	}
+
+	/**
+	 * A {@link ByteArrayOutputStream} which keeps its internal buffer between
+	 * uses unless the buffer grew beyond {@link #MAX_RETAINED_BUFFER_SIZE}
+	 */
+	private static final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+		ReusableByteArrayOutputStream(int size) {
+			super(size);
+		}
+
+		void release() {
+			if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+				buf = new byte[INITIAL_BUFFER_SIZE];
+			}
+			reset();
+		}
+	}
 }
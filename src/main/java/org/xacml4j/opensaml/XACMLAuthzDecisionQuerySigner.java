@@ -22,36 +22,37 @@ package org.xacml4j.opensaml;
  * #L%
  */
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.KeyStore;
 
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
 import org.opensaml.DefaultBootstrap;
 import org.opensaml.saml2.core.RequestAbstractType;
 import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
-import org.opensaml.xml.Configuration;
 import org.opensaml.xml.ConfigurationException;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.parse.XMLParserException;
 import org.opensaml.xml.security.SecurityException;
-import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
-import org.opensaml.xml.signature.Signature;
-import org.opensaml.xml.signature.SignatureConstants;
 import org.opensaml.xml.signature.SignatureException;
-import org.opensaml.xml.signature.Signer;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 public class XACMLAuthzDecisionQuerySigner
 {
 	private final Credential credential;
+	private final BasicParserPool parserPool;
+	private volatile SignatureAlgorithms signatureAlgorithms;
 
 	public XACMLAuthzDecisionQuerySigner(KeyStore ks,
 			String signingKeyName,
@@ -61,30 +62,45 @@ public class XACMLAuthzDecisionQuerySigner
 				ks,
 				signingKeyName,
 				signingKeyPassword.toCharArray());
+		this.signatureAlgorithms = SignatureAlgorithms.getDefault(credential);
+		this.parserPool = new BasicParserPool();
+		this.parserPool.setNamespaceAware(true);
+	}
+
+	/**
+	 * Sets the algorithms used to sign requests, by default
+	 * {@link SignatureAlgorithms#getDefault(Credential)} of the signing credential.
+	 *
+	 * @param signatureAlgorithms signature algorithms
+	 * @throws IllegalArgumentException if the signature algorithm can not
+	 *         be used with the signing credential
+	 */
+	public void setSignatureAlgorithms(SignatureAlgorithms signatureAlgorithms) {
+		checkNotNull(signatureAlgorithms, "'signatureAlgorithms' is null.");
+		checkArgument(signatureAlgorithms.isSupportedBy(credential),
+				"Signature algorithm=\"%s\" can not be used with the signing credential",
+				signatureAlgorithms.getSignatureAlgorithm());
+		this.signatureAlgorithms = signatureAlgorithms;
 	}
 
+	/**
+	 * Parses, signs and serializes a single query. Parsers are pooled and
+	 * the method may be called concurrently, see
+	 * {@link XACMLAuthzDecisionQueryBulkSigner} for signing many queries.
+	 */
 	public void signRequest(InputStream request, OutputStream signedRequest) throws SAXException, IOException, ParserConfigurationException, UnmarshallingException, TransformerException, MarshallingException, SecurityException, SignatureException {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-	    Document doc = dbf.newDocumentBuilder().parse(request);
+		Document doc;
+		try {
+			doc = parserPool.parse(request);
+		} catch (XMLParserException e) {
+			throw new IOException("Failed to parse request", e);
+		}
 	    XACMLAuthzDecisionQueryType xacmlSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(doc.getDocumentElement());
 	    signRequest(xacmlSamlQuery);
 	    OpenSamlObjectBuilder.serialize(xacmlSamlQuery, signedRequest);
 	}
 
-	public void signRequest(RequestAbstractType response) throws SecurityException, MarshallingException, SignatureException {
-
-		Signature dsig = (Signature) Configuration.getBuilderFactory()
-	        .getBuilder(Signature.DEFAULT_ELEMENT_NAME)
-	        .buildObject(Signature.DEFAULT_ELEMENT_NAME);
-
-		dsig.setSigningCredential(credential);
-		dsig.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
-		dsig.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
-		response.setSignature(dsig);
-		SecurityHelper.prepareSignatureParams(dsig, credential, null, null);
-
-		Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
-		Signer.signObject(dsig);
+	public void signRequest(RequestAbstractType request) throws SecurityException, MarshallingException, SignatureException {
+		SigningProfile.forCredential(credential).withAlgorithms(signatureAlgorithms).sign(request);
 	}
 }
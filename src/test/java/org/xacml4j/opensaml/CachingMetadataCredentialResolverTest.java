@@ -0,0 +1,158 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.ChainingMetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.security.MetadataCriteria;
+import org.opensaml.xml.security.CriteriaSet;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.credential.CredentialResolver;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.criteria.EntityIDCriteria;
+import org.opensaml.xml.security.criteria.UsageCriteria;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+public class CachingMetadataCredentialResolverTest {
+
+	private CredentialResolver delegate;
+	private ChainingMetadataProvider metadata;
+	private CachingMetadataCredentialResolver resolver;
+
+	@Before
+	public void init() {
+		delegate = mock(CredentialResolver.class);
+		metadata = new ChainingMetadataProvider();
+		resolver = new CachingMetadataCredentialResolver(delegate, metadata);
+	}
+
+	@Test
+	public void testResolveIsCached() throws Exception {
+		Credential cred = mock(Credential.class);
+		when(delegate.resolve(any(CriteriaSet.class))).thenReturn(ImmutableList.of(cred));
+
+		Iterable<Credential> first = resolver.resolve(criteria("https://sp.example.com/"));
+		Iterable<Credential> second = resolver.resolve(criteria("https://sp.example.com/"));
+
+		assertThat(Iterables.getOnlyElement(first), is(cred));
+		assertThat(Iterables.getOnlyElement(second), is(cred));
+		verify(delegate, times(1)).resolve(any(CriteriaSet.class));
+	}
+
+	@Test
+	public void testCacheIsInvalidatedOnMetadataChange() throws Exception {
+		Credential cred = mock(Credential.class);
+		when(delegate.resolve(any(CriteriaSet.class))).thenReturn(ImmutableList.of(cred));
+
+		resolver.resolve(criteria("https://sp.example.com/"));
+		for (ObservableMetadataProvider.Observer observer : metadata.getObservers()) {
+			observer.onEvent(metadata);
+		}
+		resolver.resolve(criteria("https://sp.example.com/"));
+
+		verify(delegate, times(2)).resolve(any(CriteriaSet.class));
+	}
+
+	@Test
+	public void testUnknownCriteriaAreNotCached() throws Exception {
+		CriteriaSet criteria = new CriteriaSet(new UsageCriteria(UsageType.SIGNING));
+		when(delegate.resolve(criteria)).thenReturn(ImmutableList.<Credential>of());
+
+		resolver.resolve(criteria);
+		resolver.resolve(criteria);
+
+		verify(delegate, times(2)).resolve(criteria);
+	}
+
+	@Test
+	public void testEmptyResultIsNotCached() throws Exception {
+		when(delegate.resolve(any(CriteriaSet.class))).thenReturn(ImmutableList.<Credential>of());
+
+		assertThat(Iterables.isEmpty(resolver.resolve(criteria("https://unknown.example.com/"))), is(true));
+		assertThat(Iterables.isEmpty(resolver.resolve(criteria("https://unknown.example.com/"))), is(true));
+
+		verify(delegate, times(2)).resolve(any(CriteriaSet.class));
+		assertThat(resolver.size(), is(0L));
+	}
+
+	@Test
+	public void testCacheIsBounded() throws Exception {
+		resolver = new CachingMetadataCredentialResolver(delegate, metadata, 10);
+		when(delegate.resolve(any(CriteriaSet.class))).thenReturn(ImmutableList.of(mock(Credential.class)));
+
+		for (int i = 0; i < 100; i++) {
+			resolver.resolve(criteria("https://sp" + i + ".example.com/"));
+		}
+
+		assertThat(resolver.size() <= 10, is(true));
+	}
+
+	@Test
+	public void testCredentialsLoadedBeforeInvalidationAreDiscarded() throws Exception {
+		final Credential stale = mock(Credential.class);
+		when(delegate.resolve(any(CriteriaSet.class))).thenAnswer(new Answer<Iterable<Credential>>() {
+			@Override
+			public Iterable<Credential> answer(InvocationOnMock invocation) {
+				// metadata is refreshed while the credentials are being resolved
+				resolver.invalidateAll();
+				return ImmutableList.of(stale);
+			}
+		});
+
+		resolver.resolve(criteria("https://sp.example.com/"));
+
+		assertThat(resolver.size(), is(0L));
+	}
+
+	@Test(expected = SecurityException.class)
+	public void testResolveFailureIsPropagated() throws Exception {
+		when(delegate.resolve(any(CriteriaSet.class))).thenThrow(new SecurityException("failure"));
+
+		resolver.resolve(criteria("https://sp.example.com/"));
+	}
+
+	private static CriteriaSet criteria(String entityId) {
+		CriteriaSet criteriaSet = new CriteriaSet();
+		criteriaSet.add(new EntityIDCriteria(entityId));
+		criteriaSet.add(new MetadataCriteria(SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS));
+		criteriaSet.add(new UsageCriteria(UsageType.SIGNING));
+		return criteriaSet;
+	}
+}
@@ -0,0 +1,93 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.xacml4j.v30.Attribute;
+import org.xacml4j.v30.Categories;
+import org.xacml4j.v30.Category;
+import org.xacml4j.v30.Entity;
+import org.xacml4j.v30.RequestContext;
+import org.xacml4j.v30.ResponseContext;
+import org.xacml4j.v30.types.StringExp;
+
+import com.google.common.hash.HashCode;
+
+public class DecisionCacheTest {
+
+	@Test
+	public void testDigestDoesNotDependOnOrder() {
+		Category subject = category(Categories.SUBJECT_ACCESS, "subject-id", "user");
+		Category resource = category(Categories.RESOURCE, "resource-id", "resource");
+
+		HashCode d1 = DecisionCache.digest(RequestContext.builder().attribute(subject, resource).build());
+		HashCode d2 = DecisionCache.digest(RequestContext.builder().attribute(resource, subject).build());
+
+		assertThat(d1, is(notNullValue()));
+		assertThat(d1, is(d2));
+	}
+
+	@Test
+	public void testDigestDependsOnAttributeValues() {
+		HashCode d1 = DecisionCache.digest(RequestContext.builder()
+				.attribute(category(Categories.SUBJECT_INTERMEDIARY, "subject-id", "https://sp1.example.com/"))
+				.build());
+		HashCode d2 = DecisionCache.digest(RequestContext.builder()
+				.attribute(category(Categories.SUBJECT_INTERMEDIARY, "subject-id", "https://sp2.example.com/"))
+				.build());
+
+		assertThat(d1, is(not(d2)));
+	}
+
+	@Test
+	public void testGetAndPut() {
+		DecisionCache cache = new DecisionCache(10, 1, TimeUnit.MINUTES);
+		HashCode key = DecisionCache.digest(RequestContext.builder()
+				.attribute(category(Categories.RESOURCE, "resource-id", "resource"))
+				.build());
+		ResponseContext decision = mock(ResponseContext.class);
+
+		assertThat(cache.get(key), is(nullValue()));
+		cache.put(key, decision);
+		assertThat(cache.get(key), is(decision));
+		assertThat(cache.getHitCount(), is(1L));
+		assertThat(cache.getMissCount(), is(1L));
+	}
+
+	private static Category category(Categories categoryId, String attributeId, String value) {
+		return Category.builder(categoryId)
+				.entity(Entity.builder()
+						.attribute(Attribute.builder(attributeId).value(StringExp.of(value)).build())
+						.build())
+				.build();
+	}
+}
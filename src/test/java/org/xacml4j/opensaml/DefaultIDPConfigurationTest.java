@@ -24,11 +24,14 @@ package org.xacml4j.opensaml;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.BeforeClass;
@@ -36,9 +39,12 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.metadata.AuthzService;
 import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.PDPDescriptor;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
 import org.opensaml.xml.ConfigurationException;
 import org.opensaml.xml.security.credential.Credential;
 
@@ -100,4 +106,45 @@ public class DefaultIDPConfigurationTest {
 		new DefaultIDPConfiguration("testEntityId", mock(MetadataProvider.class),
 				ImmutableList.<Credential> of());
 	}
+
+	@Test
+	public void testGetAuthzServiceByLocation() throws Exception {
+		AuthzService service1 = makeAuthzService("https://idp.example.com/authz1");
+		AuthzService service2 = makeAuthzService("https://idp.example.com/authz2");
+		ObservableMetadataProvider metadata = mock(ObservableMetadataProvider.class);
+		List<ObservableMetadataProvider.Observer> observers = new ArrayList<ObservableMetadataProvider.Observer>();
+		when(metadata.getObservers()).thenReturn(observers);
+		EntityDescriptor entity = makeEntity(service1);
+		when(metadata.getEntityDescriptor("testEntityId")).thenReturn(entity);
+
+		DefaultIDPConfiguration idpConfiguration = new DefaultIDPConfiguration("testEntityId", metadata,
+				ImmutableList.of(mock(Credential.class)));
+
+		assertThat(idpConfiguration.getAuthzServiceByLocation("https://idp.example.com/authz1"), is(sameInstance(service1)));
+		assertThat(idpConfiguration.getAuthzServiceByLocation("https://idp.example.com/authz2"), is(nullValue()));
+		assertThat(idpConfiguration.getAuthzServiceByLocation(null), is(nullValue()));
+
+		EntityDescriptor refreshedEntity = makeEntity(service1, service2);
+		when(metadata.getEntityDescriptor("testEntityId")).thenReturn(refreshedEntity);
+		for (ObservableMetadataProvider.Observer observer : observers) {
+			observer.onEvent(metadata);
+		}
+
+		assertThat(idpConfiguration.getLocalEntity(), is(sameInstance(refreshedEntity)));
+		assertThat(idpConfiguration.getAuthzServiceByLocation("https://idp.example.com/authz2"), is(sameInstance(service2)));
+	}
+
+	private static EntityDescriptor makeEntity(AuthzService ...services) {
+		PDPDescriptor pdp = mock(PDPDescriptor.class);
+		when(pdp.getAuthzServices()).thenReturn(Arrays.asList(services));
+		EntityDescriptor entity = mock(EntityDescriptor.class);
+		when(entity.getPDPDescriptor("urn:oasis:names:tc:SAML:2.0:protocol")).thenReturn(pdp);
+		return entity;
+	}
+
+	private static AuthzService makeAuthzService(String location) {
+		AuthzService service = mock(AuthzService.class);
+		when(service.getLocation()).thenReturn(location);
+		return service;
+	}
 }
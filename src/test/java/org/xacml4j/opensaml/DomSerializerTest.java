@@ -0,0 +1,190 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class DomSerializerTest {
+
+	private static final String XML =
+			"<a:root xmlns:a=\"urn:a\" xmlns:b=\"urn:b\" xmlns=\"urn:default\">" +
+			"<b:child b:attr=\"q&quot;&lt;&gt;&amp;&#9;&#10;&#13;\" plain=\"x\">" +
+			"t &amp; &lt;x&gt; \u00e9 \ud83d\ude00&#13;<![CDATA[c]]>d]]&gt;</b:child>" +
+			"<inner><!--comment--><?pi data?></inner>" +
+			"</a:root>";
+
+	private static X509Certificate spCertificate;
+	private static XACMLAuthzDecisionQuerySigner signer;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		KeyStore ks = KeyStore.getInstance("JCEKS");
+		InputStream in = DomSerializerTest.class.getResourceAsStream("/test-sp.jceks");
+		try {
+			ks.load(in, "changeme".toCharArray());
+		} finally {
+			in.close();
+		}
+		spCertificate = (X509Certificate) ks.getCertificate("mykey");
+		signer = new XACMLAuthzDecisionQuerySigner(ks, "mykey", "changeme");
+	}
+
+	@Test
+	public void testCompactOutputIsCanonicallyEqualToTransformerOutput() throws Exception {
+		// JDK transformer writes supplementary characters as invalid surrogate references
+		Document doc = parse(XML.replace("\ud83d\ude00", "").getBytes("UTF-8"));
+
+		byte[] expected = transform(doc, false);
+		byte[] actual = serialize(doc, false, false);
+
+		assertThat(canonicalize(actual), is(canonicalize(expected)));
+	}
+
+	@Test
+	public void testCompactOutputEscaping() throws Exception {
+		Document doc = parse(XML.getBytes("UTF-8"));
+
+		String xml = new String(serialize(doc, false, false), "UTF-8");
+
+		assertThat(xml.startsWith("<a:root"), is(true));
+		assertThat(xml.contains("b:attr=\"q&quot;&lt;&gt;&amp;&#9;&#10;&#13;\""), is(true));
+		assertThat(xml.contains("t &amp; &lt;x&gt; \u00e9 \ud83d\ude00&#13;<![CDATA[c]]>d]]&gt;"), is(true));
+		assertThat(xml.contains("<inner><!--comment--><?pi data?></inner>"), is(true));
+	}
+
+	@Test
+	public void testSerializeSubtreeDeclaresInheritedNamespaces() throws Exception {
+		Document doc = parse(XML.getBytes("UTF-8"));
+		Node child = doc.getDocumentElement().getFirstChild();
+
+		Element copy = parse(serialize(child, false, false)).getDocumentElement();
+
+		assertThat(copy.getNamespaceURI(), is("urn:b"));
+		assertThat(copy.getAttributeNS("urn:b", "attr"), is("q\"<>&\t\n\r"));
+		assertThat(copy.getAttribute("plain"), is("x"));
+		assertThat(copy.getTextContent(), is("t & <x> \u00e9 \ud83d\ude00\rcd]]>"));
+		Element inner = (Element) doc.getDocumentElement().getLastChild();
+		assertThat(parse(serialize(inner, false, false)).getDocumentElement().getNamespaceURI(), is("urn:default"));
+	}
+
+	@Test
+	public void testCompactOutputRejectsUnpairedSurrogate() throws Exception {
+		Document doc = parse(XML.getBytes("UTF-8"));
+		Element child = doc.createElement("child");
+		child.setTextContent("a\ud800b");
+		doc.getDocumentElement().appendChild(child);
+
+		try {
+			serialize(doc, false, false);
+			fail("Expected TransformerException");
+		} catch (TransformerException e) {
+			assertThat(e.getCause(), instanceOf(IOException.class));
+		}
+		// the failed write does not affect the next one on the same thread
+		doc.getDocumentElement().removeChild(child);
+		assertThat(serialize(doc, false, false), is(serialize(parse(XML.getBytes("UTF-8")), false, false)));
+	}
+
+	@Test
+	public void testXmlDeclaration() throws Exception {
+		Document doc = parse(XML.getBytes("UTF-8"));
+
+		assertThat(new String(serialize(doc, false, true), "UTF-8").startsWith("<?xml"), is(true));
+		assertThat(new String(serialize(doc, false, false), "UTF-8").startsWith("<?xml"), is(false));
+		assertThat(new String(serialize(doc, true, true), "UTF-8").startsWith("<?xml"), is(true));
+		assertThat(new String(serialize(doc, true, false), "UTF-8").startsWith("<?xml"), is(false));
+	}
+
+	@Test
+	public void testSignedRequestRemainsValid() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = DomSerializerTest.class.getResourceAsStream("/TestXacmlSamlRequest-nosignature.xml");
+		try {
+			signer.signRequest(in, out);
+		} finally {
+			in.close();
+		}
+
+		XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				parse(out.toByteArray()).getDocumentElement());
+		BasicX509Credential credential = new BasicX509Credential();
+		credential.setEntityCertificate(spCertificate);
+		new SignatureValidator(credential).validate(query.getSignature());
+	}
+
+	private static byte[] serialize(Node node, boolean indent, boolean xmlDeclaration) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DomSerializer.serialize(node, out, indent, xmlDeclaration);
+		return out.toByteArray();
+	}
+
+	private static byte[] transform(Node node, boolean xmlDeclaration) throws Exception {
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, xmlDeclaration ? "no" : "yes");
+		transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		transformer.transform(new DOMSource(node), new StreamResult(out));
+		return out.toByteArray();
+	}
+
+	private static String canonicalize(byte[] xml) throws Exception {
+		return new String(Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_WITH_COMMENTS)
+				.canonicalize(xml), "UTF-8");
+	}
+
+	private static Document parse(byte[] xml) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+	}
+}
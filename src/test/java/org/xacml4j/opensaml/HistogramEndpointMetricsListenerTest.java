@@ -0,0 +1,73 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+import org.xacml4j.opensaml.EndpointMetricsListener.Outcome;
+import org.xacml4j.opensaml.EndpointMetricsListener.Stage;
+
+public class HistogramEndpointMetricsListenerTest {
+
+	@Test
+	public void testStageCompleted() {
+		HistogramEndpointMetricsListener listener = new HistogramEndpointMetricsListener();
+		listener.stageCompleted(Stage.SIGNING, 100);
+		listener.stageCompleted(Stage.SIGNING, 300);
+
+		assertThat(listener.getHistogram(Stage.SIGNING).getCount(), is(2L));
+		assertThat(listener.getHistogram(Stage.SIGNING).getMax(), is(300L));
+		assertThat(listener.getHistogram(Stage.PDP_DECIDE).getCount(), is(0L));
+	}
+
+	@Test
+	public void testRequestCompleted() {
+		HistogramEndpointMetricsListener listener = new HistogramEndpointMetricsListener();
+		listener.requestCompleted("https://sp.example.com/", Outcome.SUCCESS);
+		listener.requestCompleted("https://sp.example.com/", Outcome.SUCCESS);
+		listener.requestCompleted("https://sp.example.com/", Outcome.BAD_SIGNATURE);
+		listener.requestCompleted(null, Outcome.INVALID_REQUEST);
+
+		assertThat(listener.getOutcomeCount("https://sp.example.com/", Outcome.SUCCESS), is(2L));
+		assertThat(listener.getOutcomeCount("https://sp.example.com/", Outcome.BAD_SIGNATURE), is(1L));
+		assertThat(listener.getOutcomeCount(null, Outcome.INVALID_REQUEST), is(1L));
+		assertThat(listener.getOutcomeCount(Outcome.INTERNAL_ERROR), is(0L));
+		assertThat(listener.getIssuers(), hasItem(HistogramEndpointMetricsListener.UNKNOWN_ISSUER));
+	}
+
+	@Test
+	public void testIssuersLimit() {
+		HistogramEndpointMetricsListener listener = new HistogramEndpointMetricsListener(2);
+		listener.requestCompleted("a", Outcome.BAD_SIGNATURE);
+		listener.requestCompleted("b", Outcome.BAD_SIGNATURE);
+		listener.requestCompleted("c", Outcome.BAD_SIGNATURE);
+		listener.requestCompleted("d", Outcome.BAD_SIGNATURE);
+
+		assertThat(listener.getIssuers().size(), is(3));
+		assertThat(listener.getOutcomeCount(HistogramEndpointMetricsListener.OTHER_ISSUERS, Outcome.BAD_SIGNATURE), is(2L));
+		assertThat(listener.getOutcomeCount(Outcome.BAD_SIGNATURE), is(4L));
+	}
+}
@@ -0,0 +1,69 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertThat(histogram.getCount(), is(0L));
+		assertThat(histogram.getPercentile(99), is(0L));
+		assertThat(histogram.getMean(), is(0.0));
+	}
+
+	@Test
+	public void testRecord() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertThat(histogram.getCount(), is(1000L));
+		assertThat(histogram.getTotal(), is(500500000L));
+		assertThat(histogram.getMax(), is(1000000L));
+		assertThat(histogram.getPercentile(100), is(1000000L));
+		assertWithinError(histogram.getPercentile(50), 500000);
+		assertWithinError(histogram.getPercentile(99), 990000);
+	}
+
+	@Test
+	public void testBucketBounds() {
+		long[] values = { 0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue(value <= LatencyHistogram.bucketUpperBound(index));
+			assertTrue(index == 0 || value > LatencyHistogram.bucketUpperBound(index - 1));
+		}
+	}
+
+	private static void assertWithinError(long actual, long expected) {
+		assertTrue(actual + " is not close to " + expected,
+				Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKETS);
+	}
+}
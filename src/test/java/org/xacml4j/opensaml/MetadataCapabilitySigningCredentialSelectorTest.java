@@ -0,0 +1,156 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class MetadataCapabilitySigningCredentialSelectorTest {
+
+	private static final String SP_ENTITY_ID = "https://sp.example.com/";
+	private static final SignatureAlgorithms ECDSA_SHA256 = new SignatureAlgorithms(
+			"http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256",
+			"http://www.w3.org/2001/04/xmlenc#sha256");
+
+	private static Credential rsa1024;
+	private static Credential rsa2048;
+	private static Credential ec256;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		rsa1024 = makeCredential("RSA", 1024);
+		rsa2048 = makeCredential("RSA", 2048);
+		ec256 = makeCredential("EC", 256);
+	}
+
+	@Test
+	public void testSelectEcdsaCredential() throws Exception {
+		SigningCredentialSelector selector = new MetadataCapabilitySigningCredentialSelector(
+				makeMetadata(SignatureAlgorithms.RSA_SHA256, SignatureAlgorithms.ECDSA_SHA1));
+
+		assertThat(selector.selectCredential(makeRequest(), mock(Response.class),
+				makeIdpConfiguration(rsa2048, ec256, rsa1024)), is(ec256));
+	}
+
+	@Test
+	public void testSelectCheapestRsaCredential() throws Exception {
+		MetadataCapabilitySigningCredentialSelector selector = new MetadataCapabilitySigningCredentialSelector(
+				makeMetadata(SignatureAlgorithms.RSA_SHA256));
+		selector.setSignatureAlgorithms(SignatureAlgorithms.RSA_SHA256);
+
+		assertThat(selector.selectCredential(makeRequest(), mock(Response.class),
+				makeIdpConfiguration(rsa2048, ec256, rsa1024)), is(rsa1024));
+	}
+
+	@Test
+	public void testFallbackWhenSignatureAlgorithmIsNotAdvertised() throws Exception {
+		// EC keys are used with ECDSA-SHA1 by default, which is not advertised
+		SigningCredentialSelector selector = new MetadataCapabilitySigningCredentialSelector(
+				makeMetadata(ECDSA_SHA256));
+
+		assertThat(selector.selectCredential(makeRequest(), mock(Response.class),
+				makeIdpConfiguration(rsa2048, ec256, rsa1024)), is(rsa2048));
+	}
+
+	@Test
+	public void testSelectCredentialBySpecificSignatureAlgorithm() throws Exception {
+		MetadataCapabilitySigningCredentialSelector selector = new MetadataCapabilitySigningCredentialSelector(
+				makeMetadata(ECDSA_SHA256));
+		selector.setCredentialSignatureAlgorithms(ImmutableMap.of(ec256, ECDSA_SHA256));
+
+		assertThat(selector.selectCredential(makeRequest(), mock(Response.class),
+				makeIdpConfiguration(rsa2048, ec256, rsa1024)), is(ec256));
+	}
+
+	@Test
+	public void testFallbackWithoutSigningMethods() throws Exception {
+		SigningCredentialSelector selector = new MetadataCapabilitySigningCredentialSelector(makeMetadata());
+
+		assertThat(selector.selectCredential(makeRequest(), mock(Response.class),
+				makeIdpConfiguration(rsa2048, ec256, rsa1024)), is(rsa2048));
+	}
+
+	private static MetadataProvider makeMetadata(SignatureAlgorithms ...algorithms) throws Exception {
+		StringBuilder xml = new StringBuilder()
+				.append("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" ")
+				.append("xmlns:alg=\"").append(MetadataCapabilitySigningCredentialSelector.ALGSUPPORT_NS).append("\" ")
+				.append("entityID=\"").append(SP_ENTITY_ID).append("\">")
+				.append("<md:Extensions>");
+		for (SignatureAlgorithms a : algorithms) {
+			xml.append("<alg:SigningMethod Algorithm=\"").append(a.getSignatureAlgorithm()).append("\"/>");
+		}
+		xml.append("</md:Extensions>")
+				.append("<md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\"/>")
+				.append("</md:EntityDescriptor>");
+		BasicParserPool parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+		EntityDescriptor entity = OpenSamlObjectBuilder.unmarshall(parserPool.parse(
+				new ByteArrayInputStream(xml.toString().getBytes("UTF-8"))).getDocumentElement());
+		MetadataProvider metadata = mock(MetadataProvider.class);
+		when(metadata.getEntityDescriptor(SP_ENTITY_ID)).thenReturn(entity);
+		return metadata;
+	}
+
+	private static IDPConfiguration makeIdpConfiguration(Credential ...credentials) {
+		IDPConfiguration idpConfiguration = mock(IDPConfiguration.class);
+		when(idpConfiguration.getSigningCredentials()).thenReturn(ImmutableList.copyOf(credentials));
+		return idpConfiguration;
+	}
+
+	private static RequestAbstractType makeRequest() {
+		Issuer issuer = mock(Issuer.class);
+		when(issuer.getValue()).thenReturn(SP_ENTITY_ID);
+		RequestAbstractType request = mock(RequestAbstractType.class);
+		when(request.getIssuer()).thenReturn(issuer);
+		return request;
+	}
+
+	private static Credential makeCredential(String algorithm, int keySize) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+		generator.initialize(keySize);
+		KeyPair keyPair = generator.generateKeyPair();
+		return SecurityHelper.getSimpleCredential(keyPair.getPublic(), keyPair.getPrivate());
+	}
+}
@@ -0,0 +1,241 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+public class OpenSamlMetadataFactoryBeanTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private OpenSamlMetadataFactoryBean factory;
+	private File sp1;
+	private File sp2;
+
+	@Before
+	public void init() throws Exception {
+		sp1 = copy("metadata/sp1/sp1-metadata.xml");
+		sp2 = copy("metadata/sp2/sp2-metadata.xml");
+		factory = new OpenSamlMetadataFactoryBean();
+		factory.setLocations(Arrays.asList(folder.getRoot().toURI() + "*.xml"));
+	}
+
+	@After
+	public void destroy() throws Exception {
+		factory.destroy();
+	}
+
+	@Test
+	public void testReloadOnlyModifiedLocation() throws Exception {
+		factory.setReloadInterval(60000);
+		factory.afterPropertiesSet();
+		ReloadableChainingMetadataProvider metadata = (ReloadableChainingMetadataProvider) factory.getObject();
+		final AtomicInteger changes = new AtomicInteger();
+		metadata.getObservers().add(new ObservableMetadataProvider.Observer() {
+			@Override
+			public void onEvent(MetadataProvider provider) {
+				changes.incrementAndGet();
+			}
+		});
+		List<MetadataProvider> before = metadata.getProviders();
+		assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(notNullValue()));
+
+		factory.reload();
+		assertThat(changes.get(), is(0));
+
+		replaceEntityId(sp2, "https://sp2.example.com/", "https://sp3.example.com/");
+		factory.reload();
+
+		assertThat(changes.get(), is(1));
+		assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(nullValue()));
+		assertThat(metadata.getEntityDescriptor("https://sp3.example.com/"), is(notNullValue()));
+		assertThat(metadata.getEntityDescriptor("https://sp.example.com/"), is(notNullValue()));
+		List<MetadataProvider> after = metadata.getProviders();
+		assertThat(after.size(), is(before.size()));
+		int unchanged = 0;
+		for (int i = 0; i < after.size(); i++) {
+			if (after.get(i) == before.get(i)) {
+				unchanged++;
+			}
+		}
+		assertThat(unchanged, is(1));
+	}
+
+	@Test
+	public void testReloadKeepsPreviousMetadataOnParseError() throws Exception {
+		factory.setReloadInterval(60000);
+		factory.afterPropertiesSet();
+		MetadataProvider metadata = factory.getObject();
+
+		Files.write("<md:EntityDescriptor", sp2, Charsets.UTF_8);
+		sp2.setLastModified(sp2.lastModified() + 10000);
+		factory.reload();
+
+		assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(notNullValue()));
+	}
+
+	@Test
+	public void testReloadDisabledByDefault() throws Exception {
+		factory.afterPropertiesSet();
+		MetadataProvider metadata = factory.getObject();
+
+		assertThat(metadata, is(sameInstance(factory.getObject())));
+		assertThat(metadata.getEntityDescriptor("https://sp.example.com/"), is(notNullValue()));
+		assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(notNullValue()));
+	}
+
+	@Test
+	public void testStreamingReload() throws Exception {
+		factory.setStreaming(true);
+		factory.setReloadInterval(60000);
+		factory.afterPropertiesSet();
+		ReloadableChainingMetadataProvider metadata = (ReloadableChainingMetadataProvider) factory.getObject();
+
+		for (MetadataProvider provider : metadata.getProviders()) {
+			assertThat(provider, instanceOf(StreamingMetadataProvider.class));
+		}
+		assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(notNullValue()));
+
+		replaceEntityId(sp2, "https://sp2.example.com/", "https://sp3.example.com/");
+		factory.reload();
+
+		assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(nullValue()));
+		assertThat(metadata.getEntityDescriptor("https://sp3.example.com/").getEntityID(),
+				is("https://sp3.example.com/"));
+	}
+
+	@Test
+	public void testSnapshots() throws Exception {
+		factory.setSnapshots(true);
+		factory.afterPropertiesSet();
+		assertThat(factory.getObject().getEntityDescriptor("https://sp2.example.com/"), is(notNullValue()));
+		assertThat(new File(sp2.getPath() + SnapshotMetadataProvider.SNAPSHOT_SUFFIX).isFile(), is(true));
+
+		OpenSamlMetadataFactoryBean restarted = new OpenSamlMetadataFactoryBean();
+		restarted.setLocations(Arrays.asList(sp1.toURI().toString(), sp2.toURI().toString()));
+		restarted.setSnapshots(true);
+		restarted.afterPropertiesSet();
+		try {
+			ReloadableChainingMetadataProvider metadata = (ReloadableChainingMetadataProvider) restarted.getObject();
+			for (MetadataProvider provider : metadata.getProviders()) {
+				assertThat(((SnapshotMetadataProvider) provider).isLoadedFromSnapshot(), is(true));
+			}
+			assertThat(metadata.getEntityDescriptor("https://sp2.example.com/"), is(notNullValue()));
+		} finally {
+			restarted.destroy();
+		}
+	}
+
+	@Test
+	public void testParallelLoadingKeepsLocationOrder() throws Exception {
+		File[] files = new File[8];
+		List<String> locations = new ArrayList<String>();
+		for (int i = 0; i < files.length; i++) {
+			files[i] = copy("metadata/sp1/sp1-metadata.xml", "sp-" + i + ".xml");
+			replaceEntityId(files[i], "https://sp.example.com/", entityId(i));
+			locations.add(files[i].toURI().toString());
+		}
+		factory.setLocations(locations);
+		factory.setLoadingThreads(4);
+		factory.afterPropertiesSet();
+		ReloadableChainingMetadataProvider metadata = (ReloadableChainingMetadataProvider) factory.getObject();
+
+		assertThat(metadata.getProviders().size(), is(files.length));
+		for (int i = 0; i < files.length; i++) {
+			assertThat(metadata.getProviders().get(i).getEntityDescriptor(entityId(i)), is(notNullValue()));
+			assertThat(metadata.getEntityDescriptor(entityId(i)), is(notNullValue()));
+		}
+	}
+
+	@Test
+	public void testLoadedProvidersDestroyedWhenParallelLoadingFails() throws Exception {
+		Files.write("<md:EntityDescriptor", sp2, Charsets.UTF_8);
+		factory.setLocations(Arrays.asList(sp1.toURI().toString(), sp2.toURI().toString()));
+		factory.setLoadingThreads(2);
+		try {
+			factory.afterPropertiesSet();
+			fail();
+		} catch (MetadataProviderException e) {
+		}
+		assertThat(factory.timer.purge(), is(1));
+	}
+
+	@Test
+	public void testLoadedProvidersDestroyedWhenLoadingFails() throws Exception {
+		Files.write("<md:EntityDescriptor", sp2, Charsets.UTF_8);
+		factory.setLocations(Arrays.asList(sp1.toURI().toString(), sp2.toURI().toString()));
+		try {
+			factory.afterPropertiesSet();
+			fail();
+		} catch (MetadataProviderException e) {
+		}
+		assertThat(factory.timer.purge(), is(1));
+	}
+
+	private static String entityId(int i) {
+		return "https://sp" + i + ".example.com/";
+	}
+
+	private File copy(String resource) throws Exception {
+		return copy(resource, new File(resource).getName());
+	}
+
+	private File copy(String resource, String name) throws Exception {
+		File file = new File(folder.getRoot(), name);
+		Resources.asByteSource(Resources.getResource(resource)).copyTo(Files.asByteSink(file));
+		return file;
+	}
+
+	private static void replaceEntityId(File file, String entityId, String replacement) throws Exception {
+		long lastModified = file.lastModified();
+		String content = Files.toString(file, Charsets.UTF_8);
+		Files.write(content.replace(entityId, replacement), file, Charsets.UTF_8);
+		file.setLastModified(lastModified + 10000);
+	}
+}
@@ -0,0 +1,84 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xacml.ctx.DecisionType;
+import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.ctx.StatusCodeType;
+import org.opensaml.xml.util.XMLObjectHelper;
+import org.xacml4j.v30.Decision;
+import org.xacml4j.v30.ResponseContext;
+import org.xacml4j.v30.Result;
+import org.xacml4j.v30.Status;
+import org.xacml4j.v30.StatusCode;
+
+public class OpenSamlObjectBuilderTest {
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+	}
+
+	@Test
+	public void testMakeXacml20ResponseIndeterminate() throws Exception {
+		ResponseContext context = ResponseContext.builder()
+				.result(Result.builder(
+						Decision.INDETERMINATE_DP,
+						Status.builder(StatusCode.createProcessingError()).build())
+						.build())
+				.build();
+
+		ResponseType response = OpenSamlObjectBuilder.makeXacml20Response(context);
+
+		assertThat(response.getResult(), is(notNullValue()));
+		assertThat(response.getResult().getDecision().getDecision(), is(DecisionType.DECISION.Indeterminate));
+		assertThat(response.getResult().getStatus().getStatusCode().getValue(),
+				is(StatusCodeType.SC_PROCESSING_ERROR));
+		assertThat(response.getResult().getObligations(), is(nullValue()));
+	}
+
+	@Test
+	public void testMakeXacml20ResponseIsMarshallable() throws Exception {
+		ResponseContext context = ResponseContext.builder()
+				.result(Result.builder(
+						Decision.PERMIT,
+						Status.builder(StatusCode.createOk()).build())
+						.build())
+				.build();
+
+		ResponseType response = OpenSamlObjectBuilder.makeXacml20Response(context);
+		ResponseType copy = OpenSamlObjectBuilder.unmarshallXacml20Response(
+				XMLObjectHelper.marshall(response));
+
+		assertThat(copy.getResult().getDecision().getDecision(), is(DecisionType.DECISION.Permit));
+		assertThat(copy.getResult().getStatus().getStatusCode().getValue(), is(StatusCodeType.SC_OK));
+	}
+}
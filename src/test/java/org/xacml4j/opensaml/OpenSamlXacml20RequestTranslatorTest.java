@@ -0,0 +1,147 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xacml.ctx.AttributeType;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.w3c.dom.Document;
+import org.xacml4j.v30.Attribute;
+import org.xacml4j.v30.AttributeExp;
+import org.xacml4j.v30.Categories;
+import org.xacml4j.v30.Category;
+import org.xacml4j.v30.RequestContext;
+import org.xacml4j.v30.XacmlSyntaxException;
+import org.xacml4j.v30.marshal.jaxb.Xacml20RequestContextUnmarshaller;
+import org.xacml4j.v30.types.StringExp;
+
+public class OpenSamlXacml20RequestTranslatorTest {
+
+	private static final String RESOURCE_ID = "urn:oasis:names:tc:xacml:1.0:resource:resource-id";
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+	}
+
+	@Test
+	public void testTranslateRequest() throws Exception {
+		RequestContext context = OpenSamlXacml20RequestTranslator.instance().translate(parseRequest());
+
+		assertThat(context.getAttributes().size(), is(3));
+		Category resource = getCategory(context, Categories.RESOURCE);
+		assertThat(resource, is(notNullValue()));
+		Attribute resourceId = getAttribute(resource, RESOURCE_ID);
+		assertThat(resourceId, is(notNullValue()));
+		assertThat(resourceId.isIncludeInResult(), is(true));
+		assertThat(resourceId.getValues(), hasItem((AttributeExp) StringExp.of("resource-id")));
+		assertThat(getCategory(context, Categories.SUBJECT_ACCESS), is(notNullValue()));
+		assertThat(getCategory(context, Categories.ENVIRONMENT), is(notNullValue()));
+	}
+
+	@Test(expected = XacmlSyntaxException.class)
+	public void testTranslateRequestWithUnknownDataType() throws Exception {
+		RequestType request = parseRequest();
+		request.getResources().get(0).getAttributes().get(0).setDataType("urn:test:unknown-data-type");
+
+		OpenSamlXacml20RequestTranslator.instance().translate(request);
+	}
+
+	@Test
+	public void testTranslateRequestSameAsUnmarshaller() throws Exception {
+		for (String resource : new String[] {
+				"TestXacmlSamlRequest-nosignature.xml", "TestXacmlSamlRequest-invalidSignature.xml"}) {
+			RequestContext translated = OpenSamlXacml20RequestTranslator.instance().translate(parseRequest(resource));
+
+			Document reqDom = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			OpenSamlObjectBuilder.marshallXacml20Request(parseRequest(resource), reqDom);
+			RequestContext unmarshalled = new Xacml20RequestContextUnmarshaller().unmarshal(reqDom);
+
+			assertThat(resource, translated, is(unmarshalled));
+		}
+	}
+
+	@Test(expected = XacmlSyntaxException.class)
+	public void testTranslateRequestWithMissingValue() throws Exception {
+		RequestType request = parseRequest();
+		request.getResources().get(0).getAttributes().get(0).getAttributeValues().get(0).setValue(null);
+
+		OpenSamlXacml20RequestTranslator.instance().translate(request);
+	}
+
+	@Test(expected = XacmlSyntaxException.class)
+	public void testTranslateRequestWithMalformedValue() throws Exception {
+		RequestType request = parseRequest();
+		AttributeType subjectId = request.getSubjects().get(0).getAttributes().get(0);
+		subjectId.setDataType("http://www.w3.org/2001/XMLSchema#integer");
+		subjectId.getAttributeValues().get(0).setValue("not-an-integer");
+
+		OpenSamlXacml20RequestTranslator.instance().translate(request);
+	}
+
+	@Test(expected = XacmlSyntaxException.class)
+	public void testTranslateRequestWithMissingAttributeId() throws Exception {
+		RequestType request = parseRequest();
+		request.getResources().get(0).getAttributes().get(0).setAttributeID(null);
+
+		OpenSamlXacml20RequestTranslator.instance().translate(request);
+	}
+
+	private static RequestType parseRequest() throws Exception {
+		return parseRequest("TestXacmlSamlRequest-nosignature.xml");
+	}
+
+	private static RequestType parseRequest(String resource) throws Exception {
+		XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				XACMLAuthzDecisionQueryEndpointTest.parse(resource).getDocumentElement());
+		return query.getRequest();
+	}
+
+	private static Category getCategory(RequestContext context, Categories categoryId) {
+		for (Category category : context.getAttributes()) {
+			if (category.getCategoryId().equals(categoryId)) {
+				return category;
+			}
+		}
+		return null;
+	}
+
+	private static Attribute getAttribute(Category category, String attributeId) {
+		for (Attribute attribute : category.getEntity().getAttributes()) {
+			if (attribute.getAttributeId().equals(attributeId)) {
+				return attribute;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,132 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml2.metadata.PDPDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataProvider;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+
+public class ReloadableChainingMetadataProviderTest {
+
+	private static final String IDP = "https://idp.example.com/";
+	private static final String SP1 = "https://sp.example.com/";
+	private static final String SP2 = "https://sp2.example.com/";
+
+	private ReloadableChainingMetadataProvider metadata;
+	private AtomicInteger changes;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		metadata = new ReloadableChainingMetadataProvider();
+		changes = new AtomicInteger();
+		metadata.getObservers().add(new ObservableMetadataProvider.Observer() {
+			@Override
+			public void onEvent(MetadataProvider provider) {
+				changes.incrementAndGet();
+			}
+		});
+	}
+
+	@Test
+	public void testLookupAcrossProviders() throws Exception {
+		metadata.addMetadataProvider(load("metadata/idp/idp-metadata.xml"));
+		metadata.addMetadataProvider(load("metadata/sp1/sp1-metadata.xml"));
+		metadata.addMetadataProvider(load("metadata/sp2/sp2-metadata.xml"));
+
+		assertThat(metadata.getEntityDescriptor(IDP).getEntityID(), is(IDP));
+		assertThat(metadata.getEntityDescriptor(SP2).getEntityID(), is(SP2));
+		assertThat(metadata.getEntityDescriptor("https://unknown.example.com/"), is(nullValue()));
+		assertThat(metadata.getRole(IDP, PDPDescriptor.DEFAULT_ELEMENT_NAME).size(), is(1));
+		assertThat(metadata.getRole(SP1, SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+				SAMLConstants.SAML20P_NS), is(notNullValue()));
+		assertThat(metadata.getRole(SP1, IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+				SAMLConstants.SAML20P_NS), is(nullValue()));
+	}
+
+	@Test
+	public void testFirstProviderWins() throws Exception {
+		DOMMetadataProvider sp1 = load("metadata/sp1/sp1-metadata.xml");
+		metadata.addMetadataProvider(sp1);
+		metadata.addMetadataProvider(load("metadata.xml"));
+
+		assertThat(metadata.getEntityDescriptor(SP1), is(sameInstance(sp1.getEntityDescriptor(SP1))));
+		assertThat(metadata.getEntityDescriptor(IDP), is(notNullValue()));
+	}
+
+	@Test
+	public void testReplaceAndRemoveProvider() throws Exception {
+		DOMMetadataProvider sp1 = load("metadata/sp1/sp1-metadata.xml");
+		DOMMetadataProvider sp2 = load("metadata/sp2/sp2-metadata.xml");
+		metadata.addMetadataProvider(load("metadata/idp/idp-metadata.xml"));
+		metadata.addMetadataProvider(sp1);
+
+		metadata.replaceMetadataProvider(sp1, sp2);
+
+		assertThat(changes.get(), is(1));
+		assertThat(metadata.getProviders().size(), is(2));
+		assertThat(metadata.getProviders().get(1), is(sameInstance((MetadataProvider) sp2)));
+		assertThat(metadata.getEntityDescriptor(SP1), is(nullValue()));
+		assertThat(metadata.getEntityDescriptor(SP2), is(notNullValue()));
+
+		metadata.removeMetadataProvider(sp2);
+
+		assertThat(metadata.getEntityDescriptor(SP2), is(nullValue()));
+		assertThat(metadata.getEntityDescriptor(IDP), is(notNullValue()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReplaceUnknownProvider() throws Exception {
+		metadata.addMetadataProvider(load("metadata/sp1/sp1-metadata.xml"));
+
+		metadata.replaceMetadataProvider(load("metadata/sp2/sp2-metadata.xml"),
+				load("metadata/idp/idp-metadata.xml"));
+	}
+
+	private static DOMMetadataProvider load(String resource) throws Exception {
+		DOMMetadataProvider provider = new DOMMetadataProvider(
+				XACMLAuthzDecisionQueryEndpointTest.parse(resource).getDocumentElement());
+		provider.initialize();
+		return provider;
+	}
+}
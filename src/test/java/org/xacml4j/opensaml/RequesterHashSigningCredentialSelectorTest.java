@@ -0,0 +1,78 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.opensaml.saml2.core.Issuer;
+import org.opensaml.saml2.core.RequestAbstractType;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.xml.security.credential.Credential;
+
+import com.google.common.collect.ImmutableList;
+
+public class RequesterHashSigningCredentialSelectorTest {
+
+	@Test
+	public void testSelectCredential() throws Exception {
+		RequesterHashSigningCredentialSelector selector = RequesterHashSigningCredentialSelector.instance();
+
+		Credential cred1 = mock(Credential.class, "cred1");
+		Credential cred2 = mock(Credential.class, "cred2");
+		Credential cred3 = mock(Credential.class, "cred3");
+		IDPConfiguration idpConfiguration = mock(IDPConfiguration.class);
+		when(idpConfiguration.getSigningCredentials()).thenReturn(ImmutableList.of(cred1, cred2, cred3));
+
+		Response response = mock(Response.class);
+		for (int i = 0; i < 10; i++) {
+			RequestAbstractType request = makeRequest("https://sp" + i + ".example.com/");
+			Credential selected = selector.selectCredential(request, response, idpConfiguration);
+			assertThat(selector.selectCredential(request, response, idpConfiguration), is(selected));
+		}
+	}
+
+	@Test
+	public void testSelectCredentialWithoutIssuer() throws Exception {
+		RequesterHashSigningCredentialSelector selector = RequesterHashSigningCredentialSelector.instance();
+
+		Credential cred1 = mock(Credential.class, "cred1");
+		Credential cred2 = mock(Credential.class, "cred2");
+		IDPConfiguration idpConfiguration = mock(IDPConfiguration.class);
+		when(idpConfiguration.getSigningCredentials()).thenReturn(ImmutableList.of(cred1, cred2));
+
+		assertThat(selector.selectCredential(mock(RequestAbstractType.class), mock(Response.class),
+				idpConfiguration), is(cred1));
+	}
+
+	private static RequestAbstractType makeRequest(String issuer) {
+		Issuer requestIssuer = mock(Issuer.class);
+		when(requestIssuer.getValue()).thenReturn(issuer);
+		RequestAbstractType request = mock(RequestAbstractType.class);
+		when(request.getIssuer()).thenReturn(requestIssuer);
+		return request;
+	}
+}
@@ -0,0 +1,162 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.xacml.XACMLObjectBuilder;
+import org.opensaml.xacml.ctx.DecisionType;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.ctx.ResultType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionStatementType;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+public class ResponseTemplateTest {
+
+	private static final String ISSUER = "https://idp.example.com/";
+
+	private static Credential credential;
+	private static BasicParserPool parserPool;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		KeyStore ks = KeyStore.getInstance("JCEKS");
+		InputStream in = ResponseTemplateTest.class.getResourceAsStream("/test-idp.jceks");
+		try {
+			ks.load(in, "changeme".toCharArray());
+		} finally {
+			in.close();
+		}
+		credential = new KeyStoreX509CredentialAdapter(ks, "mykey", "changeme".toCharArray());
+		parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+	}
+
+	@Test
+	public void testTemplateIsCachedPerIssuer() throws Exception {
+		ResponseTemplate template = ResponseTemplate.forIssuer(ISSUER);
+		assertThat(ResponseTemplate.forIssuer(ISSUER), sameInstance(template));
+		assertThat(ResponseTemplate.forIssuer("https://other.example.com/"), not(sameInstance(template)));
+	}
+
+	@Test
+	public void testNewSignedResponse() throws Exception {
+		XACMLAuthzDecisionQueryType query = parseQuery();
+		ResponseTemplate template = ResponseTemplate.forIssuer(ISSUER);
+
+		Response first = signAndParse(template.newResponse(query, makeXacmlResponse()));
+		Response second = signAndParse(template.newResponse(query, makeXacmlResponse()));
+
+		assertThat(first.getID(), not(second.getID()));
+		assertThat(first.getInResponseTo(), is(query.getID()));
+		assertThat(first.getIssueInstant(), is(notNullValue()));
+		assertThat(first.getIssuer().getValue(), is(ISSUER));
+		assertThat(first.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+		Assertion assertion = first.getAssertions().get(0);
+		assertThat(assertion.getID(), not(second.getAssertions().get(0).getID()));
+		assertThat(assertion.getID(), not(first.getID()));
+		assertThat(assertion.getIssuer().getValue(), is(ISSUER));
+		XACMLAuthzDecisionStatementType statement = (XACMLAuthzDecisionStatementType) assertion
+				.getStatements(XACMLAuthzDecisionStatementType.TYPE_NAME_XACML20).get(0);
+		assertThat(statement.getResponse().getResult().getDecision().getDecision(),
+				is(DecisionType.DECISION.Permit));
+		assertThat(statement.getRequest(), is(nullValue()));
+
+		new SAMLSignatureProfileValidator().validate(first.getSignature());
+		new SignatureValidator(credential).validate(first.getSignature());
+		new SignatureValidator(credential).validate(second.getSignature());
+	}
+
+	@Test
+	public void testNewResponseReturnsContext() throws Exception {
+		XACMLAuthzDecisionQueryType query = parseQuery();
+		query.setReturnContext(true);
+
+		Response response = signAndParse(ResponseTemplate.forIssuer(ISSUER).newResponse(query, makeXacmlResponse()));
+
+		XACMLAuthzDecisionStatementType statement = (XACMLAuthzDecisionStatementType) response.getAssertions()
+				.get(0).getStatements(XACMLAuthzDecisionStatementType.TYPE_NAME_XACML20).get(0);
+		assertThat(statement.getRequest(), is(notNullValue()));
+		assertThat(statement.getRequest().getResources().size(), is(query.getRequest().getResources().size()));
+		assertThat(XMLHelper.getFirstChildElement(statement.getDOM()).getLocalName(),
+				is(RequestType.DEFAULT_ELEMENT_LOCAL_NAME));
+		new SignatureValidator(credential).validate(response.getSignature());
+	}
+
+	private static Response signAndParse(Element response) throws Exception {
+		SigningProfile.forCredential(credential).sign(response);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OpenSamlObjectBuilder.serialize(response, out);
+		return OpenSamlObjectBuilder.unmarshall(
+				parserPool.parse(new ByteArrayInputStream(out.toByteArray())).getDocumentElement());
+	}
+
+	private static XACMLAuthzDecisionQueryType parseQuery() throws Exception {
+		InputStream in = ResponseTemplateTest.class.getResourceAsStream("/TestXacmlSamlRequest-nosignature.xml");
+		try {
+			return OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(parserPool.parse(in).getDocumentElement());
+		} finally {
+			in.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ResponseType makeXacmlResponse() {
+		ResponseType response = ((XACMLObjectBuilder<ResponseType>) Configuration.getBuilderFactory()
+				.getBuilder(ResponseType.DEFAULT_ELEMENT_NAME)).buildObject();
+		ResultType result = ((XACMLObjectBuilder<ResultType>) Configuration.getBuilderFactory()
+				.getBuilder(ResultType.DEFAULT_ELEMENT_NAME)).buildObject();
+		DecisionType decision = ((XACMLObjectBuilder<DecisionType>) Configuration.getBuilderFactory()
+				.getBuilder(DecisionType.DEFAULT_ELEMENT_NAME)).buildObject();
+		decision.setDecision(DecisionType.DECISION.Permit);
+		result.setDecision(decision);
+		response.setResult(result);
+		return response;
+	}
+}
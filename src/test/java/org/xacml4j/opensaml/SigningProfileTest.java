@@ -0,0 +1,206 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.saml2.core.StatusCode;
+import org.opensaml.xml.security.SecurityHelper;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
+import org.opensaml.xml.security.x509.X509Credential;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureValidator;
+
+public class SigningProfileTest {
+
+	private static Credential credential;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		KeyStore ks = KeyStore.getInstance("JCEKS");
+		InputStream in = SigningProfileTest.class.getResourceAsStream("/test-idp.jceks");
+		try {
+			ks.load(in, "changeme".toCharArray());
+		} finally {
+			in.close();
+		}
+		credential = new KeyStoreX509CredentialAdapter(ks, "mykey", "changeme".toCharArray());
+	}
+
+	@Test
+	public void testProfileIsCachedPerCredential() throws Exception {
+		SigningProfile profile = SigningProfile.forCredential(credential);
+		assertThat(SigningProfile.forCredential(credential), sameInstance(profile));
+		assertThat(profile.getAlgorithms(), is(SignatureAlgorithms.RSA_SHA1));
+	}
+
+	@Test
+	public void testSign() throws Exception {
+		SigningProfile profile = SigningProfile.forCredential(credential);
+		Response first = makeResponse();
+		Response second = makeResponse();
+		profile.sign(first);
+		profile.sign(second);
+
+		new SignatureValidator(credential).validate(first.getSignature());
+		new SignatureValidator(credential).validate(second.getSignature());
+		assertThat(first.getSignature().getKeyInfo(), is(notNullValue()));
+		assertThat(first.getSignature().getKeyInfo().getOrderedChildren().size(),
+				is(SecurityHelper.getKeyInfoGenerator(credential, null, null).generate(credential)
+						.getOrderedChildren().size()));
+		assertThat(first.getSignature().getKeyInfo(), not(sameInstance(second.getSignature().getKeyInfo())));
+	}
+
+	@Test
+	public void testSignConcurrently() throws Exception {
+		final SigningProfile profile = SigningProfile.forCredential(credential);
+		int keyInfoSize = SecurityHelper.getKeyInfoGenerator(credential, null, null).generate(credential)
+				.getOrderedChildren().size();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Response>> responses = new ArrayList<Future<Response>>();
+			for (int i = 0; i < 64; i++) {
+				responses.add(executor.submit(new Callable<Response>() {
+					@Override
+					public Response call() throws Exception {
+						Response response = makeResponse();
+						profile.sign(response);
+						return response;
+					}
+				}));
+			}
+			for (Future<Response> response : responses) {
+				Response signed = response.get(10, TimeUnit.SECONDS);
+				new SignatureValidator(credential).validate(signed.getSignature());
+				assertThat(signed.getSignature().getKeyInfo().getOrderedChildren().size(), is(keyInfoSize));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSignWithAlgorithms() throws Exception {
+		SigningProfile profile = SigningProfile.forCredential(credential)
+				.withAlgorithms(SignatureAlgorithms.RSA_SHA256);
+		Response response = makeResponse();
+		profile.sign(response);
+
+		assertThat(response.getSignature().getSignatureAlgorithm(),
+				is(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256));
+		new SignatureValidator(credential).validate(response.getSignature());
+	}
+
+	@Test
+	public void testProfileIsCachedPerAlgorithms() throws Exception {
+		SigningProfile profile = SigningProfile.forCredential(credential);
+		SigningProfile sha256 = profile.withAlgorithms(SignatureAlgorithms.RSA_SHA256);
+
+		assertThat(profile.withAlgorithms(SignatureAlgorithms.RSA_SHA256), sameInstance(sha256));
+		assertThat(sha256.withAlgorithms(SignatureAlgorithms.RSA_SHA1), sameInstance(profile));
+	}
+
+	@Test
+	public void testProfileCacheIsBounded() throws Exception {
+		Credential first = copyOf(credential);
+		SigningProfile profile = SigningProfile.forCredential(first);
+		for (int i = 0; i < 2 * SigningProfile.MAX_CACHED_PROFILES; i++) {
+			SigningProfile.forCredential(copyOf(credential));
+		}
+
+		assertThat(SigningProfile.forCredential(first), not(sameInstance(profile)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEcdsaWithRsaCredential() throws Exception {
+		SigningProfile.forCredential(credential).withAlgorithms(SignatureAlgorithms.ECDSA_SHA1);
+	}
+
+	@Test
+	public void testSignWithEcCredential() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(256);
+		KeyPair keyPair = generator.generateKeyPair();
+		X509V3CertificateGenerator certificateGenerator = new X509V3CertificateGenerator();
+		certificateGenerator.setSerialNumber(BigInteger.ONE);
+		certificateGenerator.setSubjectDN(new X500Principal("CN=idp.example.com"));
+		certificateGenerator.setIssuerDN(new X500Principal("CN=idp.example.com"));
+		certificateGenerator.setNotBefore(new Date());
+		certificateGenerator.setNotAfter(new Date(System.currentTimeMillis() + 60000));
+		certificateGenerator.setPublicKey(keyPair.getPublic());
+		certificateGenerator.setSignatureAlgorithm("SHA256withECDSA");
+		BasicX509Credential ecCredential = new BasicX509Credential();
+		ecCredential.setEntityCertificate(certificateGenerator.generate(keyPair.getPrivate()));
+		ecCredential.setPrivateKey(keyPair.getPrivate());
+
+		SigningProfile profile = SigningProfile.forCredential(ecCredential);
+		assertThat(profile.getAlgorithms(), is(SignatureAlgorithms.ECDSA_SHA1));
+		Response response = makeResponse();
+		profile.sign(response);
+		new SignatureValidator(ecCredential).validate(response.getSignature());
+		assertThat(response.getSignature().getKeyInfo().getX509Datas().size(), is(1));
+	}
+
+	private static Credential copyOf(Credential credential) {
+		BasicX509Credential copy = new BasicX509Credential();
+		copy.setEntityCertificate(((X509Credential) credential).getEntityCertificate());
+		copy.setPrivateKey(credential.getPrivateKey());
+		return copy;
+	}
+
+	private static Response makeResponse() {
+		Response response = OpenSamlObjectBuilder.makeResponse(null,
+				OpenSamlObjectBuilder.makeStatus(StatusCode.SUCCESS_URI));
+		response.setIssuer(OpenSamlObjectBuilder.makeIssuer("https://idp.example.com/"));
+		return response;
+	}
+}
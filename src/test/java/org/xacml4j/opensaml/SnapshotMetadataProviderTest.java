@@ -0,0 +1,263 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.PDPDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml2.metadata.provider.MetadataFilter;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.credential.UsageType;
+import org.opensaml.xml.security.keyinfo.KeyInfoHelper;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+public class SnapshotMetadataProviderTest {
+
+	private static final String IDP = "https://idp.example.com/";
+	private static final String SP = "https://sp.example.com/";
+
+	/**
+	 * Magic, version and the length prefixed SHA-256 source hash
+	 */
+	private static final int PAYLOAD_LENGTH_OFFSET = 4 + 4 + 4 + 32;
+	private static final int PAYLOAD_OFFSET = PAYLOAD_LENGTH_OFFSET + 4 + 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File metadataFile;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String metadata = Resources.toString(Resources.getResource("metadata.xml"), Charsets.UTF_8)
+				.replace("<md:EntityDescriptor entityID=\"" + SP + "\">",
+						"<md:EntityDescriptor entityID=\"" + SP + "\"><md:Extensions>"
+						+ "<alg:SigningMethod xmlns:alg=\"" + MetadataCapabilitySigningCredentialSelector.ALGSUPPORT_NS
+						+ "\" Algorithm=\"" + SignatureAlgorithms.RSA_SHA256.getSignatureAlgorithm() + "\"/>"
+						+ "</md:Extensions>");
+		metadataFile = folder.newFile("metadata.xml");
+		Files.write(metadata, metadataFile, Charsets.UTF_8);
+	}
+
+	@Test
+	public void testSnapshotWrittenAndLoaded() throws Exception {
+		SnapshotMetadataProvider parsed = new SnapshotMetadataProvider(metadataFile);
+		parsed.initialize();
+
+		assertThat(parsed.isLoadedFromSnapshot(), is(false));
+		assertThat(new File(metadataFile.getPath() + SnapshotMetadataProvider.SNAPSHOT_SUFFIX).isFile(), is(true));
+
+		SnapshotMetadataProvider loaded = new SnapshotMetadataProvider(metadataFile);
+		loaded.initialize();
+
+		assertThat(loaded.isLoadedFromSnapshot(), is(true));
+		assertEquivalent(parsed.getEntityDescriptor(IDP), loaded.getEntityDescriptor(IDP));
+		assertEquivalent(parsed.getEntityDescriptor(SP), loaded.getEntityDescriptor(SP));
+
+		PDPDescriptor pdp = (PDPDescriptor) loaded.getRole(IDP, PDPDescriptor.DEFAULT_ELEMENT_NAME,
+				SAMLConstants.SAML20P_NS);
+		assertThat(pdp.getAuthzServices().get(0).getLocation(), is("https://authz.example.com/api/xacml"));
+		assertThat(pdp.getAuthzServices().get(0).getBinding(), is(SAMLConstants.SAML2_SOAP11_BINDING_URI));
+		SPSSODescriptor sp = (SPSSODescriptor) loaded.getRole(SP, SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+				SAMLConstants.SAML20P_NS);
+		assertThat(sp.getAssertionConsumerServices().get(0).getIndex(), is(0));
+		assertThat(sp.getKeyDescriptors().get(1).getUse(), is(UsageType.SIGNING));
+		assertThat(loaded.getEntityDescriptor(SP).getExtensions().getUnknownXMLObjects().size(), is(1));
+	}
+
+	@Test
+	public void testStaleSnapshotIgnored() throws Exception {
+		new SnapshotMetadataProvider(metadataFile).initialize();
+		String metadata = Files.toString(metadataFile, Charsets.UTF_8);
+		Files.write(metadata.replace(SP, "https://sp3.example.com/"), metadataFile, Charsets.UTF_8);
+
+		SnapshotMetadataProvider reparsed = new SnapshotMetadataProvider(metadataFile);
+		reparsed.initialize();
+
+		assertThat(reparsed.isLoadedFromSnapshot(), is(false));
+		assertThat(reparsed.getEntityDescriptor(SP), is(nullValue()));
+		assertThat(reparsed.getEntityDescriptor("https://sp3.example.com/"), is(notNullValue()));
+
+		SnapshotMetadataProvider loaded = new SnapshotMetadataProvider(metadataFile);
+		loaded.initialize();
+
+		assertThat(loaded.isLoadedFromSnapshot(), is(true));
+		assertThat(loaded.getEntityDescriptor("https://sp3.example.com/"), is(notNullValue()));
+	}
+
+	@Test
+	public void testCorruptedSnapshotIgnored() throws Exception {
+		Files.write("corrupted", new File(metadataFile.getPath() + SnapshotMetadataProvider.SNAPSHOT_SUFFIX),
+				Charsets.UTF_8);
+
+		SnapshotMetadataProvider metadata = new SnapshotMetadataProvider(metadataFile);
+		metadata.initialize();
+
+		assertThat(metadata.isLoadedFromSnapshot(), is(false));
+		assertThat(metadata.getEntityDescriptor(IDP), is(notNullValue()));
+	}
+
+	@Test
+	public void testSnapshotWithHugeLengthIgnored() throws Exception {
+		File snapshotFile = writeSnapshot();
+		byte[] snapshot = Files.toByteArray(snapshotFile);
+		ByteBuffer.wrap(snapshot).putInt(PAYLOAD_LENGTH_OFFSET, Integer.MAX_VALUE);
+		Files.write(snapshot, snapshotFile);
+
+		assertSnapshotIgnored();
+	}
+
+	@Test
+	public void testSnapshotWithBadChecksumIgnored() throws Exception {
+		File snapshotFile = writeSnapshot();
+		byte[] snapshot = Files.toByteArray(snapshotFile);
+		snapshot[snapshot.length - 10] ^= 0x55;
+		Files.write(snapshot, snapshotFile);
+
+		assertSnapshotIgnored();
+	}
+
+	@Test
+	public void testSnapshotWithInvalidContentIgnored() throws Exception {
+		File snapshotFile = writeSnapshot();
+		byte[] snapshot = Files.toByteArray(snapshotFile);
+		String content = new String(snapshot, Charsets.ISO_8859_1);
+		// an unknown key usage and a matching checksum
+		int usage = content.indexOf(UsageType.SIGNING.name());
+		snapshot[usage] = 'X';
+		CRC32 crc = new CRC32();
+		crc.update(snapshot, PAYLOAD_OFFSET, snapshot.length - PAYLOAD_OFFSET);
+		ByteBuffer.wrap(snapshot).putLong(PAYLOAD_LENGTH_OFFSET + 4, crc.getValue());
+		Files.write(snapshot, snapshotFile);
+
+		assertSnapshotIgnored();
+	}
+
+	@Test
+	public void testSnapshotNotUsedWithUnversionedFilter() throws Exception {
+		writeSnapshot();
+		CountingFilter filter = new CountingFilter();
+		SnapshotMetadataProvider metadata = new SnapshotMetadataProvider(metadataFile);
+		metadata.setMetadataFilter(filter);
+		metadata.initialize();
+
+		assertThat(metadata.isLoadedFromSnapshot(), is(false));
+		assertThat(filter.count, is(1));
+	}
+
+	@Test
+	public void testFilterVersionChangeInvalidatesSnapshot() throws Exception {
+		writeSnapshot();
+		CountingFilter filter = new CountingFilter();
+
+		assertThat(initialize(filter, "1").isLoadedFromSnapshot(), is(false));
+		assertThat(initialize(filter, "1").isLoadedFromSnapshot(), is(true));
+		assertThat(initialize(filter, "2").isLoadedFromSnapshot(), is(false));
+		assertThat(filter.count, is(2));
+	}
+
+	@Test
+	public void testTemporarySnapshotFilesRemoved() throws Exception {
+		writeSnapshot();
+
+		assertThat(folder.getRoot().list().length, is(2));
+	}
+
+	private SnapshotMetadataProvider initialize(MetadataFilter filter, String filterVersion) throws Exception {
+		SnapshotMetadataProvider metadata = new SnapshotMetadataProvider(metadataFile);
+		metadata.setMetadataFilter(filter);
+		metadata.setFilterVersion(filterVersion);
+		metadata.initialize();
+		return metadata;
+	}
+
+	private File writeSnapshot() throws Exception {
+		new SnapshotMetadataProvider(metadataFile).initialize();
+		return new File(metadataFile.getPath() + SnapshotMetadataProvider.SNAPSHOT_SUFFIX);
+	}
+
+	private void assertSnapshotIgnored() throws Exception {
+		SnapshotMetadataProvider metadata = new SnapshotMetadataProvider(metadataFile);
+		metadata.initialize();
+
+		assertThat(metadata.isLoadedFromSnapshot(), is(false));
+		assertThat(metadata.getEntityDescriptor(IDP), is(notNullValue()));
+	}
+
+	private static void assertEquivalent(EntityDescriptor expected, EntityDescriptor actual) throws Exception {
+		assertThat(actual.getEntityID(), is(expected.getEntityID()));
+		assertThat(actual.getID(), is(expected.getID()));
+		assertThat(actual.getRoleDescriptors().size(), is(expected.getRoleDescriptors().size()));
+		for (int i = 0; i < expected.getRoleDescriptors().size(); i++) {
+			assertThat(actual.getRoleDescriptors().get(i).getElementQName(),
+					is(expected.getRoleDescriptors().get(i).getElementQName()));
+			assertThat(ImmutableList.copyOf(actual.getRoleDescriptors().get(i).getSupportedProtocols()),
+					is(ImmutableList.copyOf(expected.getRoleDescriptors().get(i).getSupportedProtocols())));
+			assertThat(actual.getRoleDescriptors().get(i).getEndpoints().size(),
+					is(expected.getRoleDescriptors().get(i).getEndpoints().size()));
+			assertThat(actual.getRoleDescriptors().get(i).getKeyDescriptors().size(),
+					is(expected.getRoleDescriptors().get(i).getKeyDescriptors().size()));
+			for (int j = 0; j < expected.getRoleDescriptors().get(i).getKeyDescriptors().size(); j++) {
+				assertThat(KeyInfoHelper.getCertificates(
+						actual.getRoleDescriptors().get(i).getKeyDescriptors().get(j).getKeyInfo()),
+						is(KeyInfoHelper.getCertificates(
+								expected.getRoleDescriptors().get(i).getKeyDescriptors().get(j).getKeyInfo())));
+			}
+		}
+	}
+
+	private static final class CountingFilter implements MetadataFilter {
+
+		private int count;
+
+		@Override
+		public void doFilter(XMLObject metadata) {
+			count++;
+		}
+	}
+}
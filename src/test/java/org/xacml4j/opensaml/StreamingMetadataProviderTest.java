@@ -0,0 +1,184 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.xml.SAMLConstants;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.xml.security.credential.UsageType;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+public class StreamingMetadataProviderTest {
+
+	private static final int ENTITIES = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File aggregate;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String sp = Resources.toString(Resources.getResource("metadata/sp1/sp1-metadata.xml"), Charsets.UTF_8);
+		String entity = sp.substring(sp.indexOf("<md:EntityDescriptor"),
+				sp.indexOf("</md:EntityDescriptor>") + "</md:EntityDescriptor>".length());
+		StringBuilder b = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+				.append("<!-- <md:EntityDescriptor entityID=\"https://comment.example.com/\"/> -->\n")
+				.append("<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\">\n")
+				.append("<md:EntitiesDescriptor Name=\"group\">\n");
+		for (int i = 0; i < ENTITIES; i++) {
+			b.append(entity
+					.replace("https://sp.example.com/", entityId(i))
+					.replace("<md:SPSSODescriptor", "<!-- F\u00e9d\u00e9ration > -->\n<md:SPSSODescriptor"))
+					.append('\n');
+		}
+		b.append("</md:EntitiesDescriptor>\n</md:EntitiesDescriptor>\n");
+		aggregate = folder.newFile("aggregate.xml");
+		Files.write(b.toString(), aggregate, Charsets.UTF_8);
+	}
+
+	@Test
+	public void testIndexedOnInitialization() throws Exception {
+		StreamingMetadataProvider metadata = new StreamingMetadataProvider(aggregate);
+		metadata.initialize();
+
+		assertThat(metadata.getEntityIDs().size(), is(ENTITIES));
+		assertThat(metadata.getMaterializedCount(), is(0L));
+		assertThat(metadata.getEntityDescriptor("https://comment.example.com/"), is(nullValue()));
+		assertThat(metadata.getEntityDescriptor("https://unknown.example.com/"), is(nullValue()));
+	}
+
+	@Test
+	public void testMaterializedOnLookup() throws Exception {
+		StreamingMetadataProvider metadata = new StreamingMetadataProvider(aggregate);
+		metadata.initialize();
+
+		EntityDescriptor entity = metadata.getEntityDescriptor(entityId(ENTITIES - 1));
+
+		assertThat(entity.getEntityID(), is(entityId(ENTITIES - 1)));
+		assertThat(metadata.getMaterializedCount(), is(1L));
+		assertThat(metadata.getEntityDescriptor(entityId(ENTITIES - 1)), is(sameInstance(entity)));
+		SPSSODescriptor role = (SPSSODescriptor) metadata.getRole(entityId(ENTITIES - 1),
+				SPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS);
+		assertThat(role, is(notNullValue()));
+		assertThat(role.getKeyDescriptors().size(), is(2));
+		assertThat(role.getKeyDescriptors().get(1).getUse(), is(UsageType.SIGNING));
+		assertThat(role.getKeyDescriptors().get(1).getKeyInfo().getX509Datas().size(), is(1));
+	}
+
+	@Test
+	public void testMaterializedCacheIsBounded() throws Exception {
+		StreamingMetadataProvider metadata = new StreamingMetadataProvider(aggregate, 2);
+		metadata.initialize();
+
+		for (int i = 0; i < ENTITIES; i++) {
+			assertThat(metadata.getEntityDescriptor(entityId(i)).getEntityID(), is(entityId(i)));
+		}
+
+		assertThat(metadata.getMaterializedCount() <= 2, is(true));
+	}
+
+	@Test
+	public void testGetMetadata() throws Exception {
+		StreamingMetadataProvider metadata = new StreamingMetadataProvider(aggregate);
+		metadata.initialize();
+
+		assertThat(metadata.getMetadata(), instanceOf(EntitiesDescriptor.class));
+		assertThat(metadata.getEntitiesDescriptor("group").getEntityDescriptors().size(), is(ENTITIES));
+		assertThat(metadata.getMetadata(), is(sameInstance(metadata.getMetadata())));
+	}
+
+	@Test
+	public void testExpiredAggregateNotTrusted() throws Exception {
+		setGroupValidUntil(new DateTime().minusDays(1));
+		StreamingMetadataProvider metadata = new StreamingMetadataProvider(aggregate);
+		metadata.setRequireValidMetadata(true);
+		metadata.initialize();
+
+		assertThat(metadata.getEntityDescriptor(entityId(0)), is(nullValue()));
+	}
+
+	@Test
+	public void testAggregateValidUntilAppliedToEntity() throws Exception {
+		DateTime validUntil = new DateTime().plusDays(1).withMillisOfSecond(0);
+		setGroupValidUntil(validUntil);
+		StreamingMetadataProvider metadata = new StreamingMetadataProvider(aggregate);
+		metadata.setRequireValidMetadata(true);
+		metadata.initialize();
+
+		EntityDescriptor entity = metadata.getEntityDescriptor(entityId(0));
+
+		assertThat(entity, is(notNullValue()));
+		assertThat(entity.getValidUntil().getMillis(), is(validUntil.getMillis()));
+	}
+
+	@Test
+	public void testScanEntityRanges() throws Exception {
+		byte[] content = Files.toByteArray(aggregate);
+		List<long[]> ranges = StreamingMetadataProvider.scanEntityRanges(aggregate);
+
+		assertThat(ranges.size(), is(ENTITIES));
+		for (long[] range : ranges) {
+			String entity = new String(content, (int) range[0], (int) range[1], Charsets.UTF_8);
+			assertThat(entity.startsWith("<md:EntityDescriptor "), is(true));
+			assertThat(entity.endsWith("</md:EntityDescriptor>"), is(true));
+		}
+	}
+
+	private void setGroupValidUntil(DateTime validUntil) throws Exception {
+		String content = Files.toString(aggregate, Charsets.UTF_8).replace("Name=\"group\"",
+				"Name=\"group\" validUntil=\"" + validUntil.toDateTime(DateTimeZone.UTC) + "\"");
+		Files.write(content, aggregate, Charsets.UTF_8);
+	}
+
+	private static String entityId(int i) {
+		return "https://sp" + i + ".example.com/";
+	}
+}
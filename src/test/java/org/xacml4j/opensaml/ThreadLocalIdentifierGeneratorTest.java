@@ -0,0 +1,96 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.opensaml.common.IdentifierGenerator;
+
+public class ThreadLocalIdentifierGeneratorTest {
+
+	private final IdentifierGenerator generator = ThreadLocalIdentifierGenerator.instance();
+
+	@Test
+	public void testIdentifierFormat() {
+		assertThat(generator.generateIdentifier().matches("_[0-9a-f]{32}"), is(true));
+		assertThat(generator.generateIdentifier(20).matches("_[0-9a-f]{40}"), is(true));
+		assertThat(generator.generateIdentifier(2000).matches("_[0-9a-f]{4000}"), is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		generator.generateIdentifier(0);
+	}
+
+	@Test
+	public void testIdentifiersAreUniqueAcrossThreads() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+			for (int i = 0; i < 4; i++) {
+				tasks.add(new Callable<List<String>>() {
+					@Override
+					public List<String> call() {
+						List<String> ids = new ArrayList<String>();
+						for (int j = 0; j < 10000; j++) {
+							ids.add(generator.generateIdentifier());
+						}
+						return ids;
+					}
+				});
+			}
+			Set<String> ids = new HashSet<String>();
+			for (Future<List<String>> f : executor.invokeAll(tasks)) {
+				ids.addAll(f.get());
+			}
+			assertThat(ids.size(), is(40000));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCustomGenerator() {
+		IdentifierGenerator custom = mock(IdentifierGenerator.class);
+		when(custom.generateIdentifier()).thenReturn("_custom");
+		OpenSamlObjectBuilder.setIdentifierGenerator(custom);
+		try {
+			assertThat(OpenSamlObjectBuilder.generateIdentifier(), is("_custom"));
+		} finally {
+			OpenSamlObjectBuilder.setIdentifierGenerator(generator);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
+import org.opensaml.xml.signature.SignatureValidator;
+
+import com.google.common.io.ByteStreams;
+
+public class XACMLAuthzDecisionQueryBulkSignerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] query;
+	private static Credential credential;
+	private static XACMLAuthzDecisionQuerySigner signer;
+	private static BasicParserPool parserPool;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		KeyStore ks = KeyStore.getInstance("JCEKS");
+		InputStream in = XACMLAuthzDecisionQueryBulkSignerTest.class.getResourceAsStream("/test-sp.jceks");
+		try {
+			ks.load(in, "changeme".toCharArray());
+		} finally {
+			in.close();
+		}
+		credential = new KeyStoreX509CredentialAdapter(ks, "mykey", "changeme".toCharArray());
+		signer = new XACMLAuthzDecisionQuerySigner(ks, "mykey", "changeme");
+		in = XACMLAuthzDecisionQueryBulkSignerTest.class.getResourceAsStream("/TestXacmlSamlRequest-nosignature.xml");
+		try {
+			query = ByteStreams.toByteArray(in);
+		} finally {
+			in.close();
+		}
+		parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+	}
+
+	@Test
+	public void testSignConcatenated() throws Exception {
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		for (int i = 0; i < 20; i++) {
+			input.write(query);
+			input.write("\n".getBytes("UTF-8"));
+		}
+		XACMLAuthzDecisionQueryBulkSigner bulkSigner = new XACMLAuthzDecisionQueryBulkSigner(signer);
+		bulkSigner.setThreads(3);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		XACMLAuthzDecisionQueryBulkSigner.Summary summary = bulkSigner.signConcatenated(
+				new ByteArrayInputStream(input.toByteArray()), output);
+
+		assertThat(summary.getSigned(), is(20));
+		assertThat(summary.getFailed(), is(0));
+		assertThat(summary.getThroughput() > 0, is(true));
+		XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader reader = new XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader(
+				new ByteArrayInputStream(output.toByteArray()));
+		byte[] signed;
+		while ((signed = reader.next()) != null) {
+			assertSigned(new ByteArrayInputStream(signed));
+		}
+		assertThat(reader.getCount(), is(20));
+	}
+
+	@Test
+	public void testSignConcatenatedSkipsInvalidQueries() throws Exception {
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		input.write(query);
+		input.write("<Unknown xmlns=\"urn:test\"/>".getBytes("UTF-8"));
+		input.write(query);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		XACMLAuthzDecisionQueryBulkSigner.Summary summary = new XACMLAuthzDecisionQueryBulkSigner(signer)
+				.signConcatenated(new ByteArrayInputStream(input.toByteArray()), output);
+
+		assertThat(summary.getSigned(), is(2));
+		assertThat(summary.getFailed(), is(1));
+	}
+
+	@Test
+	public void testSignDirectory() throws Exception {
+		File input = folder.newFolder("input");
+		for (int i = 0; i < 5; i++) {
+			write(new File(input, "query-" + i + ".xml"), query);
+		}
+		write(new File(input, "README.txt"), "not a query".getBytes("UTF-8"));
+		File output = new File(folder.getRoot(), "output");
+
+		XACMLAuthzDecisionQueryBulkSigner.Summary summary = new XACMLAuthzDecisionQueryBulkSigner(signer)
+				.signDirectory(input, output);
+
+		assertThat(summary.getSigned(), is(5));
+		assertThat(summary.getFailed(), is(0));
+		assertThat(summary.getElapsed(TimeUnit.NANOSECONDS) > 0, is(true));
+		assertThat(output.list().length, is(5));
+		for (int i = 0; i < 5; i++) {
+			InputStream in = new FileInputStream(new File(output, "query-" + i + ".xml"));
+			try {
+				assertSigned(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	@Test
+	public void testReadConcatenatedDocuments() throws Exception {
+		String first = "<?xml version=\"1.0\"?>\n<!-- <a> --><a x=\"/>\" y='>'><b/><![CDATA[</a>]]></a>";
+		String second = "<!DOCTYPE c [<!ENTITY e \"<c>\">]><c>text<d></d></c>";
+		XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader reader = new XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader(
+				new ByteArrayInputStream(("\n" + first + "\r\n" + second + "\n").getBytes("UTF-8")));
+
+		assertThat(new String(reader.next(), "UTF-8"), is(first));
+		assertThat(new String(reader.next(), "UTF-8"), is(second));
+		assertThat(reader.next(), is(nullValue()));
+		assertThat(reader.getCount(), is(2));
+	}
+
+	@Test
+	public void testReadDocumentsWithAmbiguousEndSequences() throws Exception {
+		String first = "<a><![CDATA[a]]]></a>";
+		String second = "<b><!---->--></b>";
+		String third = "<?pi ??><c/>";
+		XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader reader = new XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader(
+				new ByteArrayInputStream((first + second + third).getBytes("UTF-8")));
+
+		assertThat(new String(reader.next(), "UTF-8"), is(first));
+		assertThat(new String(reader.next(), "UTF-8"), is(second));
+		assertThat(new String(reader.next(), "UTF-8"), is(third));
+		assertThat(reader.next(), is(nullValue()));
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadTruncatedDocument() throws Exception {
+		new XACMLAuthzDecisionQueryBulkSigner.XmlDocumentReader(
+				new ByteArrayInputStream("<a><b/>".getBytes("UTF-8"))).next();
+	}
+
+	private static void assertSigned(InputStream in) throws Exception {
+		XACMLAuthzDecisionQueryType signed = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				parserPool.parse(in).getDocumentElement());
+		assertThat(signed.getSignature(), is(notNullValue()));
+		new SignatureValidator(credential).validate(signed.getSignature());
+	}
+
+	private static void write(File file, byte[] content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+}
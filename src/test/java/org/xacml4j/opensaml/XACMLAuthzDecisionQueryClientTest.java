@@ -0,0 +1,407 @@
+package org.xacml4j.opensaml;
+
+/*
+ * #%L
+ * XACML/OpenSAML Integration
+ * %%
+ * Copyright (C) 2009 - 2015 Xacml4J.org
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.xacml.XACMLObjectBuilder;
+import org.opensaml.xacml.ctx.DecisionType;
+import org.opensaml.xacml.ctx.RequestType;
+import org.opensaml.xacml.ctx.ResponseType;
+import org.opensaml.xacml.ctx.ResultType;
+import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.security.x509.KeyStoreX509CredentialAdapter;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+public class XACMLAuthzDecisionQueryClientTest {
+
+	private static final String PDP = "https://idp.example.com/";
+	private static final String PEP = "https://sp.example.com/";
+
+	private static KeyStore spKeyStore;
+	private static Credential pdpCredential;
+	private static Credential untrustedCredential;
+	private static DOMMetadataProvider metadata;
+
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private volatile Credential responseCredential;
+	private volatile int responseStatus;
+	private volatile String responseBody;
+	private AtomicInteger requests;
+	private Set<InetSocketAddress> remoteAddresses;
+	private XACMLAuthzDecisionQueryClient client;
+
+	@BeforeClass
+	public static void init() throws Exception {
+		DefaultBootstrap.bootstrap();
+		spKeyStore = loadKeyStore("/test-sp.jceks");
+		pdpCredential = new KeyStoreX509CredentialAdapter(loadKeyStore("/test-idp.jceks"),
+				"mykey", "changeme".toCharArray());
+		untrustedCredential = new KeyStoreX509CredentialAdapter(spKeyStore, "mykey", "changeme".toCharArray());
+		BasicParserPool parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+		InputStream in = XACMLAuthzDecisionQueryClientTest.class.getResourceAsStream("/metadata.xml");
+		try {
+			metadata = new DOMMetadataProvider(parserPool.parse(in).getDocumentElement());
+		} finally {
+			in.close();
+		}
+		metadata.initialize();
+	}
+
+	@Before
+	public void startServer() throws Exception {
+		responseCredential = pdpCredential;
+		responseStatus = 200;
+		responseBody = null;
+		requests = new AtomicInteger();
+		remoteAddresses = Sets.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+		serverExecutor = Executors.newFixedThreadPool(4);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/pdp", new PdpHandler());
+		server.setExecutor(serverExecutor);
+		server.start();
+		client = new XACMLAuthzDecisionQueryClient(PEP, PDP,
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/pdp",
+				new XACMLAuthzDecisionQuerySigner(spKeyStore, "mykey", "changeme"),
+				metadata);
+	}
+
+	@After
+	public void stopServer() {
+		client.close();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testDecide() throws Exception {
+		ResponseType response = client.decide(parseRequest());
+
+		assertThat(response.getResult().getDecision().getDecision(), is(DecisionType.DECISION.Permit));
+	}
+
+	@Test
+	public void testConnectionIsReused() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			client.decide(parseRequest());
+		}
+
+		assertThat(remoteAddresses.size(), is(1));
+	}
+
+	@Test
+	public void testDecideAsync() throws Exception {
+		client.setMaxConnections(2);
+		List<ListenableFuture<ResponseType>> responses = new ArrayList<ListenableFuture<ResponseType>>();
+		for (int i = 0; i < 10; i++) {
+			responses.add(client.decideAsync(parseRequest()));
+		}
+
+		for (ListenableFuture<ResponseType> response : responses) {
+			assertThat(response.get(10, TimeUnit.SECONDS).getResult().getDecision().getDecision(),
+					is(DecisionType.DECISION.Permit));
+		}
+		assertThat(remoteAddresses.size() <= 2, is(true));
+	}
+
+	@Test(expected = SecurityException.class)
+	public void testDecideWithUntrustedResponseSignature() throws Exception {
+		responseCredential = untrustedCredential;
+
+		client.decide(parseRequest());
+	}
+
+	@Test
+	public void testDecideAsyncWithUntrustedResponseSignature() throws Exception {
+		responseCredential = untrustedCredential;
+
+		try {
+			client.decideAsync(parseRequest()).get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), instanceOf(SecurityException.class));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testDecideWithUnavailablePdp() throws Exception {
+		server.stop(0);
+
+		client.decide(parseRequest());
+	}
+
+	@Test(expected = IOException.class)
+	public void testResponseTooLarge() throws Exception {
+		client.setMaxResponseSize(1024);
+
+		client.decide(parseRequest());
+	}
+
+	@Test
+	public void testErrorStatusOnReusedConnectionIsNotRetried() throws Exception {
+		client.decide(parseRequest());
+		responseStatus = 503;
+
+		try {
+			client.decide(parseRequest());
+			fail();
+		} catch (IOException e) {
+			assertThat(e.getMessage(), containsString("503"));
+		}
+		assertThat(requests.get(), is(2));
+	}
+
+	@Test
+	public void testClosedIdleConnectionIsRetried() throws Exception {
+		client.decide(parseRequest());
+		// the stand-in server closes idle connections when stopped
+		int port = server.getAddress().getPort();
+		server.stop(0);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/pdp", new PdpHandler());
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		ResponseType response = client.decide(parseRequest());
+
+		assertThat(response.getResult().getDecision().getDecision(), is(DecisionType.DECISION.Permit));
+		assertThat(requests.get(), is(2));
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownResponseMessage() throws Exception {
+		responseBody = "<x:Unknown xmlns:x=\"urn:test\"/>";
+
+		client.decide(parseRequest());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedResponseValue() throws Exception {
+		responseBody = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+				+ " ID=\"_1\" Version=\"2.0\" IssueInstant=\"x\"/>";
+
+		client.decide(parseRequest());
+	}
+
+	@Test
+	public void testResponseWithDoctypeRejected() throws Exception {
+		responseBody = "<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_1\" Version=\"2.0\"/>";
+		final String doctype = "<!DOCTYPE x [<!ENTITY e \"e\">]>";
+		server.removeContext("/pdp");
+		server.createContext("/pdp", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = (doctype + "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+						+ "<soap11:Body>" + responseBody + "</soap11:Body></soap11:Envelope>").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+
+		try {
+			client.decide(parseRequest());
+			fail();
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is("Failed to parse SOAP response"));
+		}
+	}
+
+	@Test
+	public void testHttpsVerifiesHostname() throws Exception {
+		KeyStore idpKeyStore = loadKeyStore("/test-idp.jceks");
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(idpKeyStore, "changeme".toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers.getKeyManagers(), null, null);
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(idpKeyStore);
+		SSLContext clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+		HttpsServer httpsServer = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		httpsServer.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+		httpsServer.createContext("/pdp", new PdpHandler());
+		httpsServer.setExecutor(serverExecutor);
+		httpsServer.start();
+		try {
+			XACMLAuthzDecisionQueryClient httpsClient = new XACMLAuthzDecisionQueryClient(PEP, PDP,
+					"https://127.0.0.1:" + httpsServer.getAddress().getPort() + "/pdp",
+					new XACMLAuthzDecisionQuerySigner(spKeyStore, "mykey", "changeme"),
+					metadata);
+			httpsClient.setSSLSocketFactory(clientContext.getSocketFactory());
+			try {
+				// the certificate is issued to "test-idp", not to "127.0.0.1"
+				httpsClient.decide(parseRequest());
+				fail();
+			} catch (SSLPeerUnverifiedException e) {
+				// expected
+			}
+
+			final List<String> verifiedHosts = new ArrayList<String>();
+			httpsClient.setHostnameVerifier(new HostnameVerifier() {
+				@Override
+				public boolean verify(String hostname, SSLSession session) {
+					verifiedHosts.add(hostname);
+					return true;
+				}
+			});
+			ResponseType response = httpsClient.decide(parseRequest());
+
+			assertThat(response.getResult().getDecision().getDecision(), is(DecisionType.DECISION.Permit));
+			assertThat(verifiedHosts.get(0), is("127.0.0.1"));
+			httpsClient.close();
+		} finally {
+			httpsServer.stop(0);
+		}
+	}
+
+	private final class PdpHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			remoteAddresses.add(exchange.getRemoteAddress());
+			requests.incrementAndGet();
+			try {
+				if (responseStatus != 200 || responseBody != null) {
+					byte[] body = ("<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Body>"
+							+ responseBody + "</soap11:Body></soap11:Envelope>").getBytes("UTF-8");
+					exchange.sendResponseHeaders(responseStatus, body.length);
+					exchange.getResponseBody().write(body);
+					exchange.getResponseBody().close();
+					return;
+				}
+				BasicParserPool parserPool = new BasicParserPool();
+				parserPool.setNamespaceAware(true);
+				Element envelope = parserPool.parse(exchange.getRequestBody()).getDocumentElement();
+				XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+						XMLHelper.getFirstChildElement(XMLHelper.getFirstChildElement(envelope)));
+				Element response = ResponseTemplate.forIssuer(PDP).newResponse(query, makeXacmlResponse());
+				SigningProfile.forCredential(responseCredential).sign(response);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				out.write("<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Body>"
+						.getBytes("UTF-8"));
+				OpenSamlObjectBuilder.serialize(response, out);
+				out.write("</soap11:Body></soap11:Envelope>".getBytes("UTF-8"));
+				exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+				exchange.sendResponseHeaders(200, out.size());
+				OutputStream body = exchange.getResponseBody();
+				out.writeTo(body);
+				body.close();
+			} catch (Exception e) {
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private static RequestType parseRequest() throws Exception {
+		BasicParserPool parserPool = new BasicParserPool();
+		parserPool.setNamespaceAware(true);
+		InputStream in = XACMLAuthzDecisionQueryClientTest.class.getResourceAsStream("/TestXacmlSamlRequest-nosignature.xml");
+		try {
+			XACMLAuthzDecisionQueryType query = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+					parserPool.parse(in).getDocumentElement());
+			RequestType request = query.getRequest();
+			request.releaseParentDOM(true);
+			request.setParent(null);
+			return request;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static KeyStore loadKeyStore(String resource) throws Exception {
+		KeyStore ks = KeyStore.getInstance("JCEKS");
+		InputStream in = XACMLAuthzDecisionQueryClientTest.class.getResourceAsStream(resource);
+		try {
+			ks.load(in, "changeme".toCharArray());
+		} finally {
+			in.close();
+		}
+		return ks;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ResponseType makeXacmlResponse() {
+		ResponseType response = ((XACMLObjectBuilder<ResponseType>) Configuration.getBuilderFactory()
+				.getBuilder(ResponseType.DEFAULT_ELEMENT_NAME)).buildObject();
+		ResultType result = ((XACMLObjectBuilder<ResultType>) Configuration.getBuilderFactory()
+				.getBuilder(ResultType.DEFAULT_ELEMENT_NAME)).buildObject();
+		DecisionType decision = ((XACMLObjectBuilder<DecisionType>) Configuration.getBuilderFactory()
+				.getBuilder(DecisionType.DEFAULT_ELEMENT_NAME)).buildObject();
+		decision.setDecision(DecisionType.DECISION.Permit);
+		result.setDecision(decision);
+		response.setResult(result);
+		return response;
+	}
+}
@@ -27,19 +27,29 @@ import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.same;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.xml.security.utils.XMLUtils;
 import org.easymock.Capture;
+import org.easymock.CaptureType;
 import org.easymock.EasyMock;
 import org.easymock.IMocksControl;
 import org.junit.Before;
@@ -47,16 +57,21 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.core.RequestAbstractType;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.xacml.profile.saml.XACMLAuthzDecisionQueryType;
 import org.opensaml.xml.security.credential.Credential;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.w3c.dom.Document;
+import org.xacml4j.v30.Categories;
+import org.xacml4j.v30.Category;
 import org.xacml4j.v30.Decision;
 import org.xacml4j.v30.RequestContext;
 import org.xacml4j.v30.ResponseContext;
@@ -118,6 +133,26 @@ public class XACMLAuthzDecisionQueryEndpointTest
 		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
 	}
 
+	@Test
+	public void testMalformedSignature() throws Exception {
+		HistogramEndpointMetricsListener metrics = new HistogramEndpointMetricsListener();
+		endpoint.setMetricsListener(metrics);
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+		XACMLAuthzDecisionQueryType xacmlSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement());
+		// the signature reference no longer matches the query ID
+		xacmlSamlQuery.setID("_other");
+
+		control.replay();
+		Response response = endpoint.handle(xacmlSamlQuery);
+		control.verify();
+
+		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+		assertThat(metrics.getOutcomeCount(EndpointMetricsListener.Outcome.BAD_SIGNATURE), is(1L));
+		assertThat(metrics.getOutcomeCount(EndpointMetricsListener.Outcome.INTERNAL_ERROR), is(0L));
+	}
+
 	@Test
 	public void testInvalidSignature_SignatureValidationDisabled() throws Exception
 	{
@@ -202,6 +237,325 @@ public class XACMLAuthzDecisionQueryEndpointTest
 		control.verify();
 	}
 
+	@Test
+	public void testDecisionCache() throws Exception {
+		DecisionCache decisionCache = new DecisionCache(100, 1, TimeUnit.MINUTES);
+		endpoint.setDecisionCache(decisionCache);
+
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build()).once();
+		Credential expectedSigningCredential = idpConfiguration.getSigningCredentials().get(0);
+		expect(credentialSelector.selectCredential(anyObject(XACMLAuthzDecisionQueryType.class),
+				anyObject(Response.class), same(idpConfiguration))).andReturn(expectedSigningCredential).times(2);
+
+		control.replay();
+		Response response1 = endpoint.handle(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement()));
+		Response response2 = endpoint.handle(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement()));
+		control.verify();
+
+		assertThat(response1.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+		assertThat(response2.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+		assertThat(response2.getSignature(), is(notNullValue()));
+		assertThat(response2.getID(), is(not(response1.getID())));
+		assertThat(decisionCache.getHitCount(), is(1L));
+		assertThat(decisionCache.getMissCount(), is(1L));
+	}
+
+	@Test
+	public void testIntermediarySubjectIsSharedPerIssuer() throws Exception {
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+
+		Capture<RequestContext> captureRequest = new Capture<RequestContext>(CaptureType.ALL);
+		expect(pdp.decide(capture(captureRequest))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build()).times(2);
+		expect(credentialSelector.selectCredential(anyObject(XACMLAuthzDecisionQueryType.class),
+				anyObject(Response.class), same(idpConfiguration)))
+				.andReturn(idpConfiguration.getSigningCredentials().get(0)).times(2);
+
+		control.replay();
+		endpoint.handle(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(query.getDocumentElement()));
+		endpoint.handle(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(query.getDocumentElement()));
+		control.verify();
+
+		Collection<Category> first = captureRequest.getValues().get(0).getAttributes(Categories.SUBJECT_INTERMEDIARY);
+		Collection<Category> second = captureRequest.getValues().get(1).getAttributes(Categories.SUBJECT_INTERMEDIARY);
+		assertThat(first.size(), is(1));
+		assertThat(second.iterator().next(), sameInstance(first.iterator().next()));
+	}
+
+	@Test
+	public void testHandleStream() throws Exception {
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+
+		ByteArrayOutputStream in = new ByteArrayOutputStream();
+		OpenSamlObjectBuilder.serialize(query, in);
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build());
+		Credential expectedSigningCredential = idpConfiguration.getSigningCredentials().get(0);
+		expect(credentialSelector.selectCredential(anyObject(XACMLAuthzDecisionQueryType.class),
+				anyObject(Response.class), same(idpConfiguration))).andReturn(expectedSigningCredential);
+
+		control.replay();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		endpoint.handle(new ByteArrayInputStream(in.toByteArray()), out);
+		control.verify();
+
+		Document responseDom = parse(out.toByteArray());
+		Response response = OpenSamlObjectBuilder.unmarshall(responseDom.getDocumentElement());
+		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+		assertThat(response.getSignature(), is(notNullValue()));
+	}
+
+	@Test
+	public void testHandleStreamWithResponseTemplates() throws Exception {
+		endpoint.setResponseTemplates(true);
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+
+		ByteArrayOutputStream in = new ByteArrayOutputStream();
+		OpenSamlObjectBuilder.serialize(query, in);
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build());
+		Credential expectedSigningCredential = idpConfiguration.getSigningCredentials().get(0);
+		expect(credentialSelector.selectCredential(anyObject(XACMLAuthzDecisionQueryType.class),
+				EasyMock.<Response>isNull(), same(idpConfiguration))).andReturn(expectedSigningCredential);
+
+		control.replay();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		endpoint.handle(new ByteArrayInputStream(in.toByteArray()), out);
+		control.verify();
+
+		Document responseDom = parse(out.toByteArray());
+		Response response = OpenSamlObjectBuilder.unmarshall(responseDom.getDocumentElement());
+		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+		assertThat(response.getInResponseTo(), is(query.getDocumentElement().getAttribute("ID")));
+		assertThat(response.getAssertions().size(), is(1));
+		new SignatureValidator(expectedSigningCredential).validate(response.getSignature());
+	}
+
+	@Test
+	public void testHandleStreamMalformedRequest() throws Exception {
+		control.replay();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		endpoint.handle(new ByteArrayInputStream("<not-saml".getBytes("UTF-8")), out);
+		control.verify();
+
+		Document responseDom = parse(out.toByteArray());
+		Response response = OpenSamlObjectBuilder.unmarshall(responseDom.getDocumentElement());
+		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+	}
+
+	@Test
+	public void testHandleStreamMalformedIssueInstant() throws Exception {
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		query.getDocumentElement().setAttribute("IssueInstant", "x");
+
+		ByteArrayOutputStream in = new ByteArrayOutputStream();
+		OpenSamlObjectBuilder.serialize(query, in);
+
+		control.replay();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		endpoint.handle(new ByteArrayInputStream(in.toByteArray()), out);
+		control.verify();
+
+		Document responseDom = parse(out.toByteArray());
+		Response response = OpenSamlObjectBuilder.unmarshall(responseDom.getDocumentElement());
+		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+	}
+
+	@Test
+	public void testHandleStreamRejectsDoctype() throws Exception {
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+
+		ByteArrayOutputStream in = new ByteArrayOutputStream();
+		OpenSamlObjectBuilder.serialize(query.getDocumentElement(), in);
+		String xml = new String(in.toByteArray(), "UTF-8");
+		xml = "<!DOCTYPE x [<!ENTITY e SYSTEM \"file:///etc/passwd\">]>"
+				+ xml.replace("https://sp.example.com/<", "https://sp.example.com/&e;<");
+
+		control.replay();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		endpoint.handle(new ByteArrayInputStream(xml.getBytes("UTF-8")), out);
+		control.verify();
+
+		Document responseDom = parse(out.toByteArray());
+		Response response = OpenSamlObjectBuilder.unmarshall(responseDom.getDocumentElement());
+		assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+	}
+
+	@Test
+	public void testHandleAsync() throws Exception {
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+		XACMLAuthzDecisionQueryType xacmlSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement());
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build());
+		Credential expectedSigningCredential = idpConfiguration.getSigningCredentials().get(0);
+		expect(credentialSelector.selectCredential(same(xacmlSamlQuery), anyObject(Response.class),
+				same(idpConfiguration))).andReturn(expectedSigningCredential);
+
+		control.replay();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AsyncOpenSamlEndpoint asyncEndpoint = new AsyncXACMLAuthzDecisionQueryEndpoint(endpoint, executor);
+			Response response = asyncEndpoint.handle(xacmlSamlQuery).get(10, TimeUnit.SECONDS);
+
+			assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+			assertThat(response.getSignature().getSigningCredential(), is(expectedSigningCredential));
+		} finally {
+			executor.shutdown();
+		}
+		control.verify();
+	}
+
+	@Test
+	public void testHandleAsyncInvalidSignature() throws Exception {
+		Document query = parse("TestXacmlSamlRequest-invalidSignature.xml");
+		XACMLAuthzDecisionQueryType xacmlSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement());
+
+		control.replay();
+		ExecutorService executor = AsyncXACMLAuthzDecisionQueryEndpoint.newVirtualThreadExecutor();
+		try {
+			AsyncOpenSamlEndpoint asyncEndpoint = new AsyncXACMLAuthzDecisionQueryEndpoint(endpoint, executor);
+			Response response = asyncEndpoint.handle(xacmlSamlQuery).get(10, TimeUnit.SECONDS);
+
+			assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+		} finally {
+			executor.shutdown();
+		}
+		control.verify();
+	}
+
+	@Test
+	public void testHandleAsyncValidationFailure() throws Exception {
+		XACMLAuthzDecisionQueryType xacmlSamlQuery = EasyMock.createNiceMock(XACMLAuthzDecisionQueryType.class);
+		expect(xacmlSamlQuery.getRequest()).andThrow(new IllegalStateException("failure"));
+		EasyMock.replay(xacmlSamlQuery);
+
+		control.replay();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			AsyncOpenSamlEndpoint asyncEndpoint = new AsyncXACMLAuthzDecisionQueryEndpoint(endpoint, executor);
+			Response response = asyncEndpoint.handle(xacmlSamlQuery).get(10, TimeUnit.SECONDS);
+
+			assertThat(response.getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+		} finally {
+			executor.shutdown();
+		}
+		control.verify();
+	}
+
+	@Test
+	public void testHandleAll() throws Exception {
+		Document signed = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(signed.getDocumentElement(), spPrivateKey, spPublicKey);
+		List<RequestAbstractType> requests = new ArrayList<RequestAbstractType>();
+		requests.add(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(signed.getDocumentElement()));
+		requests.add(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				parse("TestXacmlSamlRequest-invalidSignature.xml").getDocumentElement()));
+		Document signed2 = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(signed2.getDocumentElement(), spPrivateKey, spPublicKey);
+		requests.add(OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(signed2.getDocumentElement()));
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build()).times(2);
+		Credential expectedSigningCredential = idpConfiguration.getSigningCredentials().get(0);
+		expect(credentialSelector.selectCredential(anyObject(XACMLAuthzDecisionQueryType.class),
+				anyObject(Response.class), same(idpConfiguration))).andReturn(expectedSigningCredential).times(2);
+
+		control.replay();
+		List<Response> responses = endpoint.handleAll(requests);
+		control.verify();
+
+		assertThat(responses.size(), is(3));
+		assertThat(responses.get(0).getInResponseTo(), is(requests.get(0).getID()));
+		assertThat(responses.get(0).getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+		assertThat(responses.get(1).getStatus().getStatusCode().getValue(), is(StatusCode.REQUESTER_URI));
+		assertThat(responses.get(2).getInResponseTo(), is(requests.get(2).getID()));
+		assertThat(responses.get(2).getStatus().getStatusCode().getValue(), is(StatusCode.SUCCESS_URI));
+	}
+
+	@Test
+	public void testMetricsListener() throws Exception {
+		HistogramEndpointMetricsListener metrics = new HistogramEndpointMetricsListener();
+		endpoint.setMetricsListener(metrics);
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+		XACMLAuthzDecisionQueryType xacmlSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement());
+		XACMLAuthzDecisionQueryType invalidSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				parse("TestXacmlSamlRequest-invalidSignature.xml").getDocumentElement());
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build());
+		expect(credentialSelector.selectCredential(same(xacmlSamlQuery), anyObject(Response.class),
+				same(idpConfiguration))).andReturn(idpConfiguration.getSigningCredentials().get(0));
+
+		control.replay();
+		endpoint.handle(xacmlSamlQuery);
+		endpoint.handle(invalidSamlQuery);
+		control.verify();
+
+		String issuer = xacmlSamlQuery.getIssuer().getValue();
+		assertThat(metrics.getOutcomeCount(issuer, EndpointMetricsListener.Outcome.SUCCESS), is(1L));
+		assertThat(metrics.getOutcomeCount(EndpointMetricsListener.Outcome.BAD_SIGNATURE), is(1L));
+		for (EndpointMetricsListener.Stage stage : EndpointMetricsListener.Stage.values()) {
+			assertThat(metrics.getHistogram(stage).getCount(), is(
+					(stage == EndpointMetricsListener.Stage.SIGNATURE_PROFILE_VALIDATION ||
+					stage == EndpointMetricsListener.Stage.TRUST_ENGINE_VALIDATION) ? 2L : 1L));
+		}
+	}
+
+	@Test
+	public void testSignatureAlgorithms() throws Exception {
+		endpoint.setSignatureAlgorithms(SignatureAlgorithms.RSA_SHA256);
+		Document query = parse("TestXacmlSamlRequest-nosignature.xml");
+		new ApacheXMLDsigGenerator().signSamlRequest(query.getDocumentElement(), spPrivateKey, spPublicKey);
+		XACMLAuthzDecisionQueryType xacmlSamlQuery = OpenSamlObjectBuilder.unmarshallXacml20AuthzDecisionQuery(
+				query.getDocumentElement());
+
+		expect(pdp.decide(anyObject(RequestContext.class))).andReturn(ResponseContext
+			.builder()
+			.result(createIndeterminateProcessingError())
+			.build());
+		expect(credentialSelector.selectCredential(same(xacmlSamlQuery), anyObject(Response.class),
+				same(idpConfiguration))).andReturn(idpConfiguration.getSigningCredentials().get(0));
+
+		control.replay();
+		Response response = endpoint.handle(xacmlSamlQuery);
+		control.verify();
+
+		assertThat(response.getSignature().getSignatureAlgorithm(),
+				is(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256));
+	}
+
 	private static Result createIndeterminateProcessingError() {
 		return Result.builder(
 				Decision.INDETERMINATE,
@@ -235,4 +589,10 @@ public class XACMLAuthzDecisionQueryEndpointTest
 		}
 	}
 
+	private static Document parse(byte[] xml) throws Exception {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+	}
+
 }